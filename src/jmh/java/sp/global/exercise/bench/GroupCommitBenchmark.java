@@ -0,0 +1,109 @@
+package sp.global.exercise.bench;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import sp.global.exercise.config.PriceProperties;
+import sp.global.exercise.model.BatchInfo;
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.service.impl.PriceServiceImpl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batches finishing concurrently: every thread runs small chunked uploads
+ * back to back, so commits pile up on the store. The score is commits/s.
+ * {@code maxGroupSize} 1 commits every batch on its own, as before group
+ * commit. Each thread draws fresh records moving its ids forward, so the
+ * batches are not dropped as stale against the live store.
+ * <p>
+ * The {@code cpuNanos} and {@code records} counters add up the CPU time of
+ * the uploading threads and the records they committed, divide them for
+ * CPU per committed record. Generating the records is left out. Leaders
+ * commit on an uploading thread, so the store update is included, the
+ * fork-join merges of a partitioned store are not.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class GroupCommitBenchmark {
+
+    @Param({"1000"})
+    int recordsPerBatch;
+
+    @Param({"100000"})
+    int cardinality;
+
+    @Param({"1", "16"})
+    int maxGroupSize;
+
+    @Param({"0", "1000"})
+    int groupWindowMicros;
+
+    @Param({"DENSE", "HEAP"})
+    PriceProperties.StoreMode mode;
+
+    private PriceServiceImpl service;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class CpuCounters {
+
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+        public long cpuNanos;
+        public long records;
+        PriceDataGenerator generator;
+
+        long start() {
+            return THREADS.getCurrentThreadCpuTime();
+        }
+
+        void stop(long started, int committed) {
+            cpuNanos += THREADS.getCurrentThreadCpuTime() - started;
+            records += committed;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        var properties = new PriceProperties();
+        properties.getStore().setMode(mode);
+        properties.getCommit().setMaxGroupSize(maxGroupSize);
+        properties.getCommit().setGroupWindow(Duration.of(groupWindowMicros, ChronoUnit.MICROS));
+        // Admission must not be what serializes the threads
+        properties.getAdmission().setMaxConcurrentBatches(64);
+        service = new PriceServiceImpl(new SimpleMeterRegistry(), properties);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        service.shutdown();
+    }
+
+    @Benchmark
+    public BatchInfo commit(CpuCounters counters) {
+        if (counters.generator == null) {
+            // Distinct seeds, the threads update the same ids at different times
+            counters.generator = new PriceDataGenerator(Thread.currentThread().threadId(), cardinality, 2.0, 0.05, 0.02);
+        }
+        List<PriceRecord> prices = counters.generator.records(recordsPerBatch);
+        long started = counters.start();
+
+        UUID batchId = service.startBatch(prices.size());
+        service.uploadChunk(batchId, prices);
+        BatchInfo info = service.completeBatch(batchId);
+
+        counters.stop(started, info.processedCount());
+        return info;
+    }
+}
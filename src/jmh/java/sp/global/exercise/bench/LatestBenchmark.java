@@ -0,0 +1,73 @@
+package sp.global.exercise.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import sp.global.exercise.model.UploadRequest;
+import sp.global.exercise.model.BatchStatus;
+import sp.global.exercise.service.impl.PriceServiceImpl;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latest price lookups against a loaded store: the map result, the map
+ * serialized as /prices/latest used to, the cached JSON members and the
+ * NDJSON stream. Run with {@code -prof gc} to compare allocation per lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LatestBenchmark {
+
+    @Param({"100000"})
+    int storeSize;
+
+    @Param({"10", "1000", "100000"})
+    int ids;
+
+    @Param({"0.5", "1.0"})
+    double hitRatio;
+
+    private PriceServiceImpl service;
+    private List<String> lookup;
+    private final JsonMapper mapper = JsonMapper.shared();
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        service = new PriceServiceImpl();
+        var generator = PriceDataGenerator.standard(storeSize);
+
+        var batchId = service.uploadAll(new UploadRequest(generator.universe()));
+        while (service.getBatchStatus(batchId).status() == BatchStatus.IN_PROGRESS) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        lookup = generator.lookupIds(ids, hitRatio);
+    }
+
+    @Benchmark
+    public Object latestMap() {
+        return service.getLatest(lookup);
+    }
+
+    @Benchmark
+    public byte[] latestMapSerialized() {
+        return mapper.writeValueAsBytes(service.getLatest(lookup));
+    }
+
+    @Benchmark
+    public void latestCachedJson(Blackhole blackhole) {
+        blackhole.consume(service.getLatestJson(lookup));
+    }
+
+    @Benchmark
+    public long latestNdjson() throws Exception {
+        var stream = service.streamLatest(OutputStream.nullOutputStream());
+        lookup.forEach(stream);
+        return stream.finish();
+    }
+}
@@ -0,0 +1,148 @@
+package sp.global.exercise.bench;
+
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.persistence.RecordCodec;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Deterministic price data for the benchmarks.
+ * <p>
+ * Ids are ISIN-like codes drawn from a fixed cardinality with a skew
+ * towards hot instruments ({@code skew} 1 is uniform, higher concentrates
+ * updates on the first ids). Each id has its own clock: most records move
+ * it forward, {@code duplicateAsOfRatio} of them repeat the last asOf of
+ * the id and {@code outOfOrderRatio} of them go back in time, which is
+ * what the merge rule has to deal with in real feeds.
+ */
+public class PriceDataGenerator {
+
+    private static final Instant START = Instant.parse("2024-01-01T09:30:00Z");
+
+    private final SplittableRandom random;
+    private final int cardinality;
+    private final double skew;
+    private final double duplicateAsOfRatio;
+    private final double outOfOrderRatio;
+    private final long[] clocks;
+
+    public PriceDataGenerator(long seed, int cardinality, double skew,
+                              double duplicateAsOfRatio, double outOfOrderRatio) {
+        this.random = new SplittableRandom(seed);
+        this.cardinality = cardinality;
+        this.skew = skew;
+        this.duplicateAsOfRatio = duplicateAsOfRatio;
+        this.outOfOrderRatio = outOfOrderRatio;
+        this.clocks = new long[cardinality];
+    }
+
+    /**
+     * Generator with the defaults used across the benchmarks: mild skew,
+     * 5% duplicate asOf, 2% out of order.
+     */
+    public static PriceDataGenerator standard(int cardinality) {
+        return new PriceDataGenerator(42, cardinality, 2.0, 0.05, 0.02);
+    }
+
+    public static String id(int index) {
+        return String.format("XS%010d", index);
+    }
+
+    public List<PriceRecord> records(int count) {
+        List<PriceRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(next());
+        }
+        return records;
+    }
+
+    /**
+     * One record per id, the content of a fully loaded store.
+     */
+    public List<PriceRecord> universe() {
+        List<PriceRecord> records = new ArrayList<>(cardinality);
+        for (int index = 0; index < cardinality; index++) {
+            records.add(record(index, START.plusMillis(clocks[index])));
+        }
+        return records;
+    }
+
+    /**
+     * Ids for a lookup, {@code hitRatio} of them taken from the universe.
+     */
+    public List<String> lookupIds(int count, double hitRatio) {
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(random.nextDouble() < hitRatio ? id(pick()) : "MISSING" + i);
+        }
+        return ids;
+    }
+
+    public PriceRecord next() {
+        int index = pick();
+        double roll = random.nextDouble();
+        if (roll >= duplicateAsOfRatio) {
+            long step = 1 + random.nextLong(1_000);
+            clocks[index] += roll < duplicateAsOfRatio + outOfOrderRatio ? -step : step;
+        }
+        return record(index, START.plusMillis(clocks[index]));
+    }
+
+    private PriceRecord record(int index, Instant asOf) {
+        double price = 100 + random.nextDouble() * 50;
+        return new PriceRecord(id(index), asOf, Map.of(
+                "price", Math.round(price * 100) / 100.0,
+                "currency", "USD",
+                "source", "BENCH"));
+    }
+
+    private int pick() {
+        return (int) (cardinality * Math.pow(random.nextDouble(), skew));
+    }
+
+    // ============================
+    // Upload bodies
+    // ============================
+
+    public static byte[] json(List<PriceRecord> records) {
+        return JsonMapper.shared().writeValueAsBytes(Map.of("prices", records));
+    }
+
+    public static byte[] csv(List<PriceRecord> records) {
+        var out = new StringBuilder(records.size() * 64).append("id,asOf,payload\n");
+        for (var record : records) {
+            out.append(record.id()).append(',')
+                    .append(record.asOf().toEpochMilli()).append(',')
+                    .append(JsonMapper.shared().writeValueAsString(record.payload())).append('\n');
+        }
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static byte[] binary(List<PriceRecord> records) {
+        var codec = new RecordCodec(JsonMapper.shared());
+        var bytes = new ByteArrayOutputStream(records.size() * 64);
+        var out = new DataOutputStream(bytes);
+        var record = new ByteArrayOutputStream(128);
+        try {
+            for (var price : records) {
+                record.reset();
+                codec.write(new DataOutputStream(record), price);
+                out.writeInt(record.size());
+                record.writeTo(out);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,106 @@
+package sp.global.exercise.bench;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import sp.global.exercise.config.PriceProperties;
+import sp.global.exercise.ingest.BinaryPriceRecordReader;
+import sp.global.exercise.ingest.CsvPriceRecordReader;
+import sp.global.exercise.ingest.JsonPriceRecordReader;
+import sp.global.exercise.model.BatchInfo;
+import sp.global.exercise.model.BatchStatus;
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.model.UploadRequest;
+import sp.global.exercise.service.impl.PriceServiceImpl;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One upload end to end, from the request to the committed batch, for
+ * every ingestion path and store mode. Divide {@code records} by the
+ * score for records/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark {
+
+    public enum Ingestion {
+        // UploadRequest already bound, as /prices/upload with JSON
+        BOUND,
+        JSON_STREAM,
+        CSV,
+        BINARY
+    }
+
+    @Param({"100000"})
+    int records;
+
+    @Param({"10000"})
+    int cardinality;
+
+    @Param({"BOUND", "JSON_STREAM", "CSV", "BINARY"})
+    Ingestion ingestion;
+
+    @Param({"DENSE", "HEAP", "OFF_HEAP"})
+    PriceProperties.StoreMode mode;
+
+    private PriceServiceImpl service;
+    private UploadRequest request;
+    private byte[] body;
+
+    private final JsonMapper mapper = JsonMapper.shared();
+    private final JsonPriceRecordReader jsonReader = new JsonPriceRecordReader(mapper);
+    private final CsvPriceRecordReader csvReader = new CsvPriceRecordReader(mapper);
+    private final BinaryPriceRecordReader binaryReader = new BinaryPriceRecordReader(mapper);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        var properties = new PriceProperties();
+        properties.getStore().setMode(mode);
+        service = new PriceServiceImpl(new SimpleMeterRegistry(), properties);
+
+        List<PriceRecord> prices = PriceDataGenerator.standard(cardinality).records(records);
+        request = new UploadRequest(prices);
+        body = switch (ingestion) {
+            case BOUND -> null;
+            case JSON_STREAM -> PriceDataGenerator.json(prices);
+            case CSV -> PriceDataGenerator.csv(prices);
+            case BINARY -> PriceDataGenerator.binary(prices);
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        service.shutdown();
+    }
+
+    @Benchmark
+    public BatchInfo upload() throws Exception {
+        UUID batchId = switch (ingestion) {
+            case BOUND -> service.uploadAll(request);
+            case JSON_STREAM -> service.uploadStream(new ByteArrayInputStream(body), jsonReader);
+            case CSV -> service.uploadBlocks(new ByteArrayInputStream(body), csvReader);
+            case BINARY -> service.uploadBlocks(new ByteArrayInputStream(body), binaryReader);
+        };
+        return awaitCommit(batchId);
+    }
+
+    private BatchInfo awaitCommit(UUID batchId) {
+        BatchInfo info;
+        while ((info = service.getBatchStatus(batchId)).status() == BatchStatus.IN_PROGRESS) {
+            LockSupport.parkNanos(20_000);
+        }
+        if (info.status() != BatchStatus.COMPLETED) {
+            throw new IllegalStateException("Batch ended " + info.status());
+        }
+        return info;
+    }
+}
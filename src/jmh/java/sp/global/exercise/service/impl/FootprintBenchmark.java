@@ -0,0 +1,116 @@
+package sp.global.exercise.service.impl;
+
+import org.openjdk.jmh.annotations.*;
+import sp.global.exercise.bench.PriceDataGenerator;
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.store.DensePriceStore;
+import sp.global.exercise.store.InstrumentDictionary;
+import sp.global.exercise.store.PriceStore;
+import sp.global.exercise.store.VersionedPriceStore;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap retained per instrument by the structures holding one record per id,
+ * measured as the used heap after a full GC, before and after building them.
+ * The records and their id strings are held by the benchmark throughout, so
+ * only the overhead of the structure is counted. The dictionary is filled
+ * before the first measurement, it is shared by the whole process; its own
+ * cost is reported as DICTIONARY.
+ * <p>
+ * The time scores are not meaningful here, read {@code bytesPerInstrument}.
+ * JMH sums event counters over iterations, hence a single measured one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-XX:+UseSerialGC"})
+public class FootprintBenchmark {
+
+    public enum Structure {
+        STRING_MAP,
+        STAGING,
+        VERSIONED_STORE,
+        DENSE_STORE,
+        DICTIONARY
+    }
+
+    @Param({"100000", "1000000"})
+    int instruments;
+
+    @Param({"STRING_MAP", "STAGING", "VERSIONED_STORE", "DENSE_STORE", "DICTIONARY"})
+    Structure structure;
+
+    private List<PriceRecord> records;
+    private InstrumentDictionary dictionary;
+
+    // Keeps the structure reachable until the second measurement
+    private Object built;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public long bytesPerInstrument;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        records = PriceDataGenerator.standard(instruments).universe();
+    }
+
+    @Setup(Level.Invocation)
+    public void newDictionary() {
+        dictionary = new InstrumentDictionary();
+        if (structure != Structure.DICTIONARY) {
+            records.forEach(record -> dictionary.intern(record.id()));
+        }
+        built = null;
+    }
+
+    @Benchmark
+    public Object build(Footprint footprint) {
+        long before = usedHeap();
+        built = switch (structure) {
+            case STRING_MAP -> {
+                var map = new ConcurrentHashMap<String, PriceRecord>();
+                records.forEach(record -> map.merge(record.id(), record, PriceRecord::newest));
+                yield map;
+            }
+            case STAGING -> {
+                var staging = new BatchStaging(dictionary, false, null);
+                records.forEach(staging::merge);
+                yield staging;
+            }
+            case VERSIONED_STORE -> commit(new VersionedPriceStore());
+            case DENSE_STORE -> commit(new DensePriceStore(dictionary));
+            case DICTIONARY -> {
+                records.forEach(record -> dictionary.intern(record.id()));
+                yield dictionary;
+            }
+        };
+        footprint.bytesPerInstrument = (usedHeap() - before) / instruments;
+        return built;
+    }
+
+    private PriceStore commit(PriceStore store) {
+        Map<String, PriceRecord> staging = new HashMap<>(instruments * 2);
+        records.forEach(record -> staging.put(record.id(), record));
+        store.commit(staging, PriceRecord::newest);
+        return store;
+    }
+
+    private static long usedHeap() {
+        var memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
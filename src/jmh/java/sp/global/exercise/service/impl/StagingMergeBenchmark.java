@@ -0,0 +1,111 @@
+package sp.global.exercise.service.impl;
+
+import org.openjdk.jmh.annotations.*;
+import sp.global.exercise.bench.PriceDataGenerator;
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.store.InstrumentDictionary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The chunk merge of processBatch: several workers merging chunks of the
+ * same batch into one staging. Ids are drawn uniformly from
+ * {@code records * (1 - duplicateRatio)} instruments, a high ratio means
+ * hot ids and more contention on the same stripes. Scores are per record.
+ * <p>
+ * REDUCED is what the workers do: deduplicate the chunk locally, then
+ * merge its distinct ids. DICTIONARY merges record by record into the
+ * staging, STRING_MAP is the staging keyed by id string it replaced, a
+ * {@code ConcurrentHashMap<String, PriceRecord>} merged with the same rule.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class StagingMergeBenchmark {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final int CHUNKS = 64;
+
+    @Param({"0", "0.5", "0.9", "0.99"})
+    double duplicateRatio;
+
+    @Param({"false", "true"})
+    boolean keepSuperseded;
+
+    public enum Staging {
+        REDUCED,
+        DICTIONARY,
+        STRING_MAP
+    }
+
+    @Param({"REDUCED", "DICTIONARY", "STRING_MAP"})
+    Staging impl;
+
+    private final InstrumentDictionary dictionary = new InstrumentDictionary();
+    private List<List<PriceRecord>> chunks;
+    private BatchStaging staging;
+    private ConcurrentHashMap<String, PriceRecord> stringMap;
+    private Queue<PriceRecord> superseded;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int count = CHUNK_SIZE * CHUNKS;
+        int cardinality = Math.max(1, (int) (count * (1 - duplicateRatio)));
+        var records = new PriceDataGenerator(42, cardinality, 1.0, 0.05, 0.02).records(count);
+        chunks = new ArrayList<>();
+        for (int i = 0; i < records.size(); i += CHUNK_SIZE) {
+            chunks.add(records.subList(i, i + CHUNK_SIZE));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void newBatch() {
+        // With history on the superseded queue grows for the whole iteration, like a long batch
+        staging = new BatchStaging(dictionary, keepSuperseded, null);
+        stringMap = new ConcurrentHashMap<>();
+        superseded = keepSuperseded ? new ConcurrentLinkedQueue<>() : null;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNK_SIZE)
+    public void mergeChunk(Cursor cursor) {
+        var chunk = chunks.get(cursor.next++ & (CHUNKS - 1));
+        if (impl == Staging.REDUCED) {
+            var reduction = staging.reduction(chunk.size());
+            for (var record : chunk) {
+                reduction.add(record);
+            }
+            staging.mergeAll(reduction);
+        } else if (impl == Staging.DICTIONARY) {
+            for (var record : chunk) {
+                staging.merge(record);
+            }
+        } else {
+            for (var record : chunk) {
+                stringMap.merge(record.id(), record, this::resolve);
+            }
+        }
+    }
+
+    private PriceRecord resolve(PriceRecord oldVal, PriceRecord newVal) {
+        var winner = PriceRecord.newest(oldVal, newVal);
+        if (superseded != null) {
+            superseded.add(winner == oldVal ? newVal : oldVal);
+        }
+        return winner;
+    }
+}
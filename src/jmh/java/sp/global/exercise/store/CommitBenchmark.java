@@ -0,0 +1,81 @@
+package sp.global.exercise.store;
+
+import org.openjdk.jmh.annotations.*;
+import sp.global.exercise.bench.PriceDataGenerator;
+import sp.global.exercise.model.PriceRecord;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Commit of one batch into live stores of several sizes. Each commit
+ * brings newer prices for ids already live plus some new ids, so every
+ * record goes through the merge rule.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CommitBenchmark {
+
+    public enum Store {
+        VERSIONED,
+        PARTITIONED,
+        DENSE,
+        OFF_HEAP
+    }
+
+    @Param({"10000", "100000", "1000000"})
+    int storeSize;
+
+    @Param({"10000"})
+    int batchSize;
+
+    @Param({"VERSIONED", "PARTITIONED", "DENSE", "OFF_HEAP"})
+    Store store;
+
+    private PriceStore priceStore;
+    private PriceDataGenerator generator;
+    private Map<String, PriceRecord> batch;
+    private long round;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        priceStore = switch (store) {
+            case VERSIONED -> new VersionedPriceStore();
+            case PARTITIONED -> new PartitionedPriceStore(16, ForkJoinPool.commonPool());
+            case DENSE -> new DensePriceStore(new InstrumentDictionary());
+            case OFF_HEAP -> new OffHeapPriceStore(new InstrumentDictionary(), JsonMapper.shared(), 64 << 20);
+        };
+        // 10% more ids than the store holds, so batches also insert
+        generator = PriceDataGenerator.standard(storeSize + storeSize / 10);
+
+        Map<String, PriceRecord> universe = new HashMap<>();
+        for (var record : generator.universe().subList(0, storeSize)) {
+            universe.put(record.id(), record);
+        }
+        priceStore.commit(universe, PriceRecord::newest);
+    }
+
+    @Setup(Level.Invocation)
+    public void nextBatch() {
+        // Each round is a day later, so staged prices always win
+        var shift = Duration.ofDays(++round);
+        batch = new HashMap<>(batchSize * 2);
+        for (var record : generator.records(batchSize)) {
+            batch.merge(record.id(), new PriceRecord(record.id(), record.asOf().plus(shift), record.payload()),
+                    PriceRecord::newest);
+        }
+    }
+
+    @Benchmark
+    public PriceSnapshot commit() {
+        return priceStore.commit(batch, PriceRecord::newest);
+    }
+}
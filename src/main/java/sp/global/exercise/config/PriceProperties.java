@@ -0,0 +1,268 @@
+package sp.global.exercise.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Settings of the price service, bound from {@code prices.*}.
+ */
+@Data
+@ConfigurationProperties(prefix = "prices")
+public class PriceProperties {
+
+    private Store store = new Store();
+    private Persistence persistence = new Persistence();
+    private History history = new History();
+    private Batches batches = new Batches();
+    private Admission admission = new Admission();
+    private Commit commit = new Commit();
+    private Staging staging = new Staging();
+    private Replication replication = new Replication();
+    private Latest latest = new Latest();
+
+    @Data
+    public static class Store {
+
+        /**
+         * HEAP keeps PriceRecord objects in a persistent hash trie, DENSE in
+         * paged arrays indexed by the dictionary code of the id, OFF_HEAP
+         * keeps them serialized in direct buffers.
+         */
+        private StoreMode mode = StoreMode.HEAP;
+
+        /**
+         * Size of one off-heap arena.
+         */
+        private DataSize arenaSize = DataSize.ofMegabytes(64);
+
+        /**
+         * Hash partitions of the HEAP store, merged in parallel on commit. 1 keeps a single trie.
+         */
+        private int partitions = 16;
+    }
+
+    @Data
+    public static class Persistence {
+
+        /**
+         * Write every commit to a log and snapshot the store, so it survives restarts.
+         */
+        private boolean enabled = false;
+
+        private Path directory = Path.of("data");
+
+        /**
+         * PER_COMMIT forces the log to disk before a commit is visible,
+         * GROUPED forces it once per group interval, NONE leaves it to the OS.
+         */
+        private FsyncPolicy fsync = FsyncPolicy.PER_COMMIT;
+
+        private Duration groupInterval = Duration.ofMillis(10);
+
+        /**
+         * Commits between two compacted snapshots.
+         */
+        private int snapshotEvery = 1000;
+    }
+
+    @Data
+    public static class History {
+
+        /**
+         * Keep every committed price in a per-id series for as-of lookups.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Points kept per id, the oldest are dropped first.
+         */
+        private int maxPointsPerId = 1000;
+
+        /**
+         * Points with an older asOf are dropped, unset keeps them regardless of age.
+         */
+        private Duration maxAge;
+
+        /**
+         * Superseded records a batch keeps for the history, the ones past it are dropped.
+         */
+        private long maxSupersededPerBatch = 1_000_000;
+    }
+
+    @Data
+    public static class Batches {
+
+        /**
+         * Finished batches are dropped from memory this long after they ended.
+         */
+        private Duration retention = Duration.ofHours(1);
+
+        /**
+         * Finished batches kept in memory at most, the oldest are dropped first.
+         */
+        private int maxFinished = 10_000;
+
+        /**
+         * Keep dropped batches in a fixed-size ring file, so their status can still be queried.
+         */
+        private boolean archive = false;
+
+        private Path archiveFile = Path.of("data/batches.ring");
+
+        /**
+         * Batches held by the ring file, the oldest are overwritten.
+         */
+        private int archiveCapacity = 100_000;
+    }
+
+    @Data
+    public static class Admission {
+
+        /**
+         * Staging memory all running batches may hold together. A batch is
+         * charged its estimated staging size, at most the whole budget.
+         */
+        private DataSize memoryBudget = DataSize.ofMegabytes(512);
+
+        private int maxConcurrentBatches = 4;
+
+        /**
+         * Batches waiting for admission, more are rejected right away.
+         */
+        private int maxQueuedBatches = 64;
+
+        /**
+         * Longest a batch waits for admission before it is rejected.
+         */
+        private Duration queueTimeout = Duration.ofSeconds(30);
+
+        /**
+         * Charged to streamed uploads and sessions of unknown size.
+         */
+        private DataSize streamReservation = DataSize.ofMegabytes(64);
+
+        /**
+         * A chunked session receiving no chunk for this long is cancelled and gives its admission back.
+         */
+        private Duration sessionIdleTimeout = Duration.ofMinutes(5);
+    }
+
+    @Data
+    public static class Commit {
+
+        /**
+         * Longest a ready batch waits for other batches sealing their staging
+         * to share its store commit. 0 only groups the batches that queued behind a commit.
+         */
+        private Duration groupWindow = Duration.ofMillis(1);
+
+        /**
+         * Batches committed together at most.
+         */
+        private int maxGroupSize = 16;
+    }
+
+    @Data
+    public static class Staging {
+
+        /**
+         * Estimated staging size past which a batch moves its records to sorted
+         * run files and merges them back on commit.
+         */
+        private DataSize spillThreshold = DataSize.ofMegabytes(256);
+
+        /**
+         * Where run files are created, in a directory of the process, unset
+         * for the system temp directory.
+         */
+        private Path spillDirectory;
+    }
+
+    @Data
+    public static class Latest {
+
+        /**
+         * Heap the JSON of latest prices may take in the cache, entries past it are evicted.
+         */
+        private DataSize cacheSize = DataSize.ofMegabytes(64);
+    }
+
+    @Data
+    public static class Replication {
+
+        /**
+         * PRIMARY streams every commit to its followers, FOLLOWER applies the
+         * stream of a primary to its own store and serves reads only.
+         */
+        private ReplicationRole role = ReplicationRole.NONE;
+
+        /**
+         * PRIMARY: local address followers connect to. The stream is neither
+         * authenticated nor encrypted, listen beyond loopback only on a
+         * network firewalled off from anything but the followers.
+         */
+        private String bindAddress = "127.0.0.1";
+
+        /**
+         * PRIMARY: port followers connect to, 0 for any free port.
+         */
+        private int port = 7070;
+
+        /**
+         * FOLLOWER: host and port of the primary.
+         */
+        private String primary = "localhost:7070";
+
+        /**
+         * PRIMARY: commits kept for followers catching up, a follower further
+         * behind gets a full snapshot.
+         */
+        private int logVersions = 1024;
+
+        private DataSize logSize = DataSize.ofMegabytes(64);
+
+        /**
+         * PRIMARY: commits queued per follower, a slower follower is
+         * disconnected and catches up when it reconnects.
+         */
+        private int maxPending = 1024;
+
+        /**
+         * Sent by an idle primary, a follower hearing nothing for three of them reconnects.
+         */
+        private Duration heartbeat = Duration.ofSeconds(1);
+
+        /**
+         * FOLLOWER: pause before connecting again to the primary.
+         */
+        private Duration retryInterval = Duration.ofSeconds(1);
+
+        /**
+         * FOLLOWER: longest frame accepted from the primary, under 2GB. A
+         * longer commit is skipped for a snapshot, sent in smaller frames.
+         */
+        private DataSize maxFrameSize = DataSize.ofMegabytes(256);
+    }
+
+    public enum FsyncPolicy {
+        PER_COMMIT,
+        GROUPED,
+        NONE
+    }
+
+    public enum ReplicationRole {
+        NONE,
+        PRIMARY,
+        FOLLOWER
+    }
+
+    public enum StoreMode {
+        DENSE,
+        HEAP,
+        OFF_HEAP
+    }
+}
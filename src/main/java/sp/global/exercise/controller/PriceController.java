@@ -1,16 +1,36 @@
 package sp.global.exercise.controller;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import sp.global.exercise.ingest.IdListReader;
+import sp.global.exercise.ingest.PriceBlockReader;
+import sp.global.exercise.ingest.PriceRecordReader;
 import sp.global.exercise.model.BatchInfo;
+import sp.global.exercise.model.BatchPage;
+import sp.global.exercise.model.BatchStatus;
 import sp.global.exercise.model.PriceRecord;
 import sp.global.exercise.model.UploadRequest;
+import sp.global.exercise.service.AdmissionRejectedException;
+import sp.global.exercise.service.BatchListener;
+import sp.global.exercise.service.LatestJson;
 import sp.global.exercise.service.PriceService;
+import sp.global.exercise.service.ReadOnlyReplicaException;
+import tools.jackson.core.JacksonException;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 @RestController
@@ -19,7 +39,16 @@ import java.util.UUID;
 @Slf4j
 public class PriceController {
 
+    // Longest a batch event stream stays open, the client reconnects if its batches are still running
+    private static final Duration EVENTS_TIMEOUT = Duration.ofMinutes(10);
+    // Longest a price feed stays open, the client reconnects and reads /latest again
+    private static final Duration FEED_TIMEOUT = Duration.ofMinutes(30);
+    private static final int MAX_PAGE_SIZE = 1000;
+
     private final PriceService service;
+    private final List<PriceRecordReader> readers;
+    private final List<PriceBlockReader> blockReaders;
+    private final IdListReader idReader;
 
     /**
      * This API will break the data into chunks and upload the data async.
@@ -33,6 +62,73 @@ public class PriceController {
         try {
             UUID batchId = service.uploadAll(request);
             return ResponseEntity.ok(batchId);
+        } catch (AdmissionRejectedException e) {
+            return tooManyBatches(e);
+        } catch (ReadOnlyReplicaException e) {
+            return readOnly(e);
+        } catch (Exception e) {
+            log.error("Error while uploading data", e);
+            return ResponseEntity.status(500)
+                    .body(null);
+        }
+    }
+
+    /**
+     * This API will read the body as a stream of records instead of binding the whole UploadRequest.
+     * Records are handed to the workers in chunks while the body is parsed, so memory depends
+     * on the chunk size and not on the upload size.
+     * @param request raw request, body in the same format as /upload
+     * @return
+     */
+    @PostMapping("/upload/stream")
+    public ResponseEntity<UUID> uploadStream(HttpServletRequest request) {
+        try {
+            PriceRecordReader reader = readerFor(request.getContentType());
+            if (reader == null) {
+                return ResponseEntity.status(415).build();
+            }
+
+            UUID batchId = service.uploadStream(request.getInputStream(), reader);
+            return ResponseEntity.ok(batchId);
+        } catch (AdmissionRejectedException e) {
+            return tooManyBatches(e);
+        } catch (ReadOnlyReplicaException e) {
+            return readOnly(e);
+        } catch (IllegalArgumentException | JacksonException e) {
+            // Malformed body, the batch is marked failed
+            log.warn("Rejected streamed upload: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            log.error("Error while uploading data", e);
+            return ResponseEntity.status(500)
+                    .body(null);
+        }
+    }
+
+    /**
+     * This API will take a bulk upload as CSV (id,asOf,payload) or length prefixed binary records.
+     * The body is only cut into blocks on this thread, records are decoded by the workers.
+     * @param request raw request, text/csv or application/x-price-records
+     * @return
+     */
+    @PostMapping(value = "/upload", consumes = {"text/csv", "application/x-price-records"})
+    public ResponseEntity<UUID> uploadBulk(HttpServletRequest request) {
+        try {
+            PriceBlockReader reader = blockReaderFor(request.getContentType());
+            if (reader == null) {
+                return ResponseEntity.status(415).build();
+            }
+
+            UUID batchId = service.uploadBlocks(request.getInputStream(), reader);
+            return ResponseEntity.ok(batchId);
+        } catch (AdmissionRejectedException e) {
+            return tooManyBatches(e);
+        } catch (ReadOnlyReplicaException e) {
+            return readOnly(e);
+        } catch (IllegalArgumentException e) {
+            // Truncated or malformed body, the batch is marked failed
+            log.warn("Rejected bulk upload: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
         } catch (Exception e) {
             log.error("Error while uploading data", e);
             return ResponseEntity.status(500)
@@ -57,22 +153,141 @@ public class PriceController {
     }
 
     /**
-     * This API will retrieve the latest prices
+     * This API will retrieve the latest prices.
+     * The JSON of each price is cached until a newer price is committed, the response only concatenates it.
+     * The ETag is the store epoch and version the prices are current at. Sent back as If-None-Match, or as sinceVersion,
+     * only the ids changed after that version are returned, and 304 if none of them changed. The epoch changes when
+     * versions start over, on restart or when a follower's store is replaced, an ETag of another epoch gets every id.
      * @param ids
+     * @param sinceVersion store version the client already has, takes precedence over If-None-Match
+     * @param ifNoneMatch ETag of a previous response
      * @return
      */
-    @PostMapping("/latest")
-    public ResponseEntity<Map<String, PriceRecord>> latest(@RequestBody List<String> ids) {
+    @PostMapping(value = "/latest", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<byte[]> latest(@RequestBody List<String> ids,
+                                         @RequestParam(required = false) Long sinceVersion,
+                                         @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
         try {
-            Map<String, PriceRecord> prices = service.getLatest(ids);
+            Long since = sinceVersion != null ? sinceVersion : versionOf(ifNoneMatch, service.getStoreEpoch());
+            if (since == null) {
+                // Read before the prices, which are at least as new
+                long epoch = service.getStoreEpoch();
+                long version = service.getStoreVersion();
+                return latestBody(service.getLatestJson(ids), epoch, version);
+            }
+
+            LatestJson latest = service.getLatestJsonSince(ids, since);
+            if (latest.members().isEmpty()) {
+                return ResponseEntity.status(304).eTag(eTag(latest.epoch(), latest.version())).build();
+            }
+            return latestBody(latest.members(), latest.epoch(), latest.version());
+        } catch (Exception e) {
+            log.error("Error while fetching price", e);
+            return ResponseEntity.status(500)
+                    .body(null);
+        }
+    }
+
+    private static ResponseEntity<byte[]> latestBody(List<byte[]> members, long epoch, long version) {
+        if (members.isEmpty()) {
+            // No data available (e.g., batch still in progress)
+            return ResponseEntity.noContent().eTag(eTag(epoch, version)).build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .eTag(eTag(epoch, version))
+                .body(jsonObject(members));
+    }
+
+    private static String eTag(long epoch, long version) {
+        return "\"" + Long.toHexString(epoch) + "-" + version + "\"";
+    }
+
+    /**
+     * Version of the first store ETag of the epoch in an If-None-Match header, null if there is none.
+     */
+    private static Long versionOf(String ifNoneMatch, long epoch) {
+        if (ifNoneMatch == null) {
+            return null;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            String value = tag.strip();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            int dash = value.lastIndexOf('-');
+            if (value.length() > 2 && value.startsWith("\"") && value.endsWith("\"") && dash > 1) {
+                try {
+                    // Versions of another epoch say nothing about this store
+                    if (Long.parseUnsignedLong(value.substring(1, dash), 16) == epoch) {
+                        return Long.parseLong(value.substring(dash + 1, value.length() - 1));
+                    }
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This API will stream the latest prices as NDJSON, one line per id found, while the ids are read.
+     * Nothing is collected in between, so memory does not depend on the number of ids.
+     * @param request ids as a JSON array, or one per line for text/plain and application/x-ndjson
+     * @param response
+     */
+    @PostMapping("/latest/stream")
+    public void latestStream(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        try {
+            MediaType contentType = request.getContentType() == null ? null : MediaType.parseMediaType(request.getContentType());
+            if (!idReader.supports(contentType)) {
+                response.setStatus(415);
+                return;
+            }
+
+            response.setContentType("application/x-ndjson");
+            var prices = service.streamLatest(response.getOutputStream());
+            idReader.read(request.getInputStream(), contentType, prices);
+            prices.finish();
+        } catch (UncheckedIOException e) {
+            // Client went away, nothing left to answer
+            log.debug("Latest price stream aborted: {}", e.getMessage());
+        } catch (IllegalArgumentException | JacksonException e) {
+            log.warn("Rejected latest price stream: {}", e.getMessage());
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(400);
+            }
+        } catch (Exception e) {
+            log.error("Error while streaming prices", e);
+            if (!response.isCommitted()) {
+                response.reset();
+                response.setStatus(500);
+            }
+        }
+    }
+
+    /**
+     * This API will retrieve the prices as they were at the given time, from the price history.
+     * Returns 501 when history is not enabled.
+     * @param at ISO-8601 instant
+     * @param ids
+     * @return
+     */
+    @PostMapping("/asof")
+    public ResponseEntity<Map<String, PriceRecord>> asOf(@RequestParam Instant at, @RequestBody List<String> ids) {
+        try {
+            Map<String, PriceRecord> prices = service.getAsOf(ids, at);
             if (prices.isEmpty()) {
-                // No data available (e.g., batch still in progress)
                 return ResponseEntity.noContent().build();
             }
 
             return ResponseEntity.ok(prices);
+        } catch (IllegalStateException e) {
+            // History mode is off
+            return ResponseEntity.status(501).build();
         } catch (Exception e) {
-            log.error("Error while fetching price", e);
+            log.error("Error while fetching historical price", e);
             return ResponseEntity.status(500)
                     .body(null);
         }
@@ -101,5 +316,236 @@ public class PriceController {
         }
     }
 
-}
+    /**
+     * This API will list the batches newest first, one page at a time, including finished batches
+     * that left memory when the archive is enabled. Pass the {@code next} of a page as {@code before} to get the following one.
+     * @param status only batches with this status
+     * @param before cursor from the previous page
+     * @param since stop at batches that started, or ended, before this instant
+     * @param limit page size, up to 1000
+     * @return
+     */
+    @GetMapping("/batches")
+    public ResponseEntity<BatchPage> batches(@RequestParam(required = false) BatchStatus status,
+                                             @RequestParam(required = false) Long before,
+                                             @RequestParam(required = false) Instant since,
+                                             @RequestParam(defaultValue = "50") int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            return ResponseEntity.ok(service.listBatches(status, before, since, limit));
+        } catch (Exception e) {
+            log.error("Error while listing batches", e);
+            return ResponseEntity.status(500).build();
+        }
+    }
 
+    /**
+     * This API will push the progress of the batches as Server-Sent Events until all of them are over,
+     * instead of the client polling the status. Each event is a BatchInfo, sent when the batch starts being watched,
+     * at most every few hundred millis while records are processed, and on its terminal status.
+     * An open stream holds no thread while its batches are idle.
+     * @param ids batches to watch
+     * @return
+     */
+    @GetMapping(value = "/batch/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> batchEvents(@RequestParam List<UUID> ids) {
+        try {
+            SseEmitter emitter = new SseEmitter(EVENTS_TIMEOUT.toMillis());
+            Runnable stop = service.watchBatches(ids, new BatchListener() {
+                @Override
+                public void update(BatchInfo info) {
+                    try {
+                        emitter.send(SseEmitter.event()
+                                .name(info.status().name())
+                                .id(info.batchId().toString())
+                                .data(info, MediaType.APPLICATION_JSON));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                @Override
+                public void finished() {
+                    emitter.complete();
+                }
+            });
+            emitter.onCompletion(stop);
+            emitter.onTimeout(stop);
+            emitter.onError(e -> stop.run());
+            return ResponseEntity.ok(emitter);
+        } catch (IllegalArgumentException e) {
+            // Batch not found
+            return ResponseEntity.notFound().build();
+        } catch (Exception e) {
+            log.error("Error while watching batches", e);
+            return ResponseEntity.status(500).build();
+        }
+    }
+
+    /**
+     * This API will push the prices changed by each commit as Server-Sent Events, instead of the client polling /latest.
+     * A commit sends one event with the store version and the requested ids it changed, commits changing none of them
+     * send nothing. Without ids every change is pushed. A client too slow to keep up is disconnected.
+     * @param ids ids to follow, all of them when absent
+     * @return
+     */
+    @GetMapping(value = "/feed", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> feed(@RequestParam(required = false) Set<String> ids) {
+        if (ids != null && ids.isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            SseEmitter emitter = new SseEmitter(FEED_TIMEOUT.toMillis());
+            Runnable stop = service.subscribePrices(ids, update -> {
+                try {
+                    emitter.send(SseEmitter.event()
+                            .name("prices")
+                            .id(Long.toString(update.version()))
+                            .data(update, MediaType.APPLICATION_JSON));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            emitter.onCompletion(stop);
+            emitter.onTimeout(stop);
+            emitter.onError(e -> stop.run());
+            return ResponseEntity.ok(emitter);
+        } catch (Exception e) {
+            log.error("Error while subscribing to prices", e);
+            return ResponseEntity.status(500).build();
+        }
+    }
+
+    /**
+     * This API will return the version of the live store, incremented by every commit.
+     * @return
+     */
+    @GetMapping("/version")
+    public ResponseEntity<Long> version() {
+        try {
+            return ResponseEntity.ok(service.getStoreVersion());
+        } catch (Exception e) {
+            log.error("Error while fetching store version", e);
+            return ResponseEntity.status(500).build();
+        }
+    }
+
+    /**
+     * This API will open a batch that is uploaded in several chunks.
+     * Nothing is visible in latest prices until the batch is completed.
+     * @param expectedRecords optional total, only used for the completion %
+     * @return
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<UUID> startBatch(@RequestParam(required = false) Integer expectedRecords) {
+        try {
+            return ResponseEntity.ok(service.startBatch(expectedRecords));
+        } catch (AdmissionRejectedException e) {
+            return tooManyBatches(e);
+        } catch (ReadOnlyReplicaException e) {
+            return readOnly(e);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (Exception e) {
+            log.error("Error while starting batch", e);
+            return ResponseEntity.status(500).build();
+        }
+    }
+
+    /**
+     * This API will merge one chunk into the staging of an open batch.
+     * @param batchId
+     * @param request
+     * @return
+     */
+    @PostMapping("/batch/{batchId}/chunk")
+    public ResponseEntity<BatchInfo> uploadChunk(@PathVariable UUID batchId, @RequestBody UploadRequest request) {
+        try {
+            return ResponseEntity.ok(service.uploadChunk(batchId, request.prices()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalStateException e) {
+            // Batch already completed or cancelled
+            return ResponseEntity.status(409).build();
+        } catch (Exception e) {
+            log.error("Error while uploading chunk", e);
+            return ResponseEntity.status(500).build();
+        }
+    }
+
+    /**
+     * This API will commit all chunks of the batch atomically.
+     * @param batchId
+     * @return
+     */
+    @PostMapping("/batch/{batchId}/complete")
+    public ResponseEntity<BatchInfo> completeBatch(@PathVariable UUID batchId) {
+        try {
+            return ResponseEntity.ok(service.completeBatch(batchId));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(409).build();
+        } catch (Exception e) {
+            log.error("Error while completing batch", e);
+            return ResponseEntity.status(500).build();
+        }
+    }
+
+    /**
+     * 429 telling the client when to come back, the body of an upload is not read.
+     */
+    private static <T> ResponseEntity<T> tooManyBatches(AdmissionRejectedException e) {
+        log.warn("Rejected batch: {}", e.getMessage());
+        return ResponseEntity.status(429)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfter().toSeconds()))
+                .build();
+    }
+
+    /**
+     * 403 from a replication follower, batches go to the primary.
+     */
+    private static <T> ResponseEntity<T> readOnly(ReadOnlyReplicaException e) {
+        log.warn("Rejected batch: {}", e.getMessage());
+        return ResponseEntity.status(403).build();
+    }
+
+    private static byte[] jsonObject(List<byte[]> members) {
+        int length = 2 + members.size() - 1;
+        for (var member : members) {
+            length += member.length;
+        }
+
+        byte[] body = new byte[length];
+        body[0] = '{';
+        int pos = 1;
+        for (var member : members) {
+            if (pos > 1) {
+                body[pos++] = ',';
+            }
+            System.arraycopy(member, 0, body, pos, member.length);
+            pos += member.length;
+        }
+        body[pos] = '}';
+        return body;
+    }
+
+    private PriceRecordReader readerFor(String contentType) {
+        MediaType mediaType = contentType == null ? null : MediaType.parseMediaType(contentType);
+        return readers.stream()
+                .filter(reader -> reader.supports(mediaType))
+                .findFirst()
+                .orElse(null);
+    }
+
+    private PriceBlockReader blockReaderFor(String contentType) {
+        MediaType mediaType = contentType == null ? null : MediaType.parseMediaType(contentType);
+        return blockReaders.stream()
+                .filter(reader -> reader.supports(mediaType))
+                .findFirst()
+                .orElse(null);
+    }
+
+}
@@ -0,0 +1,87 @@
+package sp.global.exercise.ingest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.persistence.RecordCodec;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Length prefixed records, {@code [int length][record]} where the record
+ * uses the same layout as the commit log (see {@link RecordCodec}).
+ * Blocks are framed from the prefixes alone, without decoding anything.
+ */
+@Component
+public class BinaryPriceRecordReader extends FramedBlockReader {
+
+    public static final MediaType MEDIA_TYPE = MediaType.parseMediaType("application/x-price-records");
+
+    private final RecordCodec codec;
+
+    @Autowired
+    public BinaryPriceRecordReader(JsonMapper mapper) {
+        this(new RecordCodec(mapper), DEFAULT_BLOCK_SIZE);
+    }
+
+    BinaryPriceRecordReader(RecordCodec codec, int blockSize) {
+        super(blockSize);
+        this.codec = codec;
+    }
+
+    @Override
+    public boolean supports(MediaType contentType) {
+        return contentType != null && MEDIA_TYPE.isCompatibleWith(contentType);
+    }
+
+    @Override
+    Frame frame(byte[] bytes, int from, int to) {
+        int pos = from;
+        int records = 0;
+        while (to - pos >= Integer.BYTES) {
+            int length = length(bytes, pos);
+            if (to - pos - Integer.BYTES < length) {
+                break;
+            }
+            pos += Integer.BYTES + length;
+            records++;
+        }
+        return new Frame(pos, records);
+    }
+
+    @Override
+    Frame frameLast(byte[] bytes, int from, int to) {
+        Frame frame = frame(bytes, from, to);
+        if (frame.end() != to) {
+            throw new IllegalArgumentException("Truncated price record at the end of the body");
+        }
+        return frame;
+    }
+
+    @Override
+    public void decode(ByteBuffer block, Consumer<PriceRecord> sink) {
+        ByteBuffer in = block.duplicate();
+        while (in.hasRemaining()) {
+            int length = in.getInt();
+            int end = in.position() + length;
+
+            // The codec reads from a view bounded to the record
+            sink.accept(codec.read(in.slice(in.position(), length)));
+            in.position(end);
+        }
+    }
+
+    private static int length(byte[] bytes, int pos) {
+        int length = (bytes[pos] & 0xFF) << 24
+                | (bytes[pos + 1] & 0xFF) << 16
+                | (bytes[pos + 2] & 0xFF) << 8
+                | (bytes[pos + 3] & 0xFF);
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative price record length " + length);
+        }
+        return length;
+    }
+}
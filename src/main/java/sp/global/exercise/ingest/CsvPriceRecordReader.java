@@ -0,0 +1,170 @@
+package sp.global.exercise.ingest;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import sp.global.exercise.model.PriceRecord;
+import tools.jackson.core.JacksonException;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.function.Consumer;
+
+/**
+ * CSV lines {@code id,asOf,payload}, with an optional {@code id,...} header.
+ * asOf is either ISO-8601 or epoch millis. The payload takes the rest of the
+ * line, may be quoted, and is read as JSON when it looks like JSON. One
+ * record per line, quoted payloads cannot span lines.
+ * Fields are cut directly from the block bytes, only id and payload become objects.
+ */
+@Component
+public class CsvPriceRecordReader extends FramedBlockReader {
+
+    private static final byte[] HEADER = "id,".getBytes(StandardCharsets.US_ASCII);
+
+    private final JsonMapper mapper;
+
+    @Autowired
+    public CsvPriceRecordReader(JsonMapper mapper) {
+        this(mapper, DEFAULT_BLOCK_SIZE);
+    }
+
+    CsvPriceRecordReader(JsonMapper mapper, int blockSize) {
+        super(blockSize);
+        this.mapper = mapper;
+    }
+
+    @Override
+    public boolean supports(MediaType contentType) {
+        return contentType != null && new MediaType("text", "csv").isCompatibleWith(contentType);
+    }
+
+    @Override
+    int preamble(byte[] bytes, int length) {
+        if (length < HEADER.length) {
+            return 0;
+        }
+        for (int i = 0; i < HEADER.length; i++) {
+            if (bytes[i] != HEADER[i]) {
+                return 0;
+            }
+        }
+        int newline = indexOf(bytes, (byte) '\n', 0, length);
+        return newline < 0 ? length : newline + 1;
+    }
+
+    @Override
+    Frame frame(byte[] bytes, int from, int to) {
+        int end = from;
+        int records = 0;
+        int newline;
+        while ((newline = indexOf(bytes, (byte) '\n', end, to)) >= 0) {
+            if (newline > end) {
+                records++;
+            }
+            end = newline + 1;
+        }
+        return new Frame(end, records);
+    }
+
+    @Override
+    Frame frameLast(byte[] bytes, int from, int to) {
+        Frame frame = frame(bytes, from, to);
+        // Last line without a trailing newline
+        if (frame.end() < to) {
+            return new Frame(to, frame.records() + 1);
+        }
+        return frame;
+    }
+
+    @Override
+    public void decode(ByteBuffer block, Consumer<PriceRecord> sink) {
+        byte[] bytes = block.array();
+        int pos = block.arrayOffset() + block.position();
+        int end = block.arrayOffset() + block.limit();
+
+        while (pos < end) {
+            int newline = indexOf(bytes, (byte) '\n', pos, end);
+            int lineEnd = newline < 0 ? end : newline;
+            int next = lineEnd + 1;
+
+            if (lineEnd > pos && bytes[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            if (lineEnd > pos) {
+                sink.accept(parseLine(bytes, pos, lineEnd));
+            }
+            pos = next;
+        }
+    }
+
+    private PriceRecord parseLine(byte[] bytes, int from, int to) {
+        int idEnd = indexOf(bytes, (byte) ',', from, to);
+        int asOfEnd = idEnd < 0 ? -1 : indexOf(bytes, (byte) ',', idEnd + 1, to);
+        if (asOfEnd < 0) {
+            throw new IllegalArgumentException("Expected id,asOf,payload but got: " + text(bytes, from, to));
+        }
+
+        String id = text(bytes, from, idEnd).trim();
+        Instant asOf = asOf(text(bytes, idEnd + 1, asOfEnd).trim());
+        return new PriceRecord(id, asOf, payload(bytes, asOfEnd + 1, to));
+    }
+
+    private static Instant asOf(String value) {
+        try {
+            if (!value.isEmpty() && value.chars().allMatch(Character::isDigit)) {
+                return Instant.ofEpochMilli(Long.parseLong(value));
+            }
+            return Instant.parse(value);
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid asOf: " + value);
+        }
+    }
+
+    private Object payload(byte[] bytes, int from, int to) {
+        if (from == to) {
+            return null;
+        }
+        if (bytes[from] == '"' && to - from >= 2 && bytes[to - 1] == '"') {
+            // CSV quoting, doubled quotes stand for one
+            String unquoted = text(bytes, from + 1, to - 1).replace("\"\"", "\"");
+            if (unquoted.isEmpty() || !looksLikeJson(unquoted.charAt(0))) {
+                return unquoted;
+            }
+            byte[] json = unquoted.getBytes(StandardCharsets.UTF_8);
+            return json(json, 0, json.length, unquoted);
+        }
+        return looksLikeJson(bytes[from])
+                ? json(bytes, from, to - from, null)
+                : text(bytes, from, to);
+    }
+
+    private Object json(byte[] bytes, int offset, int length, String text) {
+        try {
+            return mapper.readValue(bytes, offset, length, Object.class);
+        } catch (JacksonException e) {
+            // Not JSON after all, keep the raw text
+            return text != null ? text : new String(bytes, offset, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static boolean looksLikeJson(int first) {
+        return first == '{' || first == '[' || first == '-' || (first >= '0' && first <= '9');
+    }
+
+    private static String text(byte[] bytes, int from, int to) {
+        return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte[] bytes, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
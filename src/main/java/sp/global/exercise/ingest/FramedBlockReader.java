@@ -0,0 +1,92 @@
+package sp.global.exercise.ingest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Block splitting shared by the bulk formats. The body is read into a
+ * fixed size buffer which is handed over as a block up to its last record
+ * boundary, only the partial record at the end is copied into the next buffer.
+ */
+abstract class FramedBlockReader implements PriceBlockReader {
+
+    static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    private final int blockSize;
+
+    FramedBlockReader(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Whole records found at the start of a buffer.
+     *
+     * @param end     offset just after the last whole record
+     * @param records number of records before {@code end}
+     */
+    record Frame(int end, int records) {
+    }
+
+    /**
+     * Finds the whole records in {@code bytes[from, to)}.
+     */
+    abstract Frame frame(byte[] bytes, int from, int to);
+
+    /**
+     * Frames what is left once the stream is exhausted, must consume all of it.
+     */
+    abstract Frame frameLast(byte[] bytes, int from, int to);
+
+    /**
+     * Bytes to skip before the first record, e.g. a header line.
+     */
+    int preamble(byte[] bytes, int length) {
+        return 0;
+    }
+
+    @Override
+    public void split(InputStream in, Consumer<RecordBlock> sink) throws IOException {
+        byte[] buffer = new byte[blockSize];
+        int start = -1;
+        int filled = 0;
+
+        int read;
+        while ((read = in.readNBytes(buffer, filled, buffer.length - filled)) > 0) {
+            filled += read;
+            if (filled < buffer.length) {
+                // Stream exhausted, the rest is framed below
+                break;
+            }
+            if (start < 0) {
+                start = preamble(buffer, filled);
+            }
+
+            Frame frame = frame(buffer, start, filled);
+            if (frame.records() == 0) {
+                // A single record is larger than the block, grow the buffer
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                continue;
+            }
+            sink.accept(new RecordBlock(ByteBuffer.wrap(buffer, start, frame.end() - start), frame.records()));
+
+            // The block now belongs to the sink, carry the partial record over
+            int tail = filled - frame.end();
+            byte[] next = new byte[Math.max(blockSize, tail * 2)];
+            System.arraycopy(buffer, frame.end(), next, 0, tail);
+            buffer = next;
+            start = 0;
+            filled = tail;
+        }
+
+        if (start < 0) {
+            start = preamble(buffer, filled);
+        }
+        Frame last = frameLast(buffer, start, filled);
+        if (last.records() > 0) {
+            sink.accept(new RecordBlock(ByteBuffer.wrap(buffer, start, last.end() - start), last.records()));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package sp.global.exercise.ingest;
+
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import tools.jackson.core.JsonParser;
+import tools.jackson.core.JsonToken;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Reads a list of instrument ids one by one, either as a JSON array of
+ * strings or as plain text with one id per line, so a large lookup never
+ * has to be bound into a list.
+ */
+@Component
+public class IdListReader {
+
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+    private final JsonMapper mapper;
+
+    public IdListReader(JsonMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    public boolean supports(MediaType contentType) {
+        return isJson(contentType) || isLines(contentType);
+    }
+
+    public void read(InputStream in, MediaType contentType, Consumer<String> sink) throws IOException {
+        if (isLines(contentType)) {
+            readLines(in, sink);
+        } else {
+            readArray(in, sink);
+        }
+    }
+
+    private void readArray(InputStream in, Consumer<String> sink) {
+        try (JsonParser parser = mapper.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IllegalArgumentException("Expected a JSON array of ids");
+            }
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.VALUE_STRING) {
+                sink.accept(parser.getString());
+            }
+            if (token != JsonToken.END_ARRAY) {
+                throw new IllegalArgumentException("Expected a JSON array of ids");
+            }
+        }
+    }
+
+    private static void readLines(InputStream in, Consumer<String> sink) throws IOException {
+        var reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String id = line.strip();
+            if (!id.isEmpty()) {
+                sink.accept(id);
+            }
+        }
+    }
+
+    private static boolean isJson(MediaType contentType) {
+        return contentType == null || MediaType.APPLICATION_JSON.isCompatibleWith(contentType);
+    }
+
+    private static boolean isLines(MediaType contentType) {
+        return contentType != null
+                && (MediaType.TEXT_PLAIN.isCompatibleWith(contentType) || NDJSON.isCompatibleWith(contentType));
+    }
+}
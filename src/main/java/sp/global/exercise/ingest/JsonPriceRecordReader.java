@@ -0,0 +1,76 @@
+package sp.global.exercise.ingest;
+
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import sp.global.exercise.model.PriceRecord;
+import tools.jackson.core.JsonParser;
+import tools.jackson.core.JsonToken;
+import tools.jackson.databind.DeserializationFeature;
+import tools.jackson.databind.ObjectReader;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+/**
+ * Token stream reader for the same JSON accepted by /prices/upload:
+ * either {"prices": [...]} or a bare array of records.
+ * Only one record is bound at a time.
+ */
+@Component
+public class JsonPriceRecordReader implements PriceRecordReader {
+
+    private static final String PRICES_FIELD = "prices";
+
+    private final JsonMapper mapper;
+
+    // Binds one record at a time, the parser is positioned on the next one afterwards
+    private final ObjectReader recordReader;
+
+    public JsonPriceRecordReader(JsonMapper mapper) {
+        this.mapper = mapper;
+        this.recordReader = mapper.readerFor(PriceRecord.class)
+                .without(DeserializationFeature.FAIL_ON_TRAILING_TOKENS);
+    }
+
+    @Override
+    public boolean supports(MediaType contentType) {
+        return contentType == null || MediaType.APPLICATION_JSON.isCompatibleWith(contentType);
+    }
+
+    @Override
+    public void read(InputStream in, Consumer<PriceRecord> sink) {
+        try (JsonParser parser = mapper.createParser(in)) {
+            JsonToken token = parser.nextToken();
+
+            if (token == JsonToken.START_ARRAY) {
+                readArray(parser, sink);
+                return;
+            }
+            if (token != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("Expected a JSON object or array");
+            }
+
+            while (parser.nextToken() == JsonToken.PROPERTY_NAME) {
+                String name = parser.currentName();
+                token = parser.nextToken();
+
+                if (PRICES_FIELD.equals(name) && token == JsonToken.START_ARRAY) {
+                    readArray(parser, sink);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private void readArray(JsonParser parser, Consumer<PriceRecord> sink) {
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+            sink.accept(recordReader.readValue(parser));
+        }
+        if (token != JsonToken.END_ARRAY) {
+            throw new IllegalArgumentException("Expected an array of price records");
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package sp.global.exercise.ingest;
+
+import org.springframework.http.MediaType;
+import sp.global.exercise.model.PriceRecord;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Reads a bulk upload in two steps: the request thread only cuts the body
+ * into blocks of whole records, and the workers decode the blocks. Records
+ * are decoded straight from the block bytes, the body is never copied into
+ * intermediate objects.
+ */
+public interface PriceBlockReader {
+
+    boolean supports(MediaType contentType);
+
+    /**
+     * Cuts the stream into blocks on record boundaries. The sink owns each
+     * block, the reader never writes to it again.
+     */
+    void split(InputStream in, Consumer<RecordBlock> sink) throws IOException;
+
+    /**
+     * Decodes the records of one block in order.
+     */
+    void decode(ByteBuffer block, Consumer<PriceRecord> sink);
+}
@@ -0,0 +1,22 @@
+package sp.global.exercise.ingest;
+
+import org.springframework.http.MediaType;
+import sp.global.exercise.model.PriceRecord;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+/**
+ * Reads price records one by one from a raw request body, so an upload
+ * never has to be bound into memory as a whole.
+ */
+public interface PriceRecordReader {
+
+    boolean supports(MediaType contentType);
+
+    /**
+     * Parses the stream and hands each record to the sink as soon as it is read.
+     */
+    void read(InputStream in, Consumer<PriceRecord> sink) throws IOException;
+}
@@ -0,0 +1,12 @@
+package sp.global.exercise.ingest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A slice of a bulk upload holding whole records only, still encoded.
+ *
+ * @param bytes   the encoded records, between position and limit
+ * @param records number of records in the slice
+ */
+public record RecordBlock(ByteBuffer bytes, int records) {
+}
@@ -0,0 +1,301 @@
+package sp.global.exercise.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import sp.global.exercise.model.BatchStatus;
+import sp.global.exercise.persistence.DurablePriceStore;
+import sp.global.exercise.store.OffHeapPriceStore;
+import sp.global.exercise.store.PriceHistory;
+import sp.global.exercise.store.PriceStore;
+import sp.global.exercise.store.VersionedPriceStore;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Meters of the price pipeline. Meters are registered once, so recording
+ * never goes through a registry lookup.
+ */
+public class PriceMetrics {
+
+    private final MeterRegistry registry;
+    private final Timer timeToCancel;
+    private final Timer timeToFail;
+    private final DistributionSummary stagingReleased;
+
+    private final Timer parseTime;
+    private final Timer mergeTime;
+    private final Timer commitTime;
+    private final DistributionSummary batchThroughput;
+    private final DistributionSummary stagingSize;
+    private final Counter staleStaged;
+    private final Counter staleCommitted;
+    private final Counter historyDropped;
+    private final DistributionSummary commitGroupSize;
+
+    private final Timer replicationDelay;
+    private final Counter replicationSnapshots;
+
+    private final Timer admissionWait;
+    private final Counter admissionRejected;
+
+    private final DistributionSummary lookupIds;
+    // One timer per lookup size bucket, see LOOKUP_SIZE_BOUNDS
+    private final Timer[] lookupTime;
+
+    private static final int[] LOOKUP_SIZE_BOUNDS = {10, 100, 1_000, 10_000};
+    private static final String[] LOOKUP_SIZE_TAGS = {"1-10", "11-100", "101-1000", "1001-10000", "10001+"};
+
+    public enum Phase {
+        PARSE,
+        MERGE,
+        COMMIT
+    }
+
+    public PriceMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.timeToCancel = Timer.builder("prices.batch.abort.latency")
+                .description("Time from cancel/timeout until the batch workers stopped")
+                .tag("status", BatchStatus.CANCELLED.name())
+                .register(registry);
+        this.timeToFail = Timer.builder("prices.batch.abort.latency")
+                .description("Time from cancel/timeout until the batch workers stopped")
+                .tag("status", BatchStatus.FAILED.name())
+                .register(registry);
+        this.stagingReleased = DistributionSummary.builder("prices.batch.abort.released")
+                .description("Staged records released when a batch was cancelled or failed")
+                .baseUnit("records")
+                .register(registry);
+
+        this.parseTime = phaseTimer(Phase.PARSE, "Reading a streamed or bulk body, workers merge meanwhile");
+        this.mergeTime = phaseTimer(Phase.MERGE, "Merging records into the staging: a whole batch, or one chunk of a session");
+        this.commitTime = phaseTimer(Phase.COMMIT, "Merging a staging into the live store, waiting for other commits included");
+        this.batchThroughput = DistributionSummary.builder("prices.batch.throughput")
+                .description("Records per second of completed batches, from start to commit")
+                .baseUnit("records/s")
+                .register(registry);
+        this.stagingSize = DistributionSummary.builder("prices.batch.staging.size")
+                .description("Distinct ids staged by a batch when it is committed")
+                .baseUnit("records")
+                .register(registry);
+        this.staleStaged = staleCounter("staging", "Records of a batch dropped because the batch had a newer asOf for the id");
+        this.staleCommitted = staleCounter("commit", "Staged records dropped because the live store had a newer asOf for the id");
+        this.historyDropped = Counter.builder("prices.history.dropped")
+                .description("Superseded records left out of the history because a batch kept its maximum")
+                .baseUnit("records")
+                .register(registry);
+        this.commitGroupSize = DistributionSummary.builder("prices.commit.group.size")
+                .description("Batches applied by one store commit")
+                .baseUnit("batches")
+                .register(registry);
+
+        this.replicationDelay = Timer.builder("prices.replication.delay")
+                .description("Time from a commit on the primary until a follower applied it")
+                .register(registry);
+        this.replicationSnapshots = Counter.builder("prices.replication.snapshots")
+                .description("Full snapshots a follower caught up from")
+                .register(registry);
+
+        this.admissionWait = Timer.builder("prices.admission.wait")
+                .description("Time a batch waited in the queue before it was admitted")
+                .register(registry);
+        this.admissionRejected = Counter.builder("prices.admission.rejected")
+                .description("Batches refused because the queue was full or the wait too long")
+                .register(registry);
+
+        this.lookupIds = DistributionSummary.builder("prices.latest.ids")
+                .description("Ids per latest price lookup")
+                .baseUnit("ids")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.lookupTime = new Timer[LOOKUP_SIZE_TAGS.length];
+        for (int i = 0; i < LOOKUP_SIZE_TAGS.length; i++) {
+            lookupTime[i] = Timer.builder("prices.latest.latency")
+                    .description("Latest price lookup time, by number of ids")
+                    .tag("size", LOOKUP_SIZE_TAGS[i])
+                    .register(registry);
+        }
+    }
+
+    private Timer phaseTimer(Phase phase, String description) {
+        return Timer.builder("prices.batch.phase")
+                .description(description)
+                .tag("phase", phase.name().toLowerCase())
+                .register(registry);
+    }
+
+    private Counter staleCounter(String stage, String description) {
+        return Counter.builder("prices.records.stale")
+                .description(description)
+                .tag("stage", stage)
+                .register(registry);
+    }
+
+    public void bindStore(PriceStore store) {
+        Gauge.builder("prices.store.size", store, live -> live.snapshot().size())
+                .description("Ids in the live store")
+                .register(registry);
+        Gauge.builder("prices.store.version", store, PriceStore::version)
+                .description("Version of the live store, incremented by every commit")
+                .register(registry);
+
+        if (store instanceof DurablePriceStore durable) {
+            Gauge.builder("prices.persistence.recovery.time", durable,
+                            recovered -> recovered.recoveryTime().toNanos() / 1e9)
+                    .description("Time spent rebuilding the live store from snapshot and log on startup")
+                    .baseUnit("seconds")
+                    .register(registry);
+            store = durable.delegate();
+        }
+        if (store instanceof VersionedPriceStore versioned) {
+            FunctionCounter.builder("prices.store.commit.retries", versioned, VersionedPriceStore::commitRetries)
+                    .description("Commits merged again because another commit won the snapshot CAS")
+                    .register(registry);
+        }
+        if (store instanceof OffHeapPriceStore offHeap) {
+            Gauge.builder("prices.store.offheap.bytes", offHeap, OffHeapPriceStore::offHeapBytes)
+                    .description("Direct memory held by the off-heap store arenas")
+                    .baseUnit("bytes")
+                    .register(registry);
+        }
+    }
+
+    public void bindHistory(PriceHistory history) {
+        Gauge.builder("prices.history.points", history, PriceHistory::points)
+                .description("Price points retained for as-of lookups")
+                .register(registry);
+        Gauge.builder("prices.history.bytes", history, PriceHistory::estimatedBytes)
+                .description("Estimated heap held by the price history, payloads excluded")
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("prices.history.point.bytes", history,
+                        retained -> retained.points() == 0 ? 0 : (double) retained.estimatedBytes() / retained.points())
+                .description("Estimated heap per retained price point, payloads excluded")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    public void bindActiveBatches(Supplier<Number> active) {
+        Gauge.builder("prices.batch.active", active)
+                .description("Batches still in progress")
+                .register(registry);
+    }
+
+    public void bindAdmission(Supplier<Number> queued, Supplier<Number> running, Supplier<Number> reservedBytes) {
+        Gauge.builder("prices.admission.queue", queued)
+                .description("Batches waiting for admission")
+                .register(registry);
+        Gauge.builder("prices.admission.running", running)
+                .description("Batches admitted and not finished yet")
+                .register(registry);
+        Gauge.builder("prices.admission.reserved", reservedBytes)
+                .description("Memory budget reserved by the admitted batches")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    public void bindTrackedBatches(Supplier<Number> tracked) {
+        Gauge.builder("prices.batch.tracked", tracked)
+                .description("Batches held in memory, in progress or finished within the retention")
+                .register(registry);
+    }
+
+    public void bindBatchWatchers(Supplier<Number> watchers) {
+        Gauge.builder("prices.batch.watchers", watchers)
+                .description("Open watches pushed batch progress")
+                .register(registry);
+    }
+
+    public void bindPriceSubscribers(Supplier<Number> subscribers) {
+        Gauge.builder("prices.feed.subscribers", subscribers)
+                .description("Open subscriptions pushed the prices changed by each commit")
+                .register(registry);
+    }
+
+    public void bindEncodedPrices(Supplier<Number> bytes) {
+        Gauge.builder("prices.latest.cache.bytes", bytes)
+                .description("Estimated heap held by the cached JSON of latest prices")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    public void bindReplicationFollowers(Supplier<Number> followers) {
+        Gauge.builder("prices.replication.followers", followers)
+                .description("Followers connected to this primary")
+                .register(registry);
+    }
+
+    public void bindReplicationLag(Supplier<Number> versions) {
+        Gauge.builder("prices.replication.lag", versions)
+                .description("Commits of the primary this follower has not applied yet")
+                .baseUnit("versions")
+                .register(registry);
+    }
+
+    public void replicationApplied(long delayNanos) {
+        replicationDelay.record(Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+    }
+
+    public void replicationRestored() {
+        replicationSnapshots.increment();
+    }
+
+    public void admissionWaited(long nanos) {
+        admissionWait.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void admissionRejected() {
+        admissionRejected.increment();
+    }
+
+    public void phase(Phase phase, long nanos) {
+        var timer = switch (phase) {
+            case PARSE -> parseTime;
+            case MERGE -> mergeTime;
+            case COMMIT -> commitTime;
+        };
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Staging figures of a committed batch, recorded once per batch and never per record.
+     */
+    public void stagingCommitted(int staged, long staleInStaging, long staleInStore) {
+        stagingSize.record(staged);
+        staleStaged.increment(staleInStaging);
+        staleCommitted.increment(staleInStore);
+    }
+
+    public void historyDropped(long records) {
+        historyDropped.increment(records);
+    }
+
+    public void groupCommitted(int batches) {
+        commitGroupSize.record(batches);
+    }
+
+    public void batchCompleted(int records, long nanos) {
+        batchThroughput.record(records * 1e9 / Math.max(1, nanos));
+    }
+
+    public void lookup(int ids, long nanos) {
+        lookupIds.record(ids);
+        int bucket = 0;
+        while (bucket < LOOKUP_SIZE_BOUNDS.length && ids > LOOKUP_SIZE_BOUNDS[bucket]) {
+            bucket++;
+        }
+        lookupTime[bucket].record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void batchAborted(BatchStatus status, long nanos) {
+        (status == BatchStatus.CANCELLED ? timeToCancel : timeToFail).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void stagingReleased(int records) {
+        stagingReleased.record(records);
+    }
+}
@@ -3,6 +3,11 @@ package sp.global.exercise.model;
 import java.time.Instant;
 import java.util.UUID;
 
+/**
+ * Status of a batch. Of the records processed, {@code acceptedCount} are
+ * kept for the commit, {@code staleCount} were not newer than the live
+ * price and {@code supersededCount} lost to a newer record of the batch.
+ */
 public record BatchInfo(
         UUID batchId,
         BatchStatus status,
@@ -10,6 +15,9 @@ public record BatchInfo(
         Instant completedAt,
         int recordCount,
         int processedCount,
+        int acceptedCount,
+        int staleCount,
+        int supersededCount,
         double progressPercent
 ) {}
 
@@ -0,0 +1,12 @@
+package sp.global.exercise.model;
+
+import java.util.List;
+
+/**
+ * One page of batches, newest first. {@code next} is passed as
+ * {@code before} to get the following page, null on the last one.
+ */
+public record BatchPage(
+        List<BatchInfo> batches,
+        Long next
+) {}
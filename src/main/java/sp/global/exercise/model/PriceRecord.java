@@ -6,5 +6,14 @@ public record PriceRecord(
         String id,
         Instant asOf,
         Object payload
-) {}
+) {
+
+    /**
+     * Merge rule of staging and live store: keep the newest price by asOf,
+     * the one already there wins a tie.
+     */
+    public static PriceRecord newest(PriceRecord oldVal, PriceRecord newVal) {
+        return newVal.asOf().isAfter(oldVal.asOf()) ? newVal : oldVal;
+    }
+}
 
@@ -0,0 +1,12 @@
+package sp.global.exercise.model;
+
+import java.util.List;
+
+/**
+ * Prices changed by one commit, as pushed to a subscriber: only the
+ * subscribed ids the commit changed, with the store version it published.
+ */
+public record PriceUpdate(
+        long version,
+        List<PriceRecord> prices
+) {}
@@ -0,0 +1,281 @@
+package sp.global.exercise.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+import sp.global.exercise.model.BatchInfo;
+import sp.global.exercise.model.BatchStatus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Finished batches dropped from memory, kept in a fixed-size ring file
+ * that is memory-mapped as a whole. Once the ring is full the oldest
+ * batch is overwritten, so the file never grows.
+ * <p>
+ * The file is {@code [long magic][int capacity][int unused]} followed by
+ * {@code capacity} slots of {@value #SLOT_BYTES} bytes:
+ * {@code [long sequence][long idHigh][long idLow][long startedAt][long completedAt]
+ * [int recordCount][int processedCount][int staleCount][int supersededCount]
+ * [byte status][3 unused][int crc32]},
+ * times in epoch nanos. Slots are written in sequence order, so the ring
+ * read from its oldest slot is sorted by sequence and a page is found by
+ * binary search. Looking up a single batch scans the ring, newest first.
+ * <p>
+ * Writes are left to the OS to flush: a batch lost on a crash is a status
+ * nobody can query any more, not a lost price. A slot torn by a crash fails
+ * its checksum and ends the ring when it is reopened.
+ */
+@Slf4j
+public class BatchArchive implements Closeable {
+
+    private static final long MAGIC = 0x5052494345424154L;
+    private static final int HEADER_BYTES = 16;
+    public static final int SLOT_BYTES = 64;
+    private static final int CHECKED_BYTES = SLOT_BYTES - Integer.BYTES;
+    private static final BatchStatus[] STATUSES = BatchStatus.values();
+
+    public record Entry(long sequence, BatchInfo info) {}
+
+    private final FileChannel channel;
+    private final MappedByteBuffer ring;
+    private final int capacity;
+    private final ByteBuffer slot = ByteBuffer.allocate(SLOT_BYTES);
+
+    // Slot of the next write, and number of slots holding a batch before it
+    private int next;
+    private int count;
+    private long lastSequence;
+
+    public BatchArchive(Path file, int capacity) throws IOException {
+        if (capacity < 1 || capacity > (Integer.MAX_VALUE - HEADER_BYTES) / SLOT_BYTES) {
+            throw new IllegalArgumentException("capacity must be positive and the ring below 2GB");
+        }
+        this.capacity = capacity;
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long size = HEADER_BYTES + (long) capacity * SLOT_BYTES;
+        boolean reuse = channel.size() == size && readHeader();
+        if (!reuse) {
+            if (channel.size() > 0) {
+                log.warn("Discarding batch archive {}, it does not hold {} batches", file, capacity);
+            }
+            channel.truncate(0);
+        }
+        this.ring = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (reuse) {
+            recover();
+        } else {
+            ring.putLong(0, MAGIC).putInt(Long.BYTES, capacity);
+        }
+    }
+
+    /**
+     * Writes a finished batch over the oldest one once the ring is full.
+     * @param sequence greater than every sequence appended before
+     */
+    public synchronized void append(long sequence, BatchInfo info) {
+        if (sequence <= lastSequence) {
+            throw new IllegalArgumentException("Sequence " + sequence + " is not after " + lastSequence);
+        }
+        slot.clear();
+        slot.putLong(sequence)
+                .putLong(info.batchId().getMostSignificantBits())
+                .putLong(info.batchId().getLeastSignificantBits())
+                .putLong(epochNanos(info.startedAt()))
+                .putLong(epochNanos(info.completedAt()))
+                .putInt(info.recordCount())
+                .putInt(info.processedCount())
+                .putInt(info.staleCount())
+                .putInt(info.supersededCount())
+                .put((byte) info.status().ordinal())
+                .put(new byte[3]);
+        var crc = new CRC32();
+        crc.update(slot.array(), 0, CHECKED_BYTES);
+        slot.putInt((int) crc.getValue());
+
+        ring.put(offset(next), slot.array(), 0, SLOT_BYTES);
+        next = (next + 1) % capacity;
+        count = Math.min(count + 1, capacity);
+        lastSequence = sequence;
+    }
+
+    /**
+     * @return the archived status of the batch, or null if it is not in the ring
+     */
+    public synchronized BatchInfo find(UUID batchId) {
+        long high = batchId.getMostSignificantBits();
+        long low = batchId.getLeastSignificantBits();
+        for (int i = count - 1; i >= 0; i--) {
+            int offset = offset(slotAt(i));
+            if (ring.getLong(offset + 8) == high && ring.getLong(offset + 16) == low) {
+                return decode(offset).info();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Batches with a sequence below {@code before}, newest first. Stops at
+     * the first batch that completed before {@code since}.
+     * @param status only batches with this status, null for all
+     * @param since null for no lower bound
+     */
+    public synchronized List<Entry> page(long before, BatchStatus status, Instant since, int limit) {
+        List<Entry> page = new ArrayList<>(Math.min(limit, count));
+        for (int i = lastBefore(before); i >= 0 && page.size() < limit; i--) {
+            int offset = offset(slotAt(i));
+            if (status != null && ring.get(offset + 56) != status.ordinal()) {
+                continue;
+            }
+            Entry entry = decode(offset);
+            Instant completedAt = entry.info().completedAt();
+            if (since != null && completedAt != null && completedAt.isBefore(since)) {
+                break;
+            }
+            page.add(entry);
+        }
+        return page;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return sequence of the newest batch archived, 0 if none
+     */
+    public synchronized long lastSequence() {
+        return lastSequence;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        ring.force();
+        channel.close();
+    }
+
+    // ============================
+    // Slots
+    // ============================
+
+    /**
+     * Slot of the i-th oldest batch.
+     */
+    private int slotAt(int i) {
+        return Math.floorMod(next - count + i, capacity);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    /**
+     * Index, oldest first, of the newest batch with a sequence below {@code before}, -1 if none.
+     */
+    private int lastBefore(long before) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (ring.getLong(offset(slotAt(mid))) < before) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    private Entry decode(int offset) {
+        long sequence = ring.getLong(offset);
+        var batchId = new UUID(ring.getLong(offset + 8), ring.getLong(offset + 16));
+        Instant startedAt = instant(ring.getLong(offset + 24));
+        Instant completedAt = instant(ring.getLong(offset + 32));
+        int recordCount = ring.getInt(offset + 40);
+        int processed = ring.getInt(offset + 44);
+        int stale = ring.getInt(offset + 48);
+        int superseded = ring.getInt(offset + 52);
+        BatchStatus status = STATUSES[ring.get(offset + 56)];
+
+        double percent;
+        if (status == BatchStatus.COMPLETED) {
+            percent = 100.0;
+        } else {
+            int denominator = Math.max(recordCount, processed);
+            percent = denominator == 0 ? 0.0 : (processed * 100.0) / denominator;
+        }
+        return new Entry(sequence,
+                new BatchInfo(batchId, status, startedAt, completedAt, recordCount, processed,
+                        Math.max(0, processed - stale - superseded), stale, superseded, percent));
+    }
+
+    private boolean valid(int offset) {
+        ring.get(offset, slot.array(), 0, SLOT_BYTES);
+        var crc = new CRC32();
+        crc.update(slot.array(), 0, CHECKED_BYTES);
+        return ring.getLong(offset) > 0
+                && ring.get(offset + 56) < STATUSES.length
+                && (int) crc.getValue() == ring.getInt(offset + CHECKED_BYTES);
+    }
+
+    private boolean readHeader() throws IOException {
+        var header = ByteBuffer.allocate(HEADER_BYTES);
+        channel.read(header, 0);
+        return header.getLong(0) == MAGIC && header.getInt(Long.BYTES) == capacity;
+    }
+
+    /**
+     * Finds the newest valid slot, then walks back while the sequences go down.
+     */
+    private void recover() {
+        int newest = -1;
+        for (int s = 0; s < capacity; s++) {
+            int offset = offset(s);
+            if (valid(offset) && (newest < 0 || ring.getLong(offset) > lastSequence)) {
+                newest = s;
+                lastSequence = ring.getLong(offset);
+            }
+        }
+        if (newest < 0) {
+            return;
+        }
+        next = (newest + 1) % capacity;
+        count = 1;
+        long previous = lastSequence;
+        while (count < capacity) {
+            int offset = offset(Math.floorMod(newest - count, capacity));
+            if (!valid(offset) || ring.getLong(offset) >= previous) {
+                break;
+            }
+            previous = ring.getLong(offset);
+            count++;
+        }
+    }
+
+    private static long epochNanos(Instant instant) {
+        return instant == null ? Long.MIN_VALUE : ChronoUnit.NANOS.between(Instant.EPOCH, instant);
+    }
+
+    private static Instant instant(long epochNanos) {
+        if (epochNanos == Long.MIN_VALUE) {
+            return null;
+        }
+        return Instant.ofEpochSecond(Math.floorDiv(epochNanos, 1_000_000_000L), Math.floorMod(epochNanos, 1_000_000_000L));
+    }
+}
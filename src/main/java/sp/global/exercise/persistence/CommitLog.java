@@ -0,0 +1,291 @@
+package sp.global.exercise.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+import sp.global.exercise.config.PriceProperties.FsyncPolicy;
+import sp.global.exercise.model.PriceRecord;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Append-only log of committed batches, split in segments named after the
+ * first version they hold ({@code wal-<version>.log}).
+ * <p>
+ * An entry is {@code [int bodyLength][int crc32][long version][int count][records...]}.
+ * The body is streamed to the segment behind a header of length -1, filled
+ * in once the body is written, so a batch is never encoded whole in memory.
+ * A torn entry at the end of the last segment (crash during a write) is
+ * detected by its length or checksum and cut off on replay. A torn entry
+ * in any other segment fails the replay.
+ */
+@Slf4j
+public class CommitLog implements Closeable {
+
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_BYTES = Integer.BYTES * 2;
+
+    private final Path directory;
+    private final FsyncPolicy fsync;
+    private final RecordCodec codec;
+    private final ScheduledExecutorService flusher;
+
+    private Path currentSegment;
+    private FileChannel channel;
+    private boolean dirty;
+
+    public CommitLog(Path directory, FsyncPolicy fsync, Duration groupInterval, RecordCodec codec,
+                     long nextVersion) throws IOException {
+        this.directory = directory;
+        this.fsync = fsync;
+        this.codec = codec;
+        this.channel = open(nextVersion);
+
+        if (fsync == FsyncPolicy.GROUPED) {
+            // One fsync covers every commit written during the interval
+            flusher = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                    .name("commit-log-flusher")
+                    .daemon()
+                    .factory());
+            long nanos = groupInterval.toNanos();
+            flusher.scheduleWithFixedDelay(this::flushQuietly, nanos, nanos, TimeUnit.NANOSECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Writes one committed batch, forced to disk right away with the PER_COMMIT policy.
+     * @return offset of the entry in the current segment, see {@link #discardFrom}
+     */
+    public synchronized long append(long version, Map<String, PriceRecord> staging) throws IOException {
+        long offset = channel.size();
+        try {
+            writeFully(ByteBuffer.allocate(HEADER_BYTES).putInt(-1).putInt(0).flip(), -1);
+
+            var crc = new CRC32();
+            // Not closed, that would close the channel
+            var out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(Channels.newOutputStream(channel), crc), 1 << 16));
+            out.writeLong(version);
+            out.writeInt(staging.size());
+            for (var record : staging.values()) {
+                codec.write(out, record);
+            }
+            out.flush();
+
+            long length = channel.position() - offset - HEADER_BYTES;
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Commit of version " + version + " takes " + length + " bytes, over 2GB");
+            }
+            writeFully(ByteBuffer.allocate(HEADER_BYTES).putInt((int) length).putInt((int) crc.getValue()).flip(), offset);
+        } catch (IOException | RuntimeException e) {
+            // A spilled staging may fail to read back midway, the partial entry goes
+            channel.truncate(offset);
+            throw e;
+        }
+
+        if (fsync == FsyncPolicy.PER_COMMIT) {
+            channel.force(false);
+        } else {
+            dirty = true;
+        }
+        return offset;
+    }
+
+    /**
+     * @param position where to write, -1 at the channel position
+     */
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (position < 0) {
+                channel.write(buffer);
+            } else {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Cuts the entries written from {@code offset} on, for a commit that failed after its append.
+     */
+    public synchronized void discardFrom(long offset) throws IOException {
+        channel.truncate(offset);
+        channel.force(false);
+    }
+
+    /**
+     * Starts a new segment, called right after the snapshot of {@code nextVersion - 1} was taken.
+     */
+    public synchronized void rotate(long nextVersion) throws IOException {
+        channel.force(false);
+        channel.close();
+        channel = open(nextVersion);
+        dirty = false;
+    }
+
+    /**
+     * Deletes every segment and starts over at {@code nextVersion}, for a
+     * store whose content was replaced.
+     */
+    public synchronized void reset(long nextVersion) throws IOException {
+        channel.close();
+        for (Path segment : segments(directory)) {
+            Files.deleteIfExists(segment);
+        }
+        channel = open(nextVersion);
+        dirty = false;
+    }
+
+    /**
+     * Deletes the segments fully covered by a snapshot of {@code version}.
+     */
+    public synchronized void deleteSegmentsUpTo(long version) throws IOException {
+        for (Path segment : segments(directory)) {
+            if (startVersion(segment) <= version && !segment.equals(currentSegment)) {
+                Files.deleteIfExists(segment);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        channel.force(false);
+        channel.close();
+    }
+
+    // ============================
+    // Replay
+    // ============================
+
+    /**
+     * Hands every entry newer than {@code afterVersion} to the consumer, oldest first.
+     * @return number of entries replayed
+     */
+    public static int replay(Path directory, long afterVersion, RecordCodec codec,
+                             BiConsumer<Long, Map<String, PriceRecord>> consumer) throws IOException {
+        int replayed = 0;
+        List<Path> segments = segments(directory);
+
+        for (int index = 0; index < segments.size(); index++) {
+            Path segment = segments.get(index);
+            long validBytes = 0;
+
+            try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+                while (true) {
+                    byte[] body = readEntry(in);
+                    if (body == null) {
+                        break;
+                    }
+                    validBytes += HEADER_BYTES + body.length;
+
+                    ByteBuffer buffer = ByteBuffer.wrap(body);
+                    long version = buffer.getLong();
+                    if (version <= afterVersion) {
+                        continue;
+                    }
+
+                    int count = buffer.getInt();
+                    Map<String, PriceRecord> staging = new HashMap<>(count * 2);
+                    for (int i = 0; i < count; i++) {
+                        var record = codec.read(buffer);
+                        staging.put(record.id(), record);
+                    }
+                    consumer.accept(version, staging);
+                    replayed++;
+                }
+            }
+
+            if (validBytes < Files.size(segment)) {
+                if (index < segments.size() - 1) {
+                    // Only the segment being written at a crash may be torn, a later one was written after it
+                    throw new IOException("Commit log segment " + segment + " is corrupt at " + validBytes + " bytes");
+                }
+                log.warn("Cutting torn tail of {} at {} bytes", segment, validBytes);
+                try (var channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                    channel.truncate(validBytes);
+                }
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * @return the body of the next entry, or null at the end or on a torn entry
+     */
+    private static byte[] readEntry(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] body = in.readNBytes(length);
+            if (body.length < length) {
+                return null;
+            }
+            var crc = new CRC32();
+            crc.update(body);
+            return (int) crc.getValue() == checksum ? body : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    // ============================
+    // Segments
+    // ============================
+
+    private FileChannel open(long startVersion) throws IOException {
+        currentSegment = directory.resolve(String.format("%s%020d%s", PREFIX, startVersion, SUFFIX));
+        // Not in append mode, the header of an entry is written back once its body is
+        var opened = FileChannel.open(currentSegment, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        opened.position(opened.size());
+        return opened;
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                        String name = path.getFileName().toString();
+                        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                    })
+                    .sorted(Comparator.comparingLong(CommitLog::startVersion))
+                    .toList();
+        }
+    }
+
+    private static long startVersion(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private synchronized void flushQuietly() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            channel.force(false);
+            dirty = false;
+        } catch (IOException e) {
+            log.error("Failed to flush commit log", e);
+        }
+    }
+}
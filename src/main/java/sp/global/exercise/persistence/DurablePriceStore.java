@@ -0,0 +1,186 @@
+package sp.global.exercise.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+import sp.global.exercise.config.PriceProperties;
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.store.PriceSnapshot;
+import sp.global.exercise.store.PriceStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BinaryOperator;
+
+/**
+ * Makes a live store durable: every commit is appended to the
+ * {@link CommitLog} before it is published, and every
+ * {@code snapshotEvery} commits a compacted snapshot is written in the
+ * background and the log segments it covers are dropped.
+ * <p>
+ * On startup the newest snapshot is mapped and the log tail replayed on top
+ * of it, so restart time depends on the store size and the tail length, not
+ * on the whole upload history.
+ */
+@Slf4j
+public class DurablePriceStore implements PriceStore, AutoCloseable {
+
+    private final PriceStore delegate;
+    private final SnapshotFiles snapshots;
+    private final CommitLog commitLog;
+    private final int snapshotEvery;
+
+    // Log order must match commit order
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final ExecutorService snapshotWriter = Executors.newSingleThreadExecutor(Thread.ofPlatform()
+            .name("snapshot-writer")
+            .daemon()
+            .factory());
+    private final Duration recoveryTime;
+    private int commitsSinceSnapshot;
+
+    public DurablePriceStore(PriceStore delegate, PriceProperties.Persistence settings, RecordCodec codec) {
+        this.delegate = delegate;
+        this.snapshotEvery = settings.getSnapshotEvery();
+
+        try {
+            Path directory = settings.getDirectory();
+            Files.createDirectories(directory);
+            this.snapshots = new SnapshotFiles(directory, codec);
+
+            long started = System.nanoTime();
+            recover(directory, codec);
+            this.recoveryTime = Duration.ofNanos(System.nanoTime() - started);
+
+            this.commitLog = new CommitLog(directory, settings.getFsync(), settings.getGroupInterval(),
+                    codec, delegate.version() + 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open price store in " + settings.getDirectory(), e);
+        }
+    }
+
+    public PriceStore delegate() {
+        return delegate;
+    }
+
+    public Duration recoveryTime() {
+        return recoveryTime;
+    }
+
+    @Override
+    public PriceSnapshot snapshot() {
+        return delegate.snapshot();
+    }
+
+    @Override
+    public PriceSnapshot commit(Map<String, PriceRecord> staging, BinaryOperator<PriceRecord> resolver) {
+        commitLock.lock();
+        try {
+            // Write-ahead: nothing is visible before it is in the log
+            long entry = commitLog.append(delegate.version() + 1, staging);
+            PriceSnapshot snapshot;
+            try {
+                snapshot = delegate.commit(staging, resolver);
+            } catch (RuntimeException e) {
+                // Never published, the next commit takes its version
+                commitLog.discardFrom(entry);
+                throw e;
+            }
+
+            if (++commitsSinceSnapshot >= snapshotEvery) {
+                commitsSinceSnapshot = 0;
+                commitLog.rotate(snapshot.version() + 1);
+                snapshotWriter.execute(() -> writeSnapshot(snapshot));
+            }
+            return snapshot;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write commit log", e);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the content and makes it the new starting point on disk: the
+     * log restarts after {@code version} and a snapshot of it replaces the
+     * older ones, written before this returns.
+     */
+    @Override
+    public void restore(long version, Map<String, PriceRecord> records) {
+        commitLock.lock();
+        try {
+            delegate.restore(version, records);
+            var snapshot = delegate.snapshot();
+            // Queued behind the snapshots being written, which would otherwise land after this one
+            snapshotWriter.submit(() -> {
+                // A crash before the snapshot is complete recovers the previous one, without its tail
+                commitLog.reset(version + 1);
+                snapshots.write(snapshot);
+                snapshots.deleteAllExcept(version);
+                return null;
+            }).get();
+            commitsSinceSnapshot = 0;
+        } catch (ExecutionException e) {
+            throw new UncheckedIOException("Failed to write restored snapshot of version " + version,
+                    e.getCause() instanceof IOException io ? io : new IOException(e.getCause()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing restored snapshot", e);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException, InterruptedException {
+        snapshotWriter.shutdown();
+        snapshotWriter.awaitTermination(1, TimeUnit.MINUTES);
+        commitLog.close();
+    }
+
+    // ============================
+    // Recovery & snapshots
+    // ============================
+
+    private void recover(Path directory, RecordCodec codec) throws IOException {
+        Map<String, PriceRecord> records = new HashMap<>();
+        var loaded = snapshots.loadNewest(record -> records.put(record.id(), record));
+
+        long snapshotVersion = loaded.map(SnapshotFiles.Loaded::version).orElse(0L);
+        delegate.restore(snapshotVersion, records);
+        records.clear();
+
+        int replayed = CommitLog.replay(directory, snapshotVersion, codec, (version, staging) -> {
+            if (version != delegate.version() + 1) {
+                throw new IllegalStateException("Commit log jumps from version "
+                        + delegate.version() + " to " + version);
+            }
+            delegate.commit(staging, PriceRecord::newest);
+        });
+
+        log.info("Recovered price store at version {} ({} records) from snapshot {} and {} log entries",
+                delegate.version(), delegate.snapshot().size(), snapshotVersion, replayed);
+    }
+
+    private void writeSnapshot(PriceSnapshot snapshot) {
+        try {
+            long started = System.nanoTime();
+            snapshots.write(snapshot);
+            commitLog.deleteSegmentsUpTo(snapshot.version());
+            snapshots.deleteOlderThan(snapshot.version());
+            log.info("Wrote snapshot of version {} ({} records) in {} ms",
+                    snapshot.version(), snapshot.size(), (System.nanoTime() - started) / 1_000_000);
+        } catch (IOException e) {
+            // Log segments are kept, recovery falls back to the previous snapshot
+            log.error("Failed to write snapshot of version {}", snapshot.version(), e);
+        }
+    }
+}
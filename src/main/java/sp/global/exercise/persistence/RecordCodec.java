@@ -0,0 +1,45 @@
+package sp.global.exercise.persistence;
+
+import sp.global.exercise.model.PriceRecord;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Binary form of a price record used by the log and the snapshots:
+ * {@code [int idLength][id UTF-8][long epochSecond][int nano][int payloadLength][payload JSON]}.
+ */
+public class RecordCodec {
+
+    private final JsonMapper mapper;
+
+    public RecordCodec(JsonMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    public void write(DataOutput out, PriceRecord record) throws IOException {
+        byte[] id = record.id().getBytes(StandardCharsets.UTF_8);
+        byte[] payload = mapper.writeValueAsBytes(record.payload());
+
+        out.writeInt(id.length);
+        out.write(id);
+        out.writeLong(record.asOf().getEpochSecond());
+        out.writeInt(record.asOf().getNano());
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    public PriceRecord read(ByteBuffer in) {
+        byte[] id = new byte[in.getInt()];
+        in.get(id);
+        Instant asOf = Instant.ofEpochSecond(in.getLong(), in.getInt());
+        byte[] payload = new byte[in.getInt()];
+        in.get(payload);
+
+        return new PriceRecord(new String(id, StandardCharsets.UTF_8), asOf, mapper.readValue(payload, Object.class));
+    }
+}
@@ -0,0 +1,203 @@
+package sp.global.exercise.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.store.PriceSnapshot;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Compacted snapshots of the live store ({@code snapshot-<version>.dat}).
+ * <p>
+ * A snapshot is {@code [long magic][long version][long recordCount]} followed
+ * by checksummed blocks {@code [int length][int crc32][records...]} and an
+ * empty block. Blocks stay small so that each one can be memory-mapped on
+ * its own when the snapshot is loaded, whatever the total file size.
+ * Snapshots are written to a temporary file and renamed once complete.
+ */
+@Slf4j
+public class SnapshotFiles {
+
+    private static final long MAGIC = 0x5052494345534e50L;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".dat";
+    private static final int BLOCK_BYTES = 8 << 20;
+
+    private final Path directory;
+    private final RecordCodec codec;
+
+    public SnapshotFiles(Path directory, RecordCodec codec) {
+        this.directory = directory;
+        this.codec = codec;
+    }
+
+    public record Loaded(long version, long recordCount) {}
+
+    public void write(PriceSnapshot snapshot) throws IOException {
+        Path target = directory.resolve(String.format("%s%020d%s", PREFIX, snapshot.version(), SUFFIX));
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+
+        try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            ByteBuffer header = ByteBuffer.allocate(Long.BYTES * 3)
+                    .putLong(MAGIC).putLong(snapshot.version()).putLong(snapshot.size()).flip();
+            writeFully(channel, header);
+
+            var block = new ByteArrayOutputStream(BLOCK_BYTES);
+            var out = new DataOutputStream(block);
+            IOException[] failure = new IOException[1];
+
+            snapshot.forEach((id, record) -> {
+                if (failure[0] != null) {
+                    return;
+                }
+                try {
+                    codec.write(out, record);
+                    if (block.size() >= BLOCK_BYTES) {
+                        writeBlock(channel, block);
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+
+            writeBlock(channel, block);
+            // Empty block marks the end
+            writeBlock(channel, block);
+            channel.force(true);
+        }
+
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Maps the newest complete snapshot and hands each record to the consumer.
+     */
+    public Optional<Loaded> loadNewest(Consumer<PriceRecord> consumer) throws IOException {
+        for (Path file : snapshots().reversed()) {
+            try {
+                return Optional.of(load(file, consumer));
+            } catch (IOException | RuntimeException e) {
+                log.warn("Skipping unreadable snapshot {}", file, e);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Deletes snapshots older than {@code version} and leftover temporary files.
+     */
+    public void deleteOlderThan(long version) throws IOException {
+        for (Path file : snapshots()) {
+            if (versionOf(file) < version) {
+                Files.deleteIfExists(file);
+            }
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.filter(path -> path.getFileName().toString().endsWith(SUFFIX + ".tmp")).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Deletes every snapshot but the one of {@code version}, newer ones included.
+     */
+    public void deleteAllExcept(long version) throws IOException {
+        for (Path file : snapshots()) {
+            if (versionOf(file) != version) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private Loaded load(Path file, Consumer<PriceRecord> consumer) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Long.BYTES * 3);
+            if (header.getLong() != MAGIC) {
+                throw new IOException("Not a snapshot file");
+            }
+            long version = header.getLong();
+            long recordCount = header.getLong();
+
+            long position = Long.BYTES * 3;
+            long loaded = 0;
+            while (true) {
+                MappedByteBuffer blockHeader = channel.map(FileChannel.MapMode.READ_ONLY, position, Integer.BYTES * 2);
+                int length = blockHeader.getInt();
+                int checksum = blockHeader.getInt();
+                position += Integer.BYTES * 2;
+                if (length == 0) {
+                    break;
+                }
+
+                MappedByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                var crc = new CRC32();
+                crc.update(block.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException("Corrupted block at " + position);
+                }
+                while (block.hasRemaining()) {
+                    consumer.accept(codec.read(block));
+                    loaded++;
+                }
+                position += length;
+            }
+
+            if (loaded != recordCount) {
+                throw new IOException("Expected " + recordCount + " records, found " + loaded);
+            }
+            return new Loaded(version, recordCount);
+        }
+    }
+
+    private static void writeBlock(FileChannel channel, ByteArrayOutputStream block) throws IOException {
+        byte[] bytes = block.toByteArray();
+        block.reset();
+
+        var crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 2 + bytes.length)
+                .putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+        writeFully(channel, buffer);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private List<Path> snapshots() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                        String name = path.getFileName().toString();
+                        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                    })
+                    .sorted(Comparator.comparingLong(SnapshotFiles::versionOf))
+                    .toList();
+        }
+    }
+
+    private static long versionOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+}
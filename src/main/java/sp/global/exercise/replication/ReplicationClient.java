@@ -0,0 +1,343 @@
+package sp.global.exercise.replication;
+
+import lombok.extern.slf4j.Slf4j;
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.persistence.RecordCodec;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Follower side of replication: keeps a connection to the primary and
+ * applies its stream to the local store, through a {@link Replica}.
+ * <p>
+ * Deltas must follow each other version by version. A gap, a dropped
+ * connection or silence for three heartbeats makes the follower reconnect
+ * with the version it applied, the primary then sends what it missed or a
+ * full snapshot. Applying runs on the client thread only, one commit at a
+ * time in version order.
+ * <p>
+ * A snapshot is handed to the replica while it is still arriving, its
+ * records are decoded chunk by chunk as the store reads them, so the
+ * follower never holds the snapshot besides the store it builds from it.
+ * A frame longer than {@code maxFrameBytes} drops the connection; as it
+ * would come again from the log, the follower then asks for a snapshot,
+ * whose frames have a bounded number of records.
+ */
+@Slf4j
+public class ReplicationClient implements AutoCloseable {
+
+    /**
+     * The local store a follower keeps in step with the primary.
+     */
+    public interface Replica {
+
+        /**
+         * Replaces the whole content with a snapshot of the primary. The
+         * records are read off the connection while they are walked, once
+         * and during the call only; a connection failing midway throws an
+         * {@link UncheckedIOException} out of the walk.
+         */
+        void restore(long version, Map<String, PriceRecord> records);
+
+        /**
+         * Applies the records a commit of the primary changed, as one commit of version {@code version}.
+         */
+        void apply(long version, Instant committedAt, List<PriceRecord> changed);
+    }
+
+    private final InetSocketAddress primary;
+    private final RecordCodec codec;
+    private final Replica replica;
+    private final Duration retryInterval;
+    private final int readTimeoutMillis;
+    private final int maxFrameBytes;
+
+    private final Thread thread;
+    private volatile boolean closed;
+    private volatile Socket socket;
+
+    // Touched on the client thread only, except for reads by metrics
+    private long epoch;
+    private volatile long applied = -1;
+    private volatile long primaryVersion = -1;
+
+    /**
+     * @param heartbeat heartbeat of the primary, three of them without a frame drop the connection
+     * @param maxFrameBytes longest frame body accepted from the primary
+     */
+    public ReplicationClient(InetSocketAddress primary, RecordCodec codec, Replica replica,
+                             Duration heartbeat, Duration retryInterval, int maxFrameBytes) {
+        this.primary = primary;
+        this.codec = codec;
+        this.replica = replica;
+        this.retryInterval = retryInterval;
+        this.maxFrameBytes = maxFrameBytes;
+        this.readTimeoutMillis = (int) Math.max(1000, heartbeat.toMillis() * 3);
+        this.thread = Thread.ofPlatform()
+                .name("replication-client")
+                .daemon(true)
+                .unstarted(this::run);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Version of the primary applied last, -1 before the first snapshot.
+     */
+    public long appliedVersion() {
+        return applied;
+    }
+
+    /**
+     * Commits of the primary not applied yet, as far as the follower heard of them.
+     */
+    public long lag() {
+        if (applied < 0) {
+            return Math.max(0, primaryVersion);
+        }
+        return Math.max(0, primaryVersion - applied);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        var current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+        thread.interrupt();
+        thread.join(1000);
+    }
+
+    private void run() {
+        while (!closed) {
+            try (var connection = new Socket()) {
+                socket = connection;
+                // Resolved on every attempt, the primary may have moved
+                connection.connect(new InetSocketAddress(primary.getHostString(), primary.getPort()), readTimeoutMillis);
+                connection.setSoTimeout(readTimeoutMillis);
+                connection.setTcpNoDelay(true);
+
+                var out = new DataOutputStream(connection.getOutputStream());
+                out.writeInt(ReplicationFrames.MAGIC);
+                out.writeLong(epoch);
+                out.writeLong(applied);
+                out.flush();
+
+                follow(new DataInputStream(new BufferedInputStream(connection.getInputStream(), 1 << 16)));
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    log.warn("Replication from {} interrupted: {}", primary, e.toString());
+                }
+            }
+            if (!closed) {
+                try {
+                    Thread.sleep(retryInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void follow(DataInputStream in) throws IOException {
+        while (!closed) {
+            var frame = read(in);
+            var body = frame.body();
+            switch (frame.type()) {
+                case ReplicationFrames.HELLO -> {
+                    long hello = body.getLong();
+                    if (hello != epoch) {
+                        // Another run of the primary, its versions start over and only a snapshot applies
+                        epoch = hello;
+                        applied = -1;
+                        primaryVersion = -1;
+                    }
+                }
+                case ReplicationFrames.HEARTBEAT -> heard(body.getLong());
+                case ReplicationFrames.SNAPSHOT_START -> {
+                    long version = body.getLong();
+                    var snapshot = new SnapshotStream(in, body.getInt());
+                    try {
+                        replica.restore(version, snapshot);
+                        snapshot.skipRest();
+                    } catch (UncheckedIOException e) {
+                        applied = -1;
+                        throw e.getCause();
+                    } catch (RuntimeException e) {
+                        // The store may be replaced or not, only a snapshot brings it back in step
+                        applied = -1;
+                        throw e;
+                    }
+                    applied = version;
+                    heard(version);
+                    log.info("Replica restored from a snapshot of {} at version {}", primary, version);
+                }
+                case ReplicationFrames.DELTA -> {
+                    long version = body.getLong();
+                    var committedAt = Instant.ofEpochMilli(body.getLong());
+                    if (version != applied + 1) {
+                        // Reconnecting asks for the missing commits, or a snapshot
+                        throw new IOException("Expected version " + (applied + 1) + ", got " + version);
+                    }
+                    try {
+                        replica.apply(version, committedAt, records(body));
+                    } catch (RuntimeException e) {
+                        // The local store is out of step, only a snapshot brings it back
+                        applied = -1;
+                        throw e;
+                    }
+                    applied = version;
+                    heard(version);
+                }
+                case ReplicationFrames.SNAPSHOT_RECORDS, ReplicationFrames.SNAPSHOT_END ->
+                        throw new IOException("Snapshot frame " + frame.type() + " without a snapshot");
+                default -> throw new IOException("Unknown replication frame " + frame.type());
+            }
+        }
+    }
+
+    private ReplicationFrames.Frame read(DataInputStream in) throws IOException {
+        try {
+            return ReplicationFrames.read(in, maxFrameBytes);
+        } catch (ReplicationFrames.FrameTooLargeException e) {
+            // The log would send the same commit again, a snapshot comes in bounded chunks
+            applied = -1;
+            throw e;
+        }
+    }
+
+    private List<PriceRecord> records(ByteBuffer body) {
+        int count = body.getInt();
+        List<PriceRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(codec.read(body));
+        }
+        return records;
+    }
+
+    private void heard(long version) {
+        if (version > primaryVersion) {
+            primaryVersion = version;
+        }
+    }
+
+    /**
+     * Records of a snapshot, read off the connection chunk by chunk as they
+     * are walked, up to {@link ReplicationFrames#SNAPSHOT_END}. Walked once,
+     * lookups by id are not supported beyond the walk {@link AbstractMap} does.
+     */
+    private final class SnapshotStream extends AbstractMap<String, PriceRecord> {
+
+        private final DataInputStream in;
+        private final int size;
+        private boolean walked;
+        private boolean ended;
+        // Chunk being decoded and its records left
+        private ByteBuffer chunk;
+        private int remaining;
+
+        SnapshotStream(DataInputStream in, int size) {
+            this.in = in;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Set<Entry<String, PriceRecord>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public Iterator<Entry<String, PriceRecord>> iterator() {
+                    if (walked) {
+                        throw new IllegalStateException("A replicated snapshot is walked once");
+                    }
+                    walked = true;
+                    return new Iterator<>() {
+                        @Override
+                        public boolean hasNext() {
+                            return advance();
+                        }
+
+                        @Override
+                        public Entry<String, PriceRecord> next() {
+                            if (!advance()) {
+                                throw new NoSuchElementException();
+                            }
+                            remaining--;
+                            var record = codec.read(chunk);
+                            return Map.entry(record.id(), record);
+                        }
+                    };
+                }
+            };
+        }
+
+        /**
+         * Reads up to the end of the snapshot, so the stream is at the next frame.
+         */
+        void skipRest() throws IOException {
+            try {
+                while (advance()) {
+                    remaining = 0;
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        // Whether a record is left, reading the next chunk when the current one is used up
+        private boolean advance() {
+            try {
+                while (remaining == 0 && !ended) {
+                    var frame = read(in);
+                    switch (frame.type()) {
+                        case ReplicationFrames.SNAPSHOT_RECORDS -> {
+                            chunk = frame.body();
+                            remaining = chunk.getInt();
+                        }
+                        case ReplicationFrames.SNAPSHOT_END -> {
+                            ended = true;
+                            chunk = null;
+                        }
+                        default -> throw new IOException("Replication frame " + frame.type() + " inside a snapshot");
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return remaining > 0;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package sp.global.exercise.replication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format of the replication stream, {@code [byte type][int length][body]} per frame.
+ * <p>
+ * A follower opens with {@code [int MAGIC][long epoch][long version]}: the
+ * epoch of the primary it replicated from and the version it applied, -1
+ * for none. The primary answers with {@link #HELLO} and its epoch, then
+ * either the deltas the follower missed or a full snapshot, then every
+ * commit as it happens. Records are written by the persistence
+ * {@link sp.global.exercise.persistence.RecordCodec}.
+ * <ul>
+ *   <li>{@link #HELLO}: {@code [long epoch]}</li>
+ *   <li>{@link #DELTA}: {@code [long version][long committedAtMillis][int count][records]}</li>
+ *   <li>{@link #HEARTBEAT}: {@code [long version]}, the latest commit, sent when idle</li>
+ *   <li>{@link #SNAPSHOT_START}: {@code [long version][int size]}</li>
+ *   <li>{@link #SNAPSHOT_RECORDS}: {@code [int count][records]}</li>
+ *   <li>{@link #SNAPSHOT_END}: empty, the snapshot is complete</li>
+ * </ul>
+ */
+final class ReplicationFrames {
+
+    static final int MAGIC = 0x50524550;
+
+    static final byte HELLO = 1;
+    static final byte DELTA = 2;
+    static final byte HEARTBEAT = 3;
+    static final byte SNAPSHOT_START = 4;
+    static final byte SNAPSHOT_RECORDS = 5;
+    static final byte SNAPSHOT_END = 6;
+
+    // Records per snapshot frame, a snapshot is never encoded whole
+    static final int SNAPSHOT_CHUNK = 4096;
+
+    private static final int HEADER_BYTES = Byte.BYTES + Integer.BYTES;
+
+    @FunctionalInterface
+    interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private ReplicationFrames() {
+    }
+
+    /**
+     * A complete frame, header included.
+     */
+    static byte[] encode(byte type, Body body) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeInt(0);
+        body.write(out);
+        out.flush();
+
+        byte[] frame = bytes.toByteArray();
+        ByteBuffer.wrap(frame).putInt(Byte.BYTES, frame.length - HEADER_BYTES);
+        return frame;
+    }
+
+    /**
+     * A frame read off the stream, positioned at its body.
+     */
+    record Frame(byte type, ByteBuffer body) {}
+
+    /**
+     * Thrown for a frame longer than the reader accepts, before any of its body is read.
+     */
+    static final class FrameTooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        FrameTooLargeException(byte type, int length, int maxBytes) {
+            super("Replication frame " + type + " of " + length + " bytes, at most " + maxBytes + " accepted");
+        }
+    }
+
+    /**
+     * @param maxBytes longest body accepted, a corrupt or hostile length never sizes an allocation past it
+     */
+    static Frame read(DataInputStream in, int maxBytes) throws IOException {
+        byte type = in.readByte();
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Replication frame " + type + " of negative length " + length);
+        }
+        if (length > maxBytes) {
+            throw new FrameTooLargeException(type, length, maxBytes);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return new Frame(type, ByteBuffer.wrap(body));
+    }
+}
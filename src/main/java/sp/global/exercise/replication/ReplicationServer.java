@@ -0,0 +1,401 @@
+package sp.global.exercise.replication;
+
+import lombok.extern.slf4j.Slf4j;
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.persistence.RecordCodec;
+import sp.global.exercise.store.PriceSnapshot;
+import sp.global.exercise.store.PriceStore;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Primary side of replication: streams every commit to the followers
+ * connected over TCP.
+ * <p>
+ * Each commit is encoded once, on a single sequencer thread so the commit
+ * path only hands over its changed records, and kept in a bounded log.
+ * A follower connecting with a version the log still covers gets the
+ * deltas it missed; one that is new, too far behind or replicated from an
+ * earlier run of the primary gets a full snapshot first. Either way it
+ * then receives every commit in version order.
+ * <p>
+ * Every follower has its own sender thread and a bounded queue of frames.
+ * A follower that lets {@code maxPending} frames pile up is disconnected;
+ * it reconnects with the version it applied and catches up from the log,
+ * or from a snapshot once the log moved past it. Deltas queued while its
+ * snapshot is still streaming do not count, they would otherwise cut off
+ * every follower whose snapshot takes longer than {@code maxPending} commits.
+ * <p>
+ * The stream is neither authenticated nor encrypted, the primary listens
+ * on loopback unless given another address.
+ */
+@Slf4j
+public class ReplicationServer implements AutoCloseable {
+
+    private record Delta(long version, byte[] frame) {}
+
+    private final PriceStore store;
+    private final RecordCodec codec;
+    private final int maxLogVersions;
+    private final long maxLogBytes;
+    private final int maxPending;
+    private final long heartbeatMillis;
+
+    // Tells followers of an earlier run of the primary, whose versions mean nothing here
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+
+    private final ServerSocket listener;
+    private final Thread acceptor;
+    // Encodes commits and registers followers, one task at a time in version order
+    private final ExecutorService sequencer = Executors.newSingleThreadExecutor(Thread.ofPlatform()
+            .name("replication-sequencer")
+            .daemon(true)
+            .factory());
+
+    // Touched on the sequencer only
+    private final ArrayDeque<Delta> backlog = new ArrayDeque<>();
+    private long backlogBytes;
+
+    // Latest version encoded, sent to idle followers
+    private volatile long published;
+    private final Set<Follower> followers = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * Starts listening right away.
+     * @param bindAddress local address followers connect to
+     * @param port 0 for any free port, see {@link #port()}
+     */
+    public ReplicationServer(PriceStore store, RecordCodec codec, InetAddress bindAddress, int port,
+                             int maxLogVersions, long maxLogBytes, int maxPending, Duration heartbeat) throws IOException {
+        this.store = store;
+        this.codec = codec;
+        this.maxLogVersions = maxLogVersions;
+        this.maxLogBytes = maxLogBytes;
+        this.maxPending = maxPending;
+        this.heartbeatMillis = heartbeat.toMillis();
+        this.published = store.version();
+        this.listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(bindAddress, port));
+        this.acceptor = Thread.ofPlatform()
+                .name("replication-acceptor")
+                .daemon(true)
+                .start(this::accept);
+    }
+
+    public int port() {
+        return listener.getLocalPort();
+    }
+
+    public int followers() {
+        return followers.size();
+    }
+
+    /**
+     * Streams a commit to the followers. Called for every commit, in version
+     * order, with a list the caller no longer modifies.
+     */
+    public void publish(long version, Collection<PriceRecord> changed) {
+        long committedAt = System.currentTimeMillis();
+        try {
+            sequencer.execute(() -> append(version, committedAt, changed));
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    /**
+     * Stands in for {@link #publish} for a commit whose changes are unknown.
+     * The log restarts after it and the followers are disconnected, they
+     * catch up from a snapshot.
+     */
+    public void skip(long version) {
+        try {
+            sequencer.execute(() -> {
+                backlog.clear();
+                backlogBytes = 0;
+                published = version;
+                List.copyOf(followers).forEach(Follower::close);
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    @Override
+    public void close() throws IOException, InterruptedException {
+        closed = true;
+        listener.close();
+        sequencer.shutdownNow();
+        List.copyOf(followers).forEach(Follower::close);
+        acceptor.join(1000);
+    }
+
+    // ============================
+    // Sequencer tasks
+    // ============================
+
+    private void append(long version, long committedAt, Collection<PriceRecord> changed) {
+        byte[] frame;
+        try {
+            frame = ReplicationFrames.encode(ReplicationFrames.DELTA, out -> {
+                out.writeLong(version);
+                out.writeLong(committedAt);
+                out.writeInt(changed.size());
+                for (var record : changed) {
+                    codec.write(out, record);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        backlog.addLast(new Delta(version, frame));
+        backlogBytes += frame.length;
+        while (backlog.size() > maxLogVersions || (backlogBytes > maxLogBytes && backlog.size() > 1)) {
+            backlogBytes -= backlog.pollFirst().frame().length;
+        }
+        published = version;
+
+        for (var follower : followers) {
+            follower.send(version, frame);
+        }
+    }
+
+    /**
+     * Queues what the follower misses, then adds it to the followers of every commit.
+     */
+    private void register(Follower follower, long followerEpoch, long version) {
+        // More deltas than the follower may queue would get it disconnected right away
+        if (followerEpoch == epoch && version >= 0 && covered(version) && published - version < maxPending) {
+            follower.applied = version;
+            for (var delta : backlog) {
+                follower.send(delta.version(), delta.frame());
+            }
+            log.debug("Follower {} catches up from version {}", follower.address(), version);
+        } else {
+            // May be ahead of the log, the deltas it already holds are skipped
+            var snapshot = store.snapshot();
+            follower.applied = snapshot.version();
+            follower.enqueue(snapshot);
+            log.info("Follower {} catches up from a snapshot at version {}", follower.address(), snapshot.version());
+        }
+        followers.add(follower);
+        follower.start();
+    }
+
+    /**
+     * Whether the log holds every commit after {@code version}.
+     */
+    private boolean covered(long version) {
+        if (version == published) {
+            return true;
+        }
+        return version < published && !backlog.isEmpty() && backlog.peekFirst().version() <= version + 1;
+    }
+
+    // ============================
+    // Connections
+    // ============================
+
+    private void accept() {
+        while (!closed) {
+            try {
+                var socket = listener.accept();
+                Thread.ofVirtual().start(() -> handshake(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    log.warn("Replication listener failed: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handshake(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout((int) Math.max(1000, heartbeatMillis * 3));
+            var in = new DataInputStream(socket.getInputStream());
+            if (in.readInt() != ReplicationFrames.MAGIC) {
+                throw new IOException("Not a replication follower");
+            }
+            long followerEpoch = in.readLong();
+            long version = in.readLong();
+
+            var follower = new Follower(socket);
+            follower.write(ReplicationFrames.encode(ReplicationFrames.HELLO, out -> out.writeLong(epoch)));
+            sequencer.execute(() -> register(follower, followerEpoch, version));
+        } catch (IOException | RejectedExecutionException e) {
+            log.debug("Dropping replication connection from {}: {}", socket.getRemoteSocketAddress(), e.getMessage());
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    /**
+     * One connected follower: its queue of frames, and of snapshots to
+     * stream, and the thread writing them.
+     */
+    private final class Follower {
+
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        // Latest version queued, touched on the sequencer only
+        long applied;
+        // A snapshot is queued or streaming, the deltas queued behind it are exempt from maxPending
+        private volatile boolean snapshotting;
+        private final AtomicInteger exempt = new AtomicInteger();
+        private volatile boolean closed;
+
+        Follower(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        }
+
+        Object address() {
+            return socket.getRemoteSocketAddress();
+        }
+
+        void start() {
+            Thread.ofVirtual().name("replication-follower").start(this::run);
+        }
+
+        /**
+         * Queues a delta unless the follower already has it.
+         */
+        void send(long version, byte[] frame) {
+            if (version <= applied) {
+                return;
+            }
+            applied = version;
+            enqueue(frame);
+        }
+
+        void enqueue(Object frame) {
+            if (closed) {
+                return;
+            }
+            if (frame instanceof PriceSnapshot) {
+                snapshotting = true;
+            } else if (snapshotting) {
+                // Queued in order, the run loop takes the exempt deltas off first
+                exempt.incrementAndGet();
+            } else if (queue.size() - exempt.get() >= maxPending) {
+                log.info("Disconnecting follower {}, {} frames behind", address(), maxPending);
+                close();
+                return;
+            }
+            queue.add(frame);
+        }
+
+        private void run() {
+            try {
+                while (!closed) {
+                    var next = queue.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        long version = published;
+                        write(ReplicationFrames.encode(ReplicationFrames.HEARTBEAT, frame -> frame.writeLong(version)));
+                    } else if (next instanceof PriceSnapshot snapshot) {
+                        writeSnapshot(snapshot);
+                        snapshotting = false;
+                    } else {
+                        out.write((byte[]) next);
+                        if (exempt.get() > 0) {
+                            exempt.decrementAndGet();
+                        }
+                    }
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException | UncheckedIOException e) {
+                if (!closed) {
+                    log.info("Follower {} disconnected: {}", address(), e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        void write(byte[] frame) throws IOException {
+            out.write(frame);
+            out.flush();
+        }
+
+        /**
+         * Streams the snapshot in chunks, without encoding it whole.
+         */
+        private void writeSnapshot(PriceSnapshot snapshot) throws IOException {
+            out.write(ReplicationFrames.encode(ReplicationFrames.SNAPSHOT_START, frame -> {
+                frame.writeLong(snapshot.version());
+                frame.writeInt(snapshot.size());
+            }));
+            List<PriceRecord> chunk = new ArrayList<>(ReplicationFrames.SNAPSHOT_CHUNK);
+            snapshot.forEach((id, record) -> {
+                chunk.add(record);
+                if (chunk.size() == ReplicationFrames.SNAPSHOT_CHUNK) {
+                    writeChunk(chunk);
+                }
+            });
+            writeChunk(chunk);
+            out.write(ReplicationFrames.encode(ReplicationFrames.SNAPSHOT_END, frame -> {}));
+        }
+
+        private void writeChunk(List<PriceRecord> chunk) {
+            if (chunk.isEmpty()) {
+                return;
+            }
+            try {
+                out.write(ReplicationFrames.encode(ReplicationFrames.SNAPSHOT_RECORDS, frame -> {
+                    frame.writeInt(chunk.size());
+                    for (var record : chunk) {
+                        codec.write(frame, record);
+                    }
+                }));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            chunk.clear();
+        }
+
+        void close() {
+            closed = true;
+            followers.remove(this);
+            queue.clear();
+            closeQuietly(socket);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package sp.global.exercise.service;
+
+import java.time.Duration;
+
+/**
+ * A batch was refused because the ingest pipeline is at capacity: the
+ * admission queue is full, or the batch waited in it for too long.
+ */
+public class AdmissionRejectedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Duration retryAfter;
+
+    public AdmissionRejectedException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return rough time until a batch is likely to be admitted
+     */
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,24 @@
+package sp.global.exercise.service;
+
+import sp.global.exercise.model.BatchInfo;
+
+/**
+ * Receives the progress of watched batches. The calls for one watch come
+ * one at a time and in order, on a thread of their own, so an
+ * implementation may write straight to its client without locking and a
+ * slow client only delays its own watch.
+ */
+public interface BatchListener {
+
+    /**
+     * A batch moved on: sent once when the watch starts, then at most once
+     * per progress interval while records are processed, and once more
+     * when the batch reaches a terminal status.
+     */
+    void update(BatchInfo info);
+
+    /**
+     * Every watched batch reached a terminal status, nothing more will be sent.
+     */
+    void finished();
+}
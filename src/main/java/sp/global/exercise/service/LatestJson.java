@@ -0,0 +1,13 @@
+package sp.global.exercise.service;
+
+import java.util.List;
+
+/**
+ * Latest prices as cached JSON members {@code "id":{record}}, with the store
+ * epoch and version they are current at. Empty when nothing requested changed.
+ */
+public record LatestJson(
+        long epoch,
+        long version,
+        List<byte[]> members
+) {}
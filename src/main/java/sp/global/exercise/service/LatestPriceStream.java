@@ -0,0 +1,25 @@
+package sp.global.exercise.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.function.Consumer;
+
+/**
+ * Writes the latest price of each id it is given as one NDJSON line,
+ * all from the snapshot taken when the stream was opened. Ids without a
+ * price are skipped, a repeated id is written again.
+ */
+public interface LatestPriceStream extends Consumer<String> {
+
+    /**
+     * @throws UncheckedIOException if the output fails, e.g. the client went away
+     */
+    @Override
+    void accept(String id);
+
+    /**
+     * Flushes the lines still buffered.
+     * @return number of lines written
+     */
+    long finish() throws IOException;
+}
@@ -0,0 +1,18 @@
+package sp.global.exercise.service;
+
+import sp.global.exercise.model.PriceUpdate;
+
+/**
+ * Receives the prices changed by each commit for a subscription. The calls
+ * for one subscription come one at a time and in version order, on a
+ * thread of their own, so an implementation may write straight to its
+ * client without locking and a slow client only delays its own updates.
+ */
+public interface PriceListener {
+
+    /**
+     * A commit changed at least one subscribed id. Commits that leave
+     * every subscribed id as it was are not sent.
+     */
+    void changed(PriceUpdate update);
+}
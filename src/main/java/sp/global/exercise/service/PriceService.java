@@ -1,18 +1,49 @@
 package sp.global.exercise.service;
 
+import sp.global.exercise.ingest.PriceBlockReader;
+import sp.global.exercise.ingest.PriceRecordReader;
 import sp.global.exercise.model.BatchInfo;
+import sp.global.exercise.model.BatchPage;
+import sp.global.exercise.model.BatchStatus;
 import sp.global.exercise.model.PriceRecord;
 import sp.global.exercise.model.UploadRequest;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Instant;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 public interface PriceService {
 
     UUID uploadAll(UploadRequest request);
+    UUID uploadStream(InputStream body, PriceRecordReader reader) throws IOException;
+    UUID uploadBlocks(InputStream body, PriceBlockReader reader) throws IOException;
     void cancel(UUID batchId);
     Map<String, PriceRecord> getLatest(List<String> ids);
+    // Latest prices as cached JSON members "id":{record}, one per id found
+    List<byte[]> getLatestJson(List<String> ids);
+    // Members of the ids changed after the version only, with the version they are current at.
+    // A version ahead of the store gets every id found
+    LatestJson getLatestJsonSince(List<String> ids, long sinceVersion);
+    LatestPriceStream streamLatest(OutputStream out);
     BatchInfo getBatchStatus(UUID batchId);
-}
+    // Batches newest first, in memory or archived, continued with before = next of the previous page
+    BatchPage listBatches(BatchStatus status, Long before, Instant since, int limit);
+    // Pushes progress of the batches to the listener, the returned action stops the watch
+    Runnable watchBatches(List<UUID> batchIds, BatchListener listener);
+    // Pushes the prices each commit changes among the ids, null for all, the returned action stops it
+    Runnable subscribePrices(Set<String> ids, PriceListener listener);
+    long getStoreVersion();
+    // Changes whenever versions start over: on restart, or when a follower's store is replaced
+    long getStoreEpoch();
+    Map<String, PriceRecord> getAsOf(List<String> ids, Instant asOf);
 
+    // Chunked upload session
+    UUID startBatch(Integer expectedRecords);
+    BatchInfo uploadChunk(UUID batchId, List<PriceRecord> prices);
+    BatchInfo completeBatch(UUID batchId);
+}
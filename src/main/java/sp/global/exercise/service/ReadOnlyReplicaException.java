@@ -0,0 +1,14 @@
+package sp.global.exercise.service;
+
+/**
+ * A batch was sent to a follower, which only serves reads of the prices
+ * replicated from its primary. Uploads go to the primary.
+ */
+public class ReadOnlyReplicaException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ReadOnlyReplicaException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,229 @@
+package sp.global.exercise.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import sp.global.exercise.model.BatchInfo;
+import sp.global.exercise.model.BatchStatus;
+import sp.global.exercise.service.BatchListener;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes batch progress to watchers. One shared thread decides what to
+ * send: terminal transitions are handed over by the batch as they happen,
+ * progress is sampled on a fixed interval and only sent when the processed
+ * count moved. The listener calls of each watch go through a
+ * {@link SerialSender} of its own on virtual threads, so a slow client
+ * never delays the others; while it is still busy its progress samples
+ * are skipped rather than queued. The ingest path never notifies anybody,
+ * and a watch holds no thread while its batches are idle.
+ */
+@Slf4j
+class BatchNotifier implements AutoCloseable {
+
+    private final Duration interval;
+    private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+
+    // Started with the first watch
+    private ScheduledExecutorService ticker;
+    private ExecutorService senders;
+
+    BatchNotifier(Duration interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Starts pushing the batches to the listener.
+     * @return stops the watch, no call to the listener starts once it returned
+     */
+    Runnable watch(List<BatchProgress> batches, BatchListener listener) {
+        var watch = new Watch(batches, listener, new SerialSender(senders()));
+        watches.add(watch);
+        ticker().execute(watch::start);
+        return watch::close;
+    }
+
+    int watches() {
+        return watches.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+            senders.shutdownNow();
+        }
+        List.copyOf(watches).forEach(Watch::close);
+    }
+
+    private synchronized ExecutorService senders() {
+        ticker();
+        return senders;
+    }
+
+    private synchronized ScheduledExecutorService ticker() {
+        if (ticker == null) {
+            ticker = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                    .name("batch-notifier")
+                    .daemon(true)
+                    .factory());
+            long nanos = interval.toNanos();
+            ticker.scheduleWithFixedDelay(this::tick, nanos, nanos, TimeUnit.NANOSECONDS);
+            senders = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("batch-watch-", 0).factory());
+        }
+        return ticker;
+    }
+
+    private void tick() {
+        for (var watch : watches) {
+            watch.sample();
+        }
+    }
+
+    // ============================
+    // One watch, decided on the notifier thread
+    // ============================
+
+    private final class Watch {
+
+        private final BatchListener listener;
+        private final SerialSender out;
+        // Batches not over yet, with the processed count last sent
+        private final Map<BatchProgress, Integer> pending = new LinkedHashMap<>();
+        // Callbacks registered on the batches, dropped when the watch closes
+        private final Map<BatchProgress, Runnable> finishHandlers = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        Watch(List<BatchProgress> batches, BatchListener listener, SerialSender out) {
+            this.listener = listener;
+            this.out = out;
+            for (var batch : batches) {
+                pending.put(batch, -1);
+            }
+        }
+
+        void start() {
+            if (pending.isEmpty()) {
+                finish();
+                return;
+            }
+            for (var batch : List.copyOf(pending.keySet())) {
+                if (closed) {
+                    return;
+                }
+                if (batch.status() == BatchStatus.IN_PROGRESS) {
+                    send(batch);
+                }
+                Runnable handler = () -> execute(() -> finished(batch));
+                finishHandlers.put(batch, handler);
+                // Runs right away for a batch that is already over
+                batch.onFinish(handler);
+                if (closed) {
+                    // Closed meanwhile, it may have missed this handler
+                    batch.removeFinish(handler);
+                }
+            }
+        }
+
+        void sample() {
+            if (out.queued() > 0) {
+                // Still sending, the next sample catches up
+                return;
+            }
+            for (var batch : pending.keySet()) {
+                if (closed) {
+                    return;
+                }
+                if (batch.status() == BatchStatus.IN_PROGRESS) {
+                    send(batch);
+                }
+            }
+        }
+
+        private void finished(BatchProgress batch) {
+            if (closed || !pending.containsKey(batch)) {
+                return;
+            }
+            send(batch);
+            pending.remove(batch);
+            if (pending.isEmpty()) {
+                finish();
+            }
+        }
+
+        private void send(BatchProgress batch) {
+            BatchInfo info = batch.toInfo();
+            Integer last = pending.get(batch);
+            if (info.status() == BatchStatus.IN_PROGRESS && last != null && last == info.processedCount()) {
+                return;
+            }
+            pending.put(batch, info.processedCount());
+            deliver(() -> {
+                if (closed) {
+                    return;
+                }
+                try {
+                    listener.update(info);
+                } catch (RuntimeException e) {
+                    // Typically the client went away
+                    log.debug("Dropping batch watch: {}", e.getMessage());
+                    close();
+                }
+            });
+        }
+
+        private void finish() {
+            if (closed) {
+                return;
+            }
+            // No more samples, the updates already queued still go out first
+            watches.remove(this);
+            deliver(() -> {
+                if (closed) {
+                    return;
+                }
+                close();
+                try {
+                    listener.finished();
+                } catch (RuntimeException e) {
+                    log.debug("Batch watch did not finish cleanly: {}", e.getMessage());
+                }
+            });
+        }
+
+        private void deliver(Runnable call) {
+            try {
+                out.submit(call);
+            } catch (RuntimeException e) {
+                // Notifier shut down
+                close();
+            }
+        }
+
+        private void execute(Runnable task) {
+            if (closed) {
+                return;
+            }
+            try {
+                ticker().execute(task);
+            } catch (RuntimeException e) {
+                // Notifier shut down
+                close();
+            }
+        }
+
+        void close() {
+            closed = true;
+            watches.remove(this);
+            finishHandlers.forEach(BatchProgress::removeFinish);
+        }
+    }
+}
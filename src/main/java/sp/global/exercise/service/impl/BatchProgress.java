@@ -0,0 +1,322 @@
+package sp.global.exercise.service.impl;
+
+import sp.global.exercise.model.BatchInfo;
+import sp.global.exercise.model.BatchStatus;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Mutable progress of one batch, shared by all of its workers.
+ * Workers only bump a {@link LongAdder} and read a volatile status, so the
+ * ingest loop neither allocates nor touches the batch registry. A
+ * {@link BatchInfo} is only built when somebody asks for the status.
+ * <p>
+ * Cancelling or failing a batch is also a signal: the registered abort
+ * handlers stop the workers and release the staging right away, and
+ * {@link #aborted()} wakes up whoever is waiting for the batch.
+ */
+class BatchProgress {
+
+    private final UUID batchId;
+    private final Instant startedAt;
+    private final long startNanos;
+    private final LongAdder processed = new LongAdder();
+    // Processed records left out of the commit, older than live or superseded in the batch
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder superseded = new LongAdder();
+
+    private volatile int recordCount;
+    private volatile Instant completedAt;
+    // Counts frozen when the batch reaches a terminal status
+    private volatile int finalProcessed;
+    private volatile int finalStale;
+    private volatile int finalSuperseded;
+    // Written last on every transition, read first by toInfo()
+    private volatile BatchStatus status = BatchStatus.IN_PROGRESS;
+
+    private final CompletableFuture<BatchStatus> aborted = new CompletableFuture<>();
+    private final List<Runnable> abortHandlers = new ArrayList<>();
+    private final List<Runnable> finishHandlers = new ArrayList<>();
+    // Told of the terminal transition, set by the registry
+    private Consumer<BatchProgress> onTransition;
+    // Position in the registry, guarded by the registry
+    private long sequence;
+    private long abortRequestedNanos;
+    // Set once the commit started, guarded by this
+    private boolean committing;
+
+    BatchProgress(UUID batchId, int recordCount) {
+        this.batchId = batchId;
+        this.startedAt = Instant.now();
+        this.startNanos = System.nanoTime();
+        this.recordCount = recordCount;
+    }
+
+    UUID batchId() {
+        return batchId;
+    }
+
+    BatchStatus status() {
+        return status;
+    }
+
+    Instant startedAt() {
+        return startedAt;
+    }
+
+    /**
+     * @return when the batch reached its terminal status, null while in progress
+     */
+    Instant completedAt() {
+        return status == BatchStatus.IN_PROGRESS ? null : completedAt;
+    }
+
+    long sequence() {
+        return sequence;
+    }
+
+    void sequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    boolean isCancelled() {
+        return status == BatchStatus.CANCELLED;
+    }
+
+    /**
+     * True once the batch was cancelled or failed, workers should stop.
+     */
+    boolean isAborted() {
+        BatchStatus current = status;
+        return current == BatchStatus.CANCELLED || current == BatchStatus.FAILED;
+    }
+
+    // ============================
+    // Hot path
+    // ============================
+
+    void recordProcessed() {
+        processed.increment();
+    }
+
+    void addProcessed(int count) {
+        processed.add(count);
+    }
+
+    /**
+     * Counts a staged chunk of {@code count} records, {@code stale} of them
+     * dropped against the live store and {@code superseded} by the batch.
+     */
+    void addStaged(int count, long stale, long superseded) {
+        this.stale.add(stale);
+        this.superseded.add(superseded);
+        processed.add(count);
+    }
+
+    /**
+     * Records that lost at commit to a price committed since the batch started.
+     */
+    void addStale(long count) {
+        stale.add(count);
+    }
+
+    void setRecordCount(int recordCount) {
+        this.recordCount = recordCount;
+    }
+
+    // ============================
+    // Transitions
+    // ============================
+
+    /**
+     * Terminal transitions only leave {@link BatchStatus#IN_PROGRESS}, the
+     * first one wins and the others change nothing.
+     * @return false if the batch had already ended
+     */
+    synchronized boolean complete(int total) {
+        if (status != BatchStatus.IN_PROGRESS) {
+            return false;
+        }
+        recordCount = total;
+        finish(BatchStatus.COMPLETED, total);
+        abortHandlers.clear();
+        return true;
+    }
+
+    /**
+     * Called before the staging goes to the store, a cancel from then on is refused.
+     * @return false if the batch was aborted before
+     */
+    synchronized boolean startCommit() {
+        if (status != BatchStatus.IN_PROGRESS) {
+            return false;
+        }
+        committing = true;
+        return true;
+    }
+
+    /**
+     * @return false if the batch had already ended or is being committed
+     */
+    boolean cancel() {
+        List<Runnable> handlers;
+        synchronized (this) {
+            if (status != BatchStatus.IN_PROGRESS || committing) {
+                return false;
+            }
+            finish(BatchStatus.CANCELLED, (int) processed.sum());
+            handlers = takeAbortHandlers();
+        }
+        abort(handlers);
+        return true;
+    }
+
+    boolean fail() {
+        List<Runnable> handlers;
+        synchronized (this) {
+            if (status != BatchStatus.IN_PROGRESS) {
+                return false;
+            }
+            finish(BatchStatus.FAILED, (int) processed.sum());
+            handlers = takeAbortHandlers();
+        }
+        abort(handlers);
+        return true;
+    }
+
+    /**
+     * Registers a cleanup to run when the batch is cancelled or fails, on
+     * the thread aborting it once it released this progress. Runs it right
+     * away if that already happened.
+     */
+    void onAbort(Runnable handler) {
+        synchronized (this) {
+            if (status == BatchStatus.IN_PROGRESS) {
+                abortHandlers.add(handler);
+                return;
+            }
+            if (!isAborted()) {
+                // Completed, there is nothing to clean up
+                return;
+            }
+        }
+        handler.run();
+    }
+
+    /**
+     * Set before the progress is shared, the listener runs on the thread
+     * making the transition while it holds this progress.
+     */
+    void onTransition(Consumer<BatchProgress> listener) {
+        this.onTransition = listener;
+    }
+
+    /**
+     * Registers a callback to run once the batch reaches a terminal status,
+     * on the thread making the transition while it holds this progress, so
+     * it should only hand the work off. Runs it right away if the batch is
+     * already over.
+     */
+    synchronized void onFinish(Runnable handler) {
+        if (status == BatchStatus.IN_PROGRESS) {
+            finishHandlers.add(handler);
+        } else {
+            handler.run();
+        }
+    }
+
+    /**
+     * Drops a callback registered with {@link #onFinish} that is no longer wanted.
+     */
+    synchronized void removeFinish(Runnable handler) {
+        finishHandlers.remove(handler);
+    }
+
+    /**
+     * Completes with the terminal status once the batch is cancelled or fails.
+     */
+    CompletableFuture<BatchStatus> aborted() {
+        return aborted;
+    }
+
+    /**
+     * @return nanos since the abort was requested, or -1 if it never was
+     */
+    synchronized long nanosSinceAbort() {
+        return isAborted() ? System.nanoTime() - abortRequestedNanos : -1;
+    }
+
+    long nanosSinceStart() {
+        return System.nanoTime() - startNanos;
+    }
+
+    private List<Runnable> takeAbortHandlers() {
+        abortRequestedNanos = System.nanoTime();
+        List<Runnable> handlers = List.copyOf(abortHandlers);
+        abortHandlers.clear();
+        return handlers;
+    }
+
+    /**
+     * Runs the abort handlers outside the monitor, a slow one must not block
+     * status reads, and only then wakes up whoever waits for the batch.
+     */
+    private void abort(List<Runnable> handlers) {
+        handlers.forEach(Runnable::run);
+        aborted.complete(status);
+    }
+
+    private void finish(BatchStatus terminal, int processedCount) {
+        finalProcessed = processedCount;
+        finalStale = (int) stale.sum();
+        finalSuperseded = (int) superseded.sum();
+        completedAt = Instant.now();
+        status = terminal;
+        if (onTransition != null) {
+            onTransition.accept(this);
+        }
+        finishHandlers.forEach(Runnable::run);
+        finishHandlers.clear();
+    }
+
+    // ============================
+    // Snapshot
+    // ============================
+
+    BatchInfo toInfo() {
+        BatchStatus current = status;
+        boolean running = current == BatchStatus.IN_PROGRESS;
+        // Drops are read before the processed count, so accepted never goes negative
+        int staleCount = running ? (int) stale.sum() : finalStale;
+        int supersededCount = running ? (int) superseded.sum() : finalSuperseded;
+        int done = running ? (int) processed.sum() : finalProcessed;
+        int total = recordCount;
+
+        double percent;
+        if (current == BatchStatus.COMPLETED) {
+            percent = 100.0;
+        } else {
+            int denominator = Math.max(total, done);
+            percent = denominator == 0 ? 0.0 : (done * 100.0) / denominator;
+        }
+
+        return new BatchInfo(
+                batchId,
+                current,
+                startedAt,
+                current == BatchStatus.IN_PROGRESS ? null : completedAt,
+                total,
+                done,
+                Math.max(0, done - staleCount - supersededCount),
+                staleCount,
+                supersededCount,
+                percent
+        );
+    }
+}
@@ -0,0 +1,204 @@
+package sp.global.exercise.service.impl;
+
+import sp.global.exercise.model.BatchInfo;
+import sp.global.exercise.model.BatchPage;
+import sp.global.exercise.model.BatchStatus;
+import sp.global.exercise.persistence.BatchArchive;
+import sp.global.exercise.persistence.BatchArchive.Entry;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Batches known to the service. Batches in progress are always kept,
+ * finished ones leave memory once they ended longer than the retention
+ * ago or when more than {@code maxFinished} are held, oldest first. They
+ * go to the archive when there is one, where their status can still be
+ * read.
+ * <p>
+ * Every batch gets a sequence when it starts and a new one when it ends,
+ * and is indexed by it, overall and per status. A page is read from
+ * those indexes newest first, so listing walks the page, not the
+ * registry. The bookkeeping happens once when a batch starts and once
+ * when it ends, never per record.
+ */
+class BatchRegistry implements AutoCloseable {
+
+    private final ConcurrentHashMap<UUID, BatchProgress> batches = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, BatchProgress> bySequence = new ConcurrentSkipListMap<>();
+    private final Map<BatchStatus, ConcurrentSkipListMap<Long, BatchProgress>> byStatus = new EnumMap<>(BatchStatus.class);
+
+    // Finished batches in the order they ended, guarded by this
+    private final ArrayDeque<BatchProgress> finished = new ArrayDeque<>();
+
+    private final Duration retention;
+    private final int maxFinished;
+    private final Clock clock;
+    // Null unless dropped batches are archived
+    private final BatchArchive archive;
+
+    // Guarded by this
+    private long sequence;
+
+    BatchRegistry(Duration retention, int maxFinished, Clock clock, BatchArchive archive) {
+        this.retention = retention;
+        this.maxFinished = maxFinished;
+        this.clock = clock;
+        this.archive = archive;
+        for (BatchStatus status : BatchStatus.values()) {
+            byStatus.put(status, new ConcurrentSkipListMap<>());
+        }
+        // Sequences keep going up across restarts, so old cursors stay valid
+        this.sequence = archive == null ? 0 : archive.lastSequence();
+    }
+
+    void register(BatchProgress progress) {
+        progress.onTransition(this::transitioned);
+        synchronized (this) {
+            progress.sequence(++sequence);
+            batches.put(progress.batchId(), progress);
+            bySequence.put(progress.sequence(), progress);
+            byStatus.get(BatchStatus.IN_PROGRESS).put(progress.sequence(), progress);
+            evict();
+        }
+    }
+
+    BatchProgress get(UUID batchId) {
+        return batches.get(batchId);
+    }
+
+    boolean contains(UUID batchId) {
+        return batches.containsKey(batchId);
+    }
+
+    /**
+     * @return status of the batch, from the archive once it left memory, or null
+     */
+    BatchInfo info(UUID batchId) {
+        var progress = batches.get(batchId);
+        if (progress != null) {
+            return progress.toInfo();
+        }
+        return archive == null ? null : archive.find(batchId);
+    }
+
+    int active() {
+        return byStatus.get(BatchStatus.IN_PROGRESS).size();
+    }
+
+    int tracked() {
+        return batches.size();
+    }
+
+    /**
+     * Batches with a sequence below {@code before}, newest first, from
+     * memory and the archive. Stops at the first batch that started, or
+     * ended if it is over, before {@code since}.
+     * @param status null for all
+     * @param before null for the newest
+     * @param since null for no lower bound
+     */
+    BatchPage page(BatchStatus status, Long before, Instant since, int limit) {
+        long bound = before == null ? Long.MAX_VALUE : before;
+        var index = status == null ? bySequence : byStatus.get(status);
+
+        List<Entry> held = new ArrayList<>(limit);
+        for (var batch : index.headMap(bound).descendingMap().entrySet()) {
+            BatchInfo info = batch.getValue().toInfo();
+            Instant at = info.completedAt() == null ? info.startedAt() : info.completedAt();
+            if (since != null && at.isBefore(since)) {
+                break;
+            }
+            // Skips a batch caught between two indexes while it ends
+            if (status == null || info.status() == status) {
+                held.add(new Entry(batch.getKey(), info));
+            }
+            if (held.size() == limit) {
+                break;
+            }
+        }
+
+        List<Entry> archived = archive == null || status == BatchStatus.IN_PROGRESS
+                ? List.of()
+                : archive.page(bound, status, since, limit);
+
+        // Both lists are newest first, a batch archived meanwhile may be in both
+        List<BatchInfo> page = new ArrayList<>(limit);
+        long last = bound;
+        int h = 0;
+        int a = 0;
+        while (page.size() < limit && (h < held.size() || a < archived.size())) {
+            Entry next;
+            if (a == archived.size() || (h < held.size() && held.get(h).sequence() >= archived.get(a).sequence())) {
+                next = held.get(h++);
+            } else {
+                next = archived.get(a++);
+            }
+            if (next.sequence() < last) {
+                page.add(next.info());
+                last = next.sequence();
+            }
+        }
+        return new BatchPage(page, page.size() == limit ? last : null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (archive != null) {
+            archive.close();
+        }
+    }
+
+    // ============================
+    // Transitions and eviction
+    // ============================
+
+    private synchronized void transitioned(BatchProgress progress) {
+        if (batches.get(progress.batchId()) != progress) {
+            return;
+        }
+        unindex(progress);
+        progress.sequence(++sequence);
+        bySequence.put(progress.sequence(), progress);
+        byStatus.get(progress.status()).put(progress.sequence(), progress);
+
+        // A batch ends once, it leaves the finished batches only when evicted
+        finished.addLast(progress);
+        evict();
+    }
+
+    /**
+     * Drops the finished batches past the retention or the cap, oldest first.
+     */
+    private void evict() {
+        Instant cutoff = clock.instant().minus(retention);
+        while (!finished.isEmpty()) {
+            var oldest = finished.peekFirst();
+            if (finished.size() <= maxFinished && !oldest.completedAt().isBefore(cutoff)) {
+                break;
+            }
+            finished.pollFirst();
+            batches.remove(oldest.batchId(), oldest);
+            unindex(oldest);
+            if (archive != null) {
+                archive.append(oldest.sequence(), oldest.toInfo());
+            }
+        }
+    }
+
+    private void unindex(BatchProgress progress) {
+        bySequence.remove(progress.sequence());
+        // The status may already have moved on
+        byStatus.values().forEach(index -> index.remove(progress.sequence()));
+    }
+}
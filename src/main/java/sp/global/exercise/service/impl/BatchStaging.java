@@ -0,0 +1,703 @@
+package sp.global.exercise.service.impl;
+
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.store.InstrumentDictionary;
+import sp.global.exercise.store.PriceHistory;
+import sp.global.exercise.store.PriceSnapshot;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Records of a batch waiting for its commit: the newest record per id and,
+ * when price history is kept, the records it superseded along the way, up
+ * to a cap per batch past which they are dropped and only counted.
+ * <p>
+ * Ids are coded in a dictionary of the batch and staged under their int
+ * code, in open-addressing tables striped by code so workers merging
+ * different ids rarely meet on a lock. Only ids that get committed reach
+ * the process-wide dictionary, a cancelled batch or a stale id leaves
+ * nothing behind. The asOf of each staged record sits next to it as epoch
+ * nanos, a merge compares two longs. The records staged carry the
+ * process-wide instance of an id already known, so the maps of the live
+ * store compare ids by reference.
+ * <p>
+ * Workers first deduplicate their chunk in a {@link ChunkReduction} of
+ * their own and hand it over with {@link #mergeAll}, so ids repeated
+ * within a chunk never reach the stripe locks, and neither do records
+ * not newer than the live snapshot the batch started from.
+ * <p>
+ * Past its spill threshold the staging moves what it holds to a sorted run
+ * of {@link SpillRuns} and starts over, so the heap an oversized batch holds
+ * stays bounded. {@link #seal} then prepares the commit: the runs and the
+ * records still in memory are merged once into a run of the newest record
+ * per id, which {@link #newest} reads back on every pass of the live store.
+ */
+class BatchStaging {
+
+    private static final int STRIPES = 64;
+    private static final int STRIPE_MASK = STRIPES - 1;
+
+    // Codes of this batch only, holding the process-wide instance of known ids
+    private final InstrumentDictionary dictionary;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    // Null unless history is kept, losers of the merge are only needed for it
+    private final Queue<PriceRecord> superseded;
+    // Superseded records the batch may still keep, in memory and spilled alike
+    private final AtomicLong supersededRoom;
+    // Superseded records left out of the history past the cap
+    private final LongAdder supersededDropped = new LongAdder();
+
+    // Only touched when an id is staged twice
+    private final LongAdder stale = new LongAdder();
+    // Records not newer than the live price, dropped before staging
+    private final LongAdder dropped = new LongAdder();
+
+    // Live prices when the batch started, null to stage every record
+    private final PriceSnapshot live;
+
+    // Null unless the staging may spill, the run files written so far
+    private final SpillRuns runs;
+    private final long maxInMemory;
+    // Merges share the read lock, a spill takes the write lock to drain the stripes
+    private final ReentrantReadWriteLock spillLock = new ReentrantReadWriteLock();
+    // Staged ids and kept superseded records held in memory, against the threshold
+    private final AtomicLong inMemory = new AtomicLong();
+    // Held by the worker writing a run
+    private final ReentrantLock spiller = new ReentrantLock();
+    // Set by seal once spilled: the records left in memory, sorted by code
+    private Run remainder;
+    private int sealedSize;
+
+    private final Map<String, PriceRecord> newestView = new NewestView();
+
+    /**
+     * @param dictionary process-wide dictionary, whose instance of an id the staged records carry
+     * @param live snapshot reductions drop stale records against, null for none
+     */
+    BatchStaging(InstrumentDictionary dictionary, boolean keepSuperseded, PriceSnapshot live) {
+        this(dictionary, keepSuperseded ? Long.MAX_VALUE : 0, live, null);
+    }
+
+    /**
+     * @param maxSuperseded superseded records kept for the history, 0 when it is not kept
+     * @param spill where and past how many records to spill, null to stay in memory
+     */
+    BatchStaging(InstrumentDictionary dictionary, long maxSuperseded, PriceSnapshot live,
+                 SpillRuns.Settings spill) {
+        this.dictionary = new InstrumentDictionary(dictionary);
+        this.live = live;
+        this.superseded = maxSuperseded > 0 ? new ConcurrentLinkedQueue<>() : null;
+        this.supersededRoom = new AtomicLong(maxSuperseded);
+        this.runs = spill == null ? null : new SpillRuns(spill, this.dictionary);
+        this.maxInMemory = spill == null ? Long.MAX_VALUE : spill.maxRecords();
+        for (int s = 0; s < STRIPES; s++) {
+            stripes[s] = new Stripe();
+        }
+    }
+
+    void merge(PriceRecord record) {
+        int code = dictionary.intern(record.id());
+        long asOf = PriceHistory.epochNanos(record.asOf());
+        var stripe = stripes[code & STRIPE_MASK];
+        PriceRecord loser;
+        spillLock.readLock().lock();
+        try {
+            synchronized (stripe) {
+                loser = stripe.merge(code, asOf, record);
+            }
+            if (loser != null) {
+                stale.increment();
+                if (superseded != null && claimSuperseded(1) == 1) {
+                    superseded.add(loser);
+                    inMemory.incrementAndGet();
+                }
+            } else {
+                inMemory.incrementAndGet();
+            }
+        } finally {
+            spillLock.readLock().unlock();
+        }
+        spillIfFull();
+    }
+
+    /**
+     * An unsynchronized reduction for one chunk of this batch, to be merged
+     * with {@link #mergeAll} once the chunk is read.
+     */
+    ChunkReduction reduction(int expected) {
+        return new ChunkReduction(dictionary, live, superseded != null, expected);
+    }
+
+    /**
+     * Merges the distinct ids of a reduced chunk, taking each stripe lock
+     * once however many of its ids the chunk holds. Records losing to one
+     * staged before are added to the superseded count of the chunk.
+     */
+    void mergeAll(ChunkReduction chunk) {
+        // Counting sort of the used slots by stripe
+        int capacity = chunk.capacity();
+        int[] starts = new int[STRIPES + 1];
+        for (int slot = 0; slot < capacity; slot++) {
+            if (chunk.staged(slot)) {
+                starts[(chunk.code(slot) & STRIPE_MASK) + 1]++;
+            }
+        }
+        for (int s = 0; s < STRIPES; s++) {
+            starts[s + 1] += starts[s];
+        }
+        int[] order = new int[chunk.size()];
+        int[] next = starts.clone();
+        for (int slot = 0; slot < capacity; slot++) {
+            if (chunk.staged(slot)) {
+                order[next[chunk.code(slot) & STRIPE_MASK]++] = slot;
+            }
+        }
+
+        long losers = 0;
+        long held = 0;
+        spillLock.readLock().lock();
+        try {
+            if (superseded != null) {
+                var discarded = chunk.discarded();
+                int kept = claimSuperseded(discarded.size());
+                superseded.addAll(kept == discarded.size() ? discarded : discarded.subList(0, kept));
+                held += kept;
+            }
+            for (int s = 0; s < STRIPES; s++) {
+                if (starts[s] == starts[s + 1]) {
+                    continue;
+                }
+                var stripe = stripes[s];
+                synchronized (stripe) {
+                    for (int i = starts[s]; i < starts[s + 1]; i++) {
+                        int slot = order[i];
+                        var loser = stripe.merge(chunk.code(slot), chunk.asOf(slot), chunk.record(slot));
+                        if (loser == null) {
+                            held++;
+                        } else {
+                            losers++;
+                            if (superseded != null && claimSuperseded(1) == 1) {
+                                superseded.add(loser);
+                                held++;
+                            }
+                        }
+                    }
+                }
+            }
+            inMemory.addAndGet(held);
+        } finally {
+            spillLock.readLock().unlock();
+        }
+        chunk.addSuperseded(losers);
+        stale.add(chunk.superseded());
+        dropped.add(chunk.dropped());
+        spillIfFull();
+    }
+
+    /**
+     * Takes room for up to {@code wanted} superseded records, the ones past
+     * the cap are counted as dropped.
+     * @return how many of them may be kept
+     */
+    private int claimSuperseded(int wanted) {
+        long room;
+        int granted;
+        do {
+            room = supersededRoom.get();
+            granted = (int) Math.min(room, wanted);
+        } while (granted > 0 && !supersededRoom.compareAndSet(room, room - granted));
+        if (granted < wanted) {
+            supersededDropped.add(wanted - granted);
+        }
+        return granted;
+    }
+
+    // ============================
+    // Spilling to run files
+    // ============================
+
+    /**
+     * Spills when the threshold is passed. While one worker writes a run the
+     * others keep merging into the emptied stripes, up to twice the threshold,
+     * past which they wait for the run to be written.
+     * @throws java.util.concurrent.CancellationException if the staging was released meanwhile
+     */
+    private void spillIfFull() {
+        long held = inMemory.get();
+        if (held < maxInMemory) {
+            return;
+        }
+        if (held - maxInMemory >= maxInMemory) {
+            spiller.lock();
+        } else if (!spiller.tryLock()) {
+            return;
+        }
+        try {
+            if (inMemory.get() < maxInMemory) {
+                // Spilled by the worker we waited for
+                return;
+            }
+            Run run;
+            List<PriceRecord> losers = List.of();
+            spillLock.writeLock().lock();
+            try {
+                run = drainStripes();
+                if (superseded != null) {
+                    losers = new ArrayList<>(superseded);
+                    superseded.clear();
+                }
+                inMemory.set(0);
+            } finally {
+                spillLock.writeLock().unlock();
+            }
+            // Written outside the lock, the drained records are only held by this worker
+            runs.writeRun(run.codes, run.records, run.count);
+            runs.appendSuperseded(losers);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot spill staging", e);
+        } finally {
+            spiller.unlock();
+        }
+    }
+
+    /**
+     * Newest record per id merged so far, sorted by code, the stripes left empty.
+     * Called with the write lock held or once the workers are done.
+     */
+    private Run drainStripes() {
+        int count = newestSize();
+        long[] keys = new long[count];
+        PriceRecord[] drained = new PriceRecord[count];
+        int n = 0;
+        for (var stripe : stripes) {
+            for (int slot = 0; slot < stripe.keys.length; slot++) {
+                if (stripe.keys[slot] != 0) {
+                    // Code in the high half, so sorting the keys sorts by code
+                    keys[n] = (long) (stripe.keys[slot] - 1) << 32 | n;
+                    drained[n++] = stripe.records[slot];
+                }
+            }
+            stripe.clear();
+        }
+        Arrays.sort(keys);
+        int[] codes = new int[count];
+        PriceRecord[] records = new PriceRecord[count];
+        for (int i = 0; i < count; i++) {
+            codes[i] = (int) (keys[i] >>> 32);
+            records[i] = drained[(int) keys[i]];
+        }
+        return new Run(codes, records, count);
+    }
+
+    /**
+     * Prepares the commit once the workers are done merging. A spilled
+     * staging sorts what is left in memory and counts its distinct ids and
+     * the records superseded across runs, added to {@link #stale}.
+     * @return the records superseded across runs
+     */
+    long seal() {
+        if (runs == null || runs.runCount() == 0) {
+            return 0;
+        }
+        if (remainder == null) {
+            remainder = drainStripes();
+            long[] counts;
+            try {
+                // The workers are done, the room left is ours alone
+                counts = runs.seal(remainder.codes, remainder.records, remainder.count,
+                        superseded == null ? 0 : supersededRoom.get());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot merge spilled staging", e);
+            }
+            sealedSize = Math.toIntExact(counts[0]);
+            stale.add(counts[1]);
+            if (superseded != null) {
+                // Superseded across runs, under the same cap as the ones superseded in memory
+                supersededRoom.addAndGet(-counts[2]);
+                supersededDropped.add(counts[1] - counts[2]);
+            }
+            return counts[1];
+        }
+        return 0;
+    }
+
+    /**
+     * True once part of the staging went to run files.
+     */
+    boolean spilled() {
+        return runs != null && runs.runCount() > 0;
+    }
+
+    /**
+     * Records sorted by code, {@code count} first entries used.
+     */
+    private record Run(int[] codes, PriceRecord[] records, int count) {}
+
+    /**
+     * Newest record per id, what the live store commits. A read-only view,
+     * to be used once the workers are done merging and the staging is sealed.
+     */
+    Map<String, PriceRecord> newest() {
+        return newestView;
+    }
+
+    /**
+     * Every staged record, superseded ones included when they are kept,
+     * up to the cap. Once {@link #seal sealed} when spilled: the records
+     * superseded across runs are only kept then, and the remainder is read
+     * back from the merged run.
+     */
+    void forEachRecord(Consumer<PriceRecord> action) {
+        if (spilled()) {
+            runs.forEach(action);
+        } else {
+            for (var stripe : stripes) {
+                stripe.forEach(action);
+            }
+        }
+        if (superseded != null) {
+            superseded.forEach(action);
+        }
+    }
+
+    /**
+     * Records dropped so far because the batch had a newer one for the id.
+     */
+    long stale() {
+        return stale.sum();
+    }
+
+    /**
+     * Records dropped before staging because the live price was not older.
+     */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Superseded records not kept for the history because the cap was reached.
+     */
+    long supersededDropped() {
+        return supersededDropped.sum();
+    }
+
+    int size() {
+        long size = newestSize() + (superseded == null ? 0 : superseded.size());
+        if (remainder != null) {
+            size += remainder.count;
+        }
+        if (runs != null) {
+            size += runs.records();
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Releases the records, deleting the run files. Workers still merging
+     * fail their next spill.
+     */
+    void clear() {
+        spillLock.writeLock().lock();
+        try {
+            for (var stripe : stripes) {
+                synchronized (stripe) {
+                    stripe.clear();
+                }
+            }
+            if (superseded != null) {
+                superseded.clear();
+            }
+            remainder = null;
+        } finally {
+            spillLock.writeLock().unlock();
+        }
+        if (runs != null) {
+            runs.delete();
+        }
+    }
+
+    private int newestSize() {
+        int size = 0;
+        for (var stripe : stripes) {
+            size += stripe.size;
+        }
+        return size;
+    }
+
+    // ============================
+    // Open-addressing table of one stripe
+    // ============================
+
+    /**
+     * Linear probing on {@code code + 1}, so that 0 marks a free slot.
+     * Guarded by its own monitor.
+     */
+    private final class Stripe {
+
+        private static final int INITIAL_BITS = 4;
+
+        private int shift = Integer.SIZE - INITIAL_BITS;
+        private int[] keys = new int[1 << INITIAL_BITS];
+        private long[] asOfs = new long[1 << INITIAL_BITS];
+        private PriceRecord[] records = new PriceRecord[1 << INITIAL_BITS];
+        private int size;
+
+        /**
+         * @return the record that lost to another one of the same id, or null
+         */
+        PriceRecord merge(int code, long asOf, PriceRecord record) {
+            int mask = keys.length - 1;
+            int slot = slot(code, shift);
+            while (keys[slot] != 0) {
+                if (keys[slot] == code + 1) {
+                    var staged = records[slot];
+                    if (!isNewer(asOf, record.asOf(), asOfs[slot], staged.asOf())) {
+                        return record;
+                    }
+                    asOfs[slot] = asOf;
+                    records[slot] = canonical(code, record);
+                    return staged;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            keys[slot] = code + 1;
+            asOfs[slot] = asOf;
+            records[slot] = canonical(code, record);
+            if (++size * 4 > keys.length * 3) {
+                grow();
+            }
+            return null;
+        }
+
+        void forEach(Consumer<PriceRecord> action) {
+            for (var record : records) {
+                if (record != null) {
+                    action.accept(record);
+                }
+            }
+        }
+
+        void clear() {
+            shift = Integer.SIZE - INITIAL_BITS;
+            keys = new int[1 << INITIAL_BITS];
+            asOfs = new long[1 << INITIAL_BITS];
+            records = new PriceRecord[1 << INITIAL_BITS];
+            size = 0;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            long[] oldAsOfs = asOfs;
+            PriceRecord[] oldRecords = records;
+            shift--;
+            keys = new int[oldKeys.length * 2];
+            asOfs = new long[keys.length];
+            records = new PriceRecord[keys.length];
+
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = slot(oldKeys[i] - 1, shift);
+                    while (keys[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    asOfs[slot] = oldAsOfs[i];
+                    records[slot] = oldRecords[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Same rule as PriceRecord.newest on asOf nanos, a tie keeps the staged record.
+     */
+    static boolean isNewer(long asOf, Instant instant, long stagedAsOf, Instant stagedInstant) {
+        int order = Long.compare(asOf, stagedAsOf);
+        if (order == 0) {
+            // Nanos saturate outside years 1677 to 2262
+            order = instant.compareTo(stagedInstant);
+        }
+        return order > 0;
+    }
+
+    /**
+     * The low bits of a code pick the stripe, the rest is spread over the
+     * table by the high bits of a Fibonacci hash.
+     */
+    private static int slot(int code, int shift) {
+        return ((code >>> 6) * 0x9E3779B9) >>> shift;
+    }
+
+    private PriceRecord canonical(int code, PriceRecord record) {
+        String id = dictionary.id(code);
+        return id == record.id() ? record : new PriceRecord(id, record.asOf(), record.payload());
+    }
+
+    // ============================
+    // Map view for the live store
+    // ============================
+
+    private final class NewestView extends AbstractMap<String, PriceRecord> {
+
+        @Override
+        public int size() {
+            return remainder == null ? newestSize() : sealedSize;
+        }
+
+        @Override
+        public PriceRecord get(Object key) {
+            if (!(key instanceof String id)) {
+                return null;
+            }
+            int code = dictionary.lookup(id);
+            if (code < 0) {
+                return null;
+            }
+            if (remainder != null) {
+                // Spilled, a few records of the merged run are read
+                return runs.find(code);
+            }
+            var stripe = stripes[code & STRIPE_MASK];
+            synchronized (stripe) {
+                int mask = stripe.keys.length - 1;
+                for (int slot = slot(code, stripe.shift); stripe.keys[slot] != 0; slot = (slot + 1) & mask) {
+                    if (stripe.keys[slot] == code + 1) {
+                        return stripe.records[slot];
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<String> keySet() {
+            if (remainder == null) {
+                return super.keySet();
+            }
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<String> iterator() {
+                    // Spilled, the ids are read without decoding the payloads
+                    return runs.newestIds();
+                }
+
+                @Override
+                public int size() {
+                    return NewestView.this.size();
+                }
+            };
+        }
+
+        @Override
+        public Collection<PriceRecord> values() {
+            return new AbstractCollection<>() {
+                @Override
+                public Iterator<PriceRecord> iterator() {
+                    return records();
+                }
+
+                @Override
+                public int size() {
+                    return NewestView.this.size();
+                }
+            };
+        }
+
+        @Override
+        public Set<Entry<String, PriceRecord>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, PriceRecord>> iterator() {
+                    var records = records();
+                    return new Iterator<>() {
+                        @Override
+                        public boolean hasNext() {
+                            return records.hasNext();
+                        }
+
+                        @Override
+                        public Entry<String, PriceRecord> next() {
+                            var record = records.next();
+                            return Map.entry(record.id(), record);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return NewestView.this.size();
+                }
+            };
+        }
+
+        private Iterator<PriceRecord> records() {
+            return remainder == null ? new RecordIterator() : runs.newest();
+        }
+    }
+
+    private final class RecordIterator implements Iterator<PriceRecord> {
+
+        private int stripe;
+        private int slot = -1;
+
+        RecordIterator() {
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return stripe < STRIPES;
+        }
+
+        @Override
+        public PriceRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            var record = stripes[stripe].records[slot];
+            advance();
+            return record;
+        }
+
+        private void advance() {
+            while (stripe < STRIPES) {
+                var records = stripes[stripe].records;
+                while (++slot < records.length) {
+                    if (records[slot] != null) {
+                        return;
+                    }
+                }
+                stripe++;
+                slot = -1;
+            }
+        }
+    }
+}
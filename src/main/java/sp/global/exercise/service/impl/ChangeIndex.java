@@ -0,0 +1,146 @@
+package sp.global.exercise.service.impl;
+
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.store.InstrumentDictionary;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Ids changed by each of the last commits, to answer "what changed since
+ * version N" without reading every requested id.
+ * <p>
+ * Every id is also tagged with the version of the commit that last changed
+ * it, by dictionary code. A delta walks the commits after N when they
+ * changed fewer ids than were requested, and checks the tags of the
+ * requested ids otherwise. Commits are dropped oldest first past
+ * {@code maxVersions} commits or {@code maxChanges} changed ids in total;
+ * a version older than the oldest one kept is no longer covered.
+ */
+class ChangeIndex {
+
+    private record Commit(long version, int[] codes) {}
+
+    private final InstrumentDictionary dictionary;
+    private final int maxVersions;
+    private final int maxChanges;
+
+    // Guarded by this
+    private final ArrayDeque<Commit> commits = new ArrayDeque<>();
+    private long[] tags = new long[1024];
+    private long base;
+    private long latest;
+    private long changes;
+
+    /**
+     * @param version of the store when the index starts, deltas from it on are covered
+     */
+    ChangeIndex(InstrumentDictionary dictionary, long version, int maxVersions, int maxChanges) {
+        this.dictionary = dictionary;
+        this.maxVersions = maxVersions;
+        this.maxChanges = maxChanges;
+        this.base = version;
+        this.latest = version;
+    }
+
+    /**
+     * Records the ids a commit changed. Called once per commit, in version order.
+     */
+    synchronized void record(long version, Collection<PriceRecord> changed) {
+        int[] codes = new int[changed.size()];
+        int i = 0;
+        for (PriceRecord record : changed) {
+            int code = dictionary.intern(record.id());
+            if (code >= tags.length) {
+                tags = Arrays.copyOf(tags, Math.max(code + 1, tags.length * 2));
+            }
+            tags[code] = version;
+            codes[i++] = code;
+        }
+        commits.addLast(new Commit(version, codes));
+        changes += codes.length;
+        latest = version;
+
+        while (commits.size() > maxVersions || (changes > maxChanges && commits.size() > 1)) {
+            var oldest = commits.pollFirst();
+            changes -= oldest.codes().length;
+            base = oldest.version();
+        }
+    }
+
+    /**
+     * Starts over at {@code version}, after the whole store was replaced.
+     * Older versions are no longer covered.
+     */
+    synchronized void reset(long version) {
+        commits.clear();
+        Arrays.fill(tags, 0);
+        changes = 0;
+        base = version;
+        latest = version;
+    }
+
+    /**
+     * Newest version recorded. The changes of every version up to it are known.
+     */
+    synchronized long latest() {
+        return latest;
+    }
+
+    /**
+     * The requested ids changed after {@code since} up to {@link #latest()}, once each.
+     * @return null if {@code since} is older than the commits kept
+     */
+    synchronized List<String> changedSince(long since, List<String> ids) {
+        if (since < base) {
+            return null;
+        }
+        long walked = 0;
+        for (var it = commits.descendingIterator(); it.hasNext(); ) {
+            var commit = it.next();
+            if (commit.version() <= since) {
+                break;
+            }
+            walked += commit.codes().length;
+        }
+
+        List<String> changed = new ArrayList<>();
+        if (walked == 0) {
+            return changed;
+        }
+        if (walked <= ids.size()) {
+            Set<String> requested = new HashSet<>(ids);
+            BitSet seen = new BitSet();
+            for (var it = commits.descendingIterator(); it.hasNext(); ) {
+                var commit = it.next();
+                if (commit.version() <= since) {
+                    break;
+                }
+                for (int code : commit.codes()) {
+                    if (!seen.get(code)) {
+                        seen.set(code);
+                        String id = dictionary.id(code);
+                        if (requested.contains(id)) {
+                            changed.add(id);
+                        }
+                    }
+                }
+            }
+        } else {
+            Set<String> seen = new HashSet<>();
+            for (String id : ids) {
+                int code = dictionary.lookup(id);
+                if (code >= 0 && code < tags.length && tags[code] > since && seen.add(id)) {
+                    changed.add(id);
+                }
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,144 @@
+package sp.global.exercise.service.impl;
+
+import sp.global.exercise.model.PriceRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Submits chunks of a streamed upload to the batch workers while the body
+ * is still being read. The number of chunks in flight is bounded, so the
+ * reader blocks when the workers fall behind and memory depends on the
+ * chunk size, not the upload. Only a count of the chunks not merged yet is
+ * kept, never one entry per chunk.
+ */
+class ChunkDispatcher {
+
+    private final Semaphore inFlight;
+    private final ExecutorService executor;
+    private final IntConsumer onDispatched;
+
+    // Chunks submitted and not merged, plus one until every chunk was submitted
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final CompletableFuture<Void> merged = new CompletableFuture<>();
+    private int dispatched;
+
+    /**
+     * @param onDispatched told the number of records dispatched so far after each chunk
+     */
+    ChunkDispatcher(int maxInFlight, ExecutorService executor, IntConsumer onDispatched) {
+        this.inFlight = new Semaphore(maxInFlight);
+        this.executor = executor;
+        this.onDispatched = onDispatched;
+    }
+
+    /**
+     * Submits a chunk of {@code records} records, waiting for a free slot if needed.
+     */
+    void submit(int records, Runnable work) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for a worker");
+        }
+
+        dispatched += records;
+        pending.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    work.run();
+                } catch (Throwable e) {
+                    merged.completeExceptionally(e);
+                } finally {
+                    inFlight.release();
+                    chunkDone();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            chunkDone();
+            throw e;
+        }
+        onDispatched.accept(dispatched);
+    }
+
+    /**
+     * Completes once every chunk submitted is merged, or exceptionally with
+     * the first chunk that failed. Called once, after the last submit.
+     */
+    CompletableFuture<Void> allMerged() {
+        chunkDone();
+        return merged;
+    }
+
+    private void chunkDone() {
+        if (pending.decrementAndGet() == 0) {
+            merged.complete(null);
+        }
+    }
+
+    /**
+     * Groups streamed records into chunks for the worker. The size of the
+     * upload is unknown while it is read: chunks start at {@code minSize},
+     * so a small upload still spreads over the workers, and double after
+     * every {@code wave} chunks up to {@code maxSize}, so a large one is
+     * not cut into many small merges.
+     */
+    RecordChunker chunker(int minSize, int maxSize, int wave, Consumer<List<PriceRecord>> worker) {
+        return new RecordChunker(minSize, maxSize, wave, worker);
+    }
+
+    class RecordChunker implements Consumer<PriceRecord> {
+
+        private final int maxSize;
+        private final int wave;
+        private final Consumer<List<PriceRecord>> worker;
+        private int chunkSize;
+        private int flushed;
+        private List<PriceRecord> buffer;
+
+        private RecordChunker(int minSize, int maxSize, int wave, Consumer<List<PriceRecord>> worker) {
+            this.maxSize = maxSize;
+            this.wave = Math.max(1, wave);
+            this.worker = worker;
+            this.chunkSize = minSize;
+            this.buffer = new ArrayList<>(minSize);
+        }
+
+        @Override
+        public void accept(PriceRecord record) {
+            buffer.add(record);
+            if (buffer.size() == chunkSize) {
+                flush();
+            }
+        }
+
+        /**
+         * Submits the records buffered so far.
+         */
+        void flush() {
+            if (buffer.isEmpty()) {
+                return;
+            }
+            var chunk = buffer;
+            if (++flushed % wave == 0 && chunkSize < maxSize) {
+                chunkSize = Math.min(maxSize, chunkSize * 2);
+            }
+            buffer = new ArrayList<>(chunkSize);
+            submit(chunk.size(), () -> worker.accept(chunk));
+        }
+    }
+
+    int dispatched() {
+        return dispatched;
+    }
+}
@@ -0,0 +1,219 @@
+package sp.global.exercise.service.impl;
+
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.store.InstrumentDictionary;
+import sp.global.exercise.store.PriceHistory;
+import sp.global.exercise.store.PriceSnapshot;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Newest record per id of one chunk, deduplicated by the worker that owns
+ * the chunk before anything reaches the shared {@link BatchStaging}.
+ * <p>
+ * Not thread-safe: a chunk with heavily duplicated ids collapses here
+ * without a single lock, and only its distinct ids are merged into the
+ * staging, one stripe lock per stripe touched. Uses the same merge rule
+ * and the same code keyed open addressing as the staging stripes.
+ * <p>
+ * The first record of an id is checked against the live snapshot taken
+ * when the batch started. If it is not newer than the live price, the slot
+ * keeps the live asOf as a floor and every record of the id that does not
+ * beat it is dropped before staging. Live prices only move forward, so a
+ * record stale against that snapshot is stale against any later commit.
+ */
+class ChunkReduction {
+
+    private static final int MIN_BITS = 4;
+
+    private final InstrumentDictionary dictionary;
+    // Null to stage every record whatever the live price
+    private final PriceSnapshot live;
+
+    private int shift;
+    private int[] keys;
+    private long[] asOfs;
+    // The live price, without payload, in the slots of a floor
+    private PriceRecord[] records;
+    private boolean[] staged;
+    private int size;
+    private int distinct;
+    private int added;
+
+    // Null unless history is kept, like in the staging
+    private final List<PriceRecord> discarded;
+    private long superseded;
+    private long dropped;
+
+    /**
+     * @param live snapshot stale records are checked against, null for none
+     * @param expected records the chunk is expected to hold, sizes the table
+     */
+    ChunkReduction(InstrumentDictionary dictionary, PriceSnapshot live, boolean keepSuperseded, int expected) {
+        this.dictionary = dictionary;
+        this.live = live;
+        this.discarded = keepSuperseded ? new ArrayList<>() : null;
+        // Room for every record of the chunk at the 3/4 load factor, no rehash when ids are distinct
+        int bits = Math.max(MIN_BITS, Integer.SIZE - Integer.numberOfLeadingZeros(Math.max(1, expected * 4 / 3)));
+        this.shift = Integer.SIZE - bits;
+        this.keys = new int[1 << bits];
+        this.asOfs = new long[1 << bits];
+        this.records = new PriceRecord[1 << bits];
+        this.staged = new boolean[1 << bits];
+    }
+
+    void add(PriceRecord record) {
+        added++;
+        int code = dictionary.intern(record.id());
+        long asOf = PriceHistory.epochNanos(record.asOf());
+        int mask = keys.length - 1;
+        int slot = slot(code, shift);
+        while (keys[slot] != 0) {
+            if (keys[slot] == code + 1) {
+                var kept = records[slot];
+                if (!BatchStaging.isNewer(asOf, record.asOf(), asOfs[slot], kept.asOf())) {
+                    discard(record, staged[slot]);
+                    return;
+                }
+                asOfs[slot] = asOf;
+                records[slot] = record;
+                if (staged[slot]) {
+                    discard(kept, true);
+                } else {
+                    staged[slot] = true;
+                    distinct++;
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = code + 1;
+        Instant liveAsOf = live == null ? null : live.asOf(record.id());
+        long liveNanos = liveAsOf == null ? 0 : PriceHistory.epochNanos(liveAsOf);
+        if (liveAsOf != null && !BatchStaging.isNewer(asOf, record.asOf(), liveNanos, liveAsOf)) {
+            asOfs[slot] = liveNanos;
+            records[slot] = new PriceRecord(record.id(), liveAsOf, null);
+            discard(record, false);
+        } else {
+            asOfs[slot] = asOf;
+            records[slot] = record;
+            staged[slot] = true;
+            distinct++;
+        }
+        if (++size * 4 > keys.length * 3) {
+            grow();
+        }
+    }
+
+    /**
+     * Records added, duplicates included.
+     */
+    int records() {
+        return added;
+    }
+
+    /**
+     * Distinct ids of the chunk left to stage.
+     */
+    int size() {
+        return distinct;
+    }
+
+    /**
+     * Records of the chunk that lost to a newer one of the batch, within the
+     * chunk and, once merged, in the staging.
+     */
+    long superseded() {
+        return superseded;
+    }
+
+    void addSuperseded(long count) {
+        superseded += count;
+    }
+
+    /**
+     * Records of the chunk not newer than the live price at batch start.
+     */
+    long dropped() {
+        return dropped;
+    }
+
+    /**
+     * Superseded and dropped records, kept for history. Null unless history is kept.
+     */
+    List<PriceRecord> discarded() {
+        return discarded;
+    }
+
+    // Table access for BatchStaging.mergeAll, a slot is staged when it holds a record of the chunk
+
+    int capacity() {
+        return keys.length;
+    }
+
+    int code(int slot) {
+        return keys[slot] - 1;
+    }
+
+    long asOf(int slot) {
+        return asOfs[slot];
+    }
+
+    boolean staged(int slot) {
+        return staged[slot];
+    }
+
+    PriceRecord record(int slot) {
+        return records[slot];
+    }
+
+    /**
+     * @param superseded whether the record lost to one of the chunk, or to the live price
+     */
+    private void discard(PriceRecord loser, boolean superseded) {
+        if (superseded) {
+            this.superseded++;
+        } else {
+            dropped++;
+        }
+        if (discarded != null) {
+            discarded.add(loser);
+        }
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        long[] oldAsOfs = asOfs;
+        PriceRecord[] oldRecords = records;
+        boolean[] oldStaged = staged;
+        shift--;
+        keys = new int[oldKeys.length * 2];
+        asOfs = new long[keys.length];
+        records = new PriceRecord[keys.length];
+        staged = new boolean[keys.length];
+
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(oldKeys[i] - 1, shift);
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                asOfs[slot] = oldAsOfs[i];
+                records[slot] = oldRecords[i];
+                staged[slot] = oldStaged[i];
+            }
+        }
+    }
+
+    /**
+     * Fibonacci hash of the whole code, the chunk is not striped.
+     */
+    private static int slot(int code, int shift) {
+        return (code * 0x9E3779B9) >>> shift;
+    }
+}
@@ -0,0 +1,196 @@
+package sp.global.exercise.service.impl;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+/**
+ * Group commit for batches that finish at about the same time.
+ * <p>
+ * A batch ready to commit queues its staging and competes for the leader
+ * lock. The leader waits up to the group window while other batches are
+ * sealing their staging, takes everything queued so far as its group and releases
+ * the lock, then commits the group, oldest first, in a single store update.
+ * Batches that queued behind it find their staging already taken when they
+ * get the lock and wait for its group to finish, so a burst of finishing
+ * batches costs one store commit instead of one each. The lock only orders
+ * the forming of groups, the store commits of successive groups overlap.
+ * <p>
+ * Each batch keeps its own outcome: all of its records become visible in
+ * the same version, and it learns how many of them lost to a live price.
+ * A failed group commit fails every batch of the group, none of which is
+ * visible then.
+ */
+class CommitCoordinator {
+
+    // Granularity of the wait for batches still sealing
+    private static final long WAIT_STEP_NANOS = 50_000;
+
+    /**
+     * Commits a group of stagings, oldest first, in one store update.
+     */
+    @FunctionalInterface
+    interface GroupCommit {
+        /**
+         * @return per staging, in group order, its records that lost to a live price
+         *         or to an earlier staging of the group
+         */
+        long[] commit(List<BatchStaging> group);
+    }
+
+    private final GroupCommit groupCommit;
+    private final long windowNanos;
+    private final int maxGroupSize;
+    // Batches sealed or sealing for a commit, the ones queued here included.
+    // Idle sessions and batches still merging are not, they would only hold the group back
+    private final IntSupplier sealing;
+
+    private final ReentrantLock leader = new ReentrantLock();
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    CommitCoordinator(GroupCommit groupCommit, Duration window, int maxGroupSize, IntSupplier sealing) {
+        if (maxGroupSize < 1) {
+            throw new IllegalArgumentException("maxGroupSize must be positive");
+        }
+        this.groupCommit = groupCommit;
+        this.windowNanos = window.toNanos();
+        this.maxGroupSize = maxGroupSize;
+        this.sealing = sealing;
+    }
+
+    /**
+     * Commits the staging, alone or with the batches ready meanwhile.
+     * @return records of the staging that lost to a live price
+     */
+    long commit(BatchStaging staging) {
+        var pending = new Pending(staging);
+        queue.add(pending);
+        queued.incrementAndGet();
+
+        // Our staging may have gone with the group of the previous leader
+        while (!pending.grouped) {
+            List<Pending> group;
+            leader.lock();
+            try {
+                if (pending.grouped) {
+                    break;
+                }
+                awaitStragglers();
+                group = drain();
+            } finally {
+                leader.unlock();
+            }
+            commitGroup(group);
+        }
+        pending.awaitDone();
+
+        if (pending.failure instanceof Error error) {
+            throw error;
+        }
+        if (pending.failure != null) {
+            throw (RuntimeException) pending.failure;
+        }
+        return pending.staleInStore;
+    }
+
+    /**
+     * Waits within the window while batches that are sealing could join the group.
+     */
+    private void awaitStragglers() {
+        if (windowNanos <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + windowNanos;
+        while (queued.get() < maxGroupSize
+                && sealing.getAsInt() > queued.get()
+                && deadline - System.nanoTime() > 0) {
+            LockSupport.parkNanos(WAIT_STEP_NANOS);
+        }
+    }
+
+    /**
+     * Takes the next group off the queue. A spilled staging is committed on
+     * its own, a group would copy its records back onto the heap.
+     */
+    private List<Pending> drain() {
+        List<Pending> group = new ArrayList<>(Math.min(queued.get(), maxGroupSize));
+        Pending next;
+        // Only the leader polls, the head peeked is the one polled
+        while (group.size() < maxGroupSize && (next = queue.peek()) != null) {
+            if (!group.isEmpty() && (next.staging.spilled() || group.get(0).staging.spilled())) {
+                break;
+            }
+            queue.poll();
+            queued.decrementAndGet();
+            next.grouped = true;
+            group.add(next);
+        }
+        return group;
+    }
+
+    private void commitGroup(List<Pending> group) {
+        List<BatchStaging> stagings = new ArrayList<>(group.size());
+        for (var pending : group) {
+            stagings.add(pending.staging);
+        }
+        try {
+            long[] staleInStore = groupCommit.commit(stagings);
+            for (int i = 0; i < group.size(); i++) {
+                group.get(i).staleInStore = staleInStore[i];
+            }
+        } catch (Throwable e) {
+            // An error too, released without a failure a batch would report a commit that never happened
+            for (var pending : group) {
+                pending.failure = e;
+            }
+        } finally {
+            // Outcome written before, read by each batch once released
+            for (var pending : group) {
+                pending.done.countDown();
+            }
+        }
+    }
+
+    /**
+     * A staging waiting for its group. The outcome is written by the batch
+     * committing the group, before it releases {@code done}.
+     */
+    private static final class Pending {
+
+        final BatchStaging staging;
+        // Taken into a group, set under the leader lock
+        volatile boolean grouped;
+        final CountDownLatch done = new CountDownLatch(1);
+        long staleInStore;
+        // A RuntimeException or an Error, the group commit throws nothing checked
+        Throwable failure;
+
+        Pending(BatchStaging staging) {
+            this.staging = staging;
+        }
+
+        void awaitDone() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // The group commits anyway, its outcome is still ours
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
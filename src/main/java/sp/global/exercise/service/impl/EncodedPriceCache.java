@@ -0,0 +1,244 @@
+package sp.global.exercise.service.impl;
+
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.store.PriceSnapshot;
+import tools.jackson.databind.ObjectWriter;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * JSON of the live prices, encoded on first read and reused until the id
+ * changes. Each entry holds a complete {@code "id":{record}} member, so a
+ * response is a concatenation of cached bytes.
+ * <p>
+ * An entry is tagged with the store version it was encoded from. Every
+ * commit turns the entries of the ids it changed into markers of its
+ * version before it counts as {@link #invalidate invalidated}, so an entry
+ * no newer than a snapshot of an invalidated version is the price of that
+ * snapshot, found without reading the store. Readers only cache what they
+ * encoded from a snapshot at least as new as the commit being invalidated,
+ * a reader of an older snapshot never brings a replaced price back.
+ * <p>
+ * Entries are weighed by their bytes; past {@code maxBytes} a writer evicts
+ * entries in table order, close to random, until a tenth is free again.
+ * Streams walking many ids once use a {@link #readOnlyView}, so they do
+ * not push out the entries of repeated lookups.
+ */
+class EncodedPriceCache {
+
+    // Map entry, key, entry record and byte array headers
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    // The record JSON starts at valueOffset, after the key and colon. A null member marks a change
+    private record Entry(long generation, long version, byte[] member, int valueOffset) {
+
+        long weight() {
+            return ENTRY_OVERHEAD_BYTES + (member == null ? 0 : member.length);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final long maxBytes;
+    private final ReentrantLock evicting = new ReentrantLock();
+
+    // Bumped when the whole store is replaced, entries of an older one are never trusted
+    private volatile long generation;
+    // Newest commit being invalidated, older readers no longer cache
+    private volatile long pending;
+    // Every commit up to it is invalidated, newer snapshots bypass the cache
+    private volatile long through;
+
+    private final JsonMapper mapper;
+    private final ObjectWriter recordWriter;
+
+    /**
+     * @param version of the store when the cache starts
+     */
+    EncodedPriceCache(JsonMapper mapper, long version, long maxBytes) {
+        this.mapper = mapper;
+        this.recordWriter = mapper.writerFor(PriceRecord.class);
+        this.maxBytes = maxBytes;
+        this.pending = version;
+        this.through = version;
+    }
+
+    /**
+     * Reads through the cache against the snapshot returned by {@code snapshot}.
+     */
+    View view(Supplier<PriceSnapshot> snapshot) {
+        // Read before the snapshot, a store replaced in between is caught by the generation
+        long current = generation;
+        return new View(current, snapshot.get(), true);
+    }
+
+    /**
+     * Like {@link #view}, but ids missing from the cache are encoded without being cached.
+     */
+    View readOnlyView(Supplier<PriceSnapshot> snapshot) {
+        long current = generation;
+        return new View(current, snapshot.get(), false);
+    }
+
+    /**
+     * Drops the ids a commit changed, called once per commit in version order
+     * right after it, before its version is read anywhere.
+     */
+    void invalidate(long version, Collection<PriceRecord> changed) {
+        pending = version;
+        for (var record : changed) {
+            entries.computeIfPresent(record.id(), (id, entry) -> {
+                if (entry.version() >= version) {
+                    return entry;
+                }
+                var marker = new Entry(entry.generation(), version, null, 0);
+                bytes.addAndGet(marker.weight() - entry.weight());
+                return marker;
+            });
+        }
+        through = version;
+    }
+
+    /**
+     * Stops serving entries before the whole store is replaced, until {@link #reset}.
+     */
+    void suspend() {
+        through = Long.MIN_VALUE;
+        pending = Long.MAX_VALUE;
+        generation++;
+        clear();
+    }
+
+    /**
+     * Starts over once the store was replaced by one at {@code version}.
+     */
+    void reset(long version) {
+        generation++;
+        clear();
+        pending = version;
+        through = version;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    private void clear() {
+        entries.forEach((id, entry) -> {
+            if (entries.remove(id, entry)) {
+                bytes.addAndGet(-entry.weight());
+            }
+        });
+    }
+
+    private Entry encode(long generation, long version, PriceRecord record) {
+        var out = new ByteArrayOutputStream(64);
+        byte[] key = mapper.writeValueAsBytes(record.id());
+        out.write(key, 0, key.length);
+        out.write(':');
+        byte[] value = recordWriter.writeValueAsBytes(record);
+        out.write(value, 0, value.length);
+        return new Entry(generation, version, out.toByteArray(), key.length + 1);
+    }
+
+    private void evictIfFull() {
+        if (bytes.get() <= maxBytes || !evicting.tryLock()) {
+            return;
+        }
+        try {
+            long target = maxBytes - maxBytes / 10;
+            for (var it = entries.entrySet().iterator(); it.hasNext() && bytes.get() > target; ) {
+                var next = it.next();
+                if (entries.remove(next.getKey(), next.getValue())) {
+                    bytes.addAndGet(-next.getValue().weight());
+                }
+            }
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    /**
+     * Cached members of one snapshot, for a single lookup.
+     */
+    final class View {
+
+        private final long generation;
+        private final PriceSnapshot snapshot;
+        private final boolean fill;
+
+        private View(long generation, PriceSnapshot snapshot, boolean fill) {
+            this.generation = generation;
+            this.snapshot = snapshot;
+            this.fill = fill;
+        }
+
+        PriceSnapshot snapshot() {
+            return snapshot;
+        }
+
+        /**
+         * Encoded member of the id in the snapshot, null if it has no price.
+         */
+        byte[] member(String id) {
+            var entry = entry(id);
+            return entry == null ? null : entry.member();
+        }
+
+        /**
+         * Writes the encoded record of the id alone, without its key.
+         * @return false if the id has no price in the snapshot
+         */
+        boolean writeRecord(String id, OutputStream out) throws IOException {
+            var entry = entry(id);
+            if (entry == null) {
+                return false;
+            }
+            out.write(entry.member(), entry.valueOffset(), entry.member().length - entry.valueOffset());
+            return true;
+        }
+
+        private Entry entry(String id) {
+            long version = snapshot.version();
+            var cached = entries.get(id);
+            if (cached != null && cached.member() != null && cached.generation() == generation
+                    && cached.version() <= version && version <= through) {
+                return cached;
+            }
+
+            var record = snapshot.get(id);
+            if (record == null) {
+                return null;
+            }
+            var encoded = encode(generation, version, record);
+            if (!fill) {
+                return encoded;
+            }
+            entries.compute(id, (key, current) -> {
+                // Checked under the bin lock an invalidation of the id takes too
+                if (generation != EncodedPriceCache.this.generation || version < pending) {
+                    return current;
+                }
+                if (current != null && current.generation() == generation && current.version() > version) {
+                    return current;
+                }
+                bytes.addAndGet(encoded.weight() - (current == null ? 0 : current.weight()));
+                return encoded;
+            });
+            evictIfFull();
+            return encoded;
+        }
+    }
+}
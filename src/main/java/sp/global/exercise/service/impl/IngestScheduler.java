@@ -0,0 +1,208 @@
+package sp.global.exercise.service.impl;
+
+import sp.global.exercise.metrics.PriceMetrics;
+import sp.global.exercise.service.AdmissionRejectedException;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Admits batches to the ingest pipeline within a memory budget and a cap
+ * on the batches running at once, shared by every upload path.
+ * <p>
+ * Batches are admitted in arrival order from a single queue: a batch never
+ * overtakes one that came before it, so a large batch at the head waits for
+ * room instead of being starved by smaller ones. Past {@code maxQueued}
+ * waiting batches, new ones are rejected right away.
+ * <p>
+ * Memory admitted batches need on top of their reservation is
+ * {@link #charge charged} without waiting, new batches wait until it is
+ * returned.
+ */
+class IngestScheduler {
+
+    private final long budget;
+    private final int maxRunning;
+    private final int maxQueued;
+    private final PriceMetrics metrics;
+
+    // Guarded by this
+    private final ArrayDeque<Ticket> queue = new ArrayDeque<>();
+    private long reserved;
+    private int running;
+    private double averageHoldNanos;
+
+    IngestScheduler(long budget, int maxRunning, int maxQueued, PriceMetrics metrics) {
+        if (budget < 1 || maxRunning < 1 || maxQueued < 0) {
+            throw new IllegalArgumentException("Admission needs a positive budget and batch cap");
+        }
+        this.budget = budget;
+        this.maxRunning = maxRunning;
+        this.maxQueued = maxQueued;
+        this.metrics = metrics;
+        metrics.bindAdmission(this::queued, this::running, this::reserved);
+    }
+
+    /**
+     * A place in the queue, then the reservation of an admitted batch.
+     * Closing it leaves the queue or releases the reservation.
+     */
+    final class Ticket implements AutoCloseable {
+
+        private final long bytes;
+        // False for a charge, which takes no batch slot
+        private final boolean batch;
+        private final long enqueuedNanos = System.nanoTime();
+        private final CompletableFuture<Ticket> admitted = new CompletableFuture<>();
+
+        // Guarded by the scheduler
+        private long admittedNanos;
+        private boolean holding;
+        private boolean closed;
+
+        private Ticket(long bytes, boolean batch) {
+            this.bytes = bytes;
+            this.batch = batch;
+        }
+
+        /**
+         * Completes once the batch may run.
+         */
+        CompletableFuture<Ticket> admitted() {
+            return admitted;
+        }
+
+        /**
+         * Leaves the queue if the batch was not admitted yet, a running
+         * batch keeps its reservation until the ticket is closed.
+         */
+        void withdraw() {
+            synchronized (IngestScheduler.this) {
+                if (!holding) {
+                    release(this);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    /**
+     * Queues a batch expected to stage {@code bytes}, admitted right away if it fits.
+     * @throws AdmissionRejectedException if the queue is full
+     */
+    synchronized Ticket enqueue(long bytes) {
+        var ticket = new Ticket(Math.min(Math.max(bytes, 0), budget), true);
+        if (!(queue.isEmpty() && fits(ticket)) && queue.size() >= maxQueued) {
+            metrics.admissionRejected();
+            throw new AdmissionRejectedException("Ingest queue is full", retryAfter());
+        }
+        queue.addLast(ticket);
+        drain();
+        return ticket;
+    }
+
+    /**
+     * Reserves memory for work of batches already admitted, right away even
+     * past the budget: they cannot wait for batches that wait for them.
+     * @return held until closed
+     */
+    synchronized Ticket charge(long bytes) {
+        var ticket = new Ticket(Math.max(bytes, 0), false);
+        ticket.holding = true;
+        reserved += ticket.bytes;
+        ticket.admitted.complete(ticket);
+        return ticket;
+    }
+
+    /**
+     * Blocks until the batch is admitted.
+     * @throws AdmissionRejectedException if that takes longer than the timeout
+     */
+    void await(Ticket ticket, Duration timeout) {
+        try {
+            ticket.admitted.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            ticket.close();
+            metrics.admissionRejected();
+            throw new AdmissionRejectedException("No room for the batch within " + timeout, retryAfter());
+        } catch (InterruptedException e) {
+            ticket.close();
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for admission");
+        }
+    }
+
+    synchronized int queued() {
+        return queue.size();
+    }
+
+    synchronized int running() {
+        return running;
+    }
+
+    synchronized long reserved() {
+        return reserved;
+    }
+
+    /**
+     * Time the queue ahead is expected to take, from how long batches held their reservation lately.
+     */
+    synchronized Duration retryAfter() {
+        long rounds = queue.size() / maxRunning + 1;
+        long nanos = (long) (averageHoldNanos * rounds);
+        return Duration.ofSeconds(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(nanos) + 1));
+    }
+
+    private boolean fits(Ticket ticket) {
+        return running < maxRunning && reserved + ticket.bytes <= budget;
+    }
+
+    private synchronized void release(Ticket ticket) {
+        if (ticket.closed) {
+            return;
+        }
+        ticket.closed = true;
+        if (!ticket.holding) {
+            queue.remove(ticket);
+            ticket.admitted.cancel(false);
+            return;
+        }
+        reserved -= ticket.bytes;
+        if (ticket.batch) {
+            running--;
+            long held = System.nanoTime() - ticket.admittedNanos;
+            averageHoldNanos = averageHoldNanos == 0 ? held : averageHoldNanos * 0.8 + held * 0.2;
+        }
+        drain();
+    }
+
+    /**
+     * Admits the batches at the head of the queue while they fit.
+     */
+    private void drain() {
+        while (!queue.isEmpty() && fits(queue.peekFirst())) {
+            var ticket = queue.pollFirst();
+            if (ticket.admitted.isDone()) {
+                // Timed out or cancelled meanwhile
+                continue;
+            }
+            // Held before the future completes, whoever fails it later still closes the ticket
+            ticket.holding = true;
+            ticket.admittedNanos = System.nanoTime();
+            reserved += ticket.bytes;
+            running++;
+            // Only wakes waiters and async continuations, the batch starts on its own thread
+            ticket.admitted.complete(ticket);
+            metrics.admissionWaited(ticket.admittedNanos - ticket.enqueuedNanos);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package sp.global.exercise.service.impl;
+
+import sp.global.exercise.metrics.PriceMetrics;
+import sp.global.exercise.service.LatestPriceStream;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Streams record JSON through a fixed size buffer, so memory does not
+ * depend on the number of ids looked up. Prices already cached are copied,
+ * the others are encoded without being cached.
+ */
+class NdjsonLatestPriceStream implements LatestPriceStream {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final EncodedPriceCache.View encodedPrices;
+    private final OutputStream out;
+    private final PriceMetrics metrics;
+    private final long start = System.nanoTime();
+    private int requested;
+    private long written;
+
+    NdjsonLatestPriceStream(EncodedPriceCache.View encodedPrices, OutputStream out, PriceMetrics metrics) {
+        this.encodedPrices = encodedPrices;
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void accept(String id) {
+        requested++;
+        try {
+            if (encodedPrices.writeRecord(id, out)) {
+                out.write('\n');
+                written++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long finish() throws IOException {
+        out.flush();
+        metrics.lookup(requested, System.nanoTime() - start);
+        return written;
+    }
+}
@@ -0,0 +1,199 @@
+package sp.global.exercise.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.model.PriceUpdate;
+import sp.global.exercise.service.PriceListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes the prices changed by each commit to subscribers.
+ * <p>
+ * Subscriptions are indexed by id, so the fan-out of a commit walks the
+ * records it changed once and looks each id up once, whatever the number
+ * of subscribers. Wildcard subscriptions share the whole list of changes.
+ * The commit only builds the per-subscription lists, each subscription
+ * sends its own in order on a virtual thread, so a client slow to read
+ * holds back nobody else. A subscriber falling more than
+ * {@code maxPending} commits behind is dropped, it resubscribes and reads
+ * the latest prices again.
+ */
+@Slf4j
+class PriceFeed implements AutoCloseable {
+
+    private final int maxPending;
+    private final Map<String, Set<Subscription>> byId = new ConcurrentHashMap<>();
+    private final Set<Subscription> wildcards = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger subscriptions = new AtomicInteger();
+
+    // Started with the first subscription
+    private ExecutorService senders;
+
+    PriceFeed(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Starts pushing the changes of the ids to the listener.
+     * @param ids null for every id
+     * @return stops the subscription, no call reaches the listener once it returned from a listener call
+     */
+    Runnable subscribe(Set<String> ids, PriceListener listener) {
+        var subscription = new Subscription(ids, listener, new SerialSender(senders()));
+        if (ids == null) {
+            wildcards.add(subscription);
+        } else {
+            for (String id : ids) {
+                // Added inside compute, a closing subscription may drop the set once empty
+                byId.compute(id, (key, subscribed) -> {
+                    var set = subscribed == null ? ConcurrentHashMap.<Subscription>newKeySet() : subscribed;
+                    set.add(subscription);
+                    return set;
+                });
+            }
+        }
+        subscriptions.incrementAndGet();
+        return subscription::close;
+    }
+
+    /**
+     * Whether a commit needs to tell which records it changed.
+     */
+    boolean active() {
+        return subscriptions.get() > 0;
+    }
+
+    int subscriptions() {
+        return subscriptions.get();
+    }
+
+    /**
+     * Fans out the records a commit changed. Called in version order.
+     */
+    void publish(long version, Collection<PriceRecord> changed) {
+        if (changed.isEmpty() || !active()) {
+            return;
+        }
+        Map<Subscription, List<PriceRecord>> fanOut = new IdentityHashMap<>();
+        if (!byId.isEmpty()) {
+            for (PriceRecord record : changed) {
+                var subscribed = byId.get(record.id());
+                if (subscribed != null) {
+                    for (var subscription : subscribed) {
+                        fanOut.computeIfAbsent(subscription, key -> new ArrayList<>()).add(record);
+                    }
+                }
+            }
+        }
+        if (!wildcards.isEmpty()) {
+            List<PriceRecord> all = List.copyOf(changed);
+            for (var subscription : wildcards) {
+                fanOut.put(subscription, all);
+            }
+        }
+        fanOut.forEach((subscription, prices) -> subscription.enqueue(new PriceUpdate(version, prices)));
+    }
+
+    /**
+     * Drops every subscription, after a commit whose changes are unknown.
+     * Subscribers resubscribe and read the latest prices again.
+     */
+    void dropAll() {
+        List.copyOf(wildcards).forEach(Subscription::close);
+        byId.values().stream().flatMap(Set::stream).distinct().toList().forEach(Subscription::close);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (senders != null) {
+            senders.shutdownNow();
+        }
+        dropAll();
+    }
+
+    private synchronized ExecutorService senders() {
+        if (senders == null) {
+            senders = Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+                    .name("price-feed-", 0)
+                    .factory());
+        }
+        return senders;
+    }
+
+    // ============================
+    // One subscription
+    // ============================
+
+    private final class Subscription {
+
+        private final Set<String> ids;
+        private final PriceListener listener;
+        // Updates in order, the one being sent counts as pending
+        private final SerialSender out;
+        private volatile boolean closed;
+
+        Subscription(Set<String> ids, PriceListener listener, SerialSender out) {
+            this.ids = ids == null ? null : Set.copyOf(ids);
+            this.listener = listener;
+            this.out = out;
+        }
+
+        void enqueue(PriceUpdate update) {
+            if (closed) {
+                return;
+            }
+            if (out.queued() >= maxPending) {
+                log.debug("Dropping price subscription, {} commits behind", maxPending);
+                close();
+                return;
+            }
+            try {
+                out.submit(() -> send(update));
+            } catch (RuntimeException e) {
+                // Feed shut down
+                close();
+            }
+        }
+
+        private void send(PriceUpdate update) {
+            if (closed) {
+                return;
+            }
+            try {
+                listener.changed(update);
+            } catch (RuntimeException e) {
+                // Typically the client went away
+                log.debug("Dropping price subscription: {}", e.getMessage());
+                close();
+            }
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (ids == null) {
+                wildcards.remove(this);
+            } else {
+                for (String id : ids) {
+                    byId.computeIfPresent(id, (key, subscribed) -> {
+                        subscribed.remove(this);
+                        return subscribed.isEmpty() ? null : subscribed;
+                    });
+                }
+            }
+            subscriptions.decrementAndGet();
+        }
+    }
+}
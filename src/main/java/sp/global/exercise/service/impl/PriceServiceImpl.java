@@ -1,31 +1,301 @@
 package sp.global.exercise.service.impl;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import sp.global.exercise.config.PriceProperties;
+import sp.global.exercise.ingest.PriceBlockReader;
+import sp.global.exercise.ingest.PriceRecordReader;
+import sp.global.exercise.ingest.RecordBlock;
+import sp.global.exercise.metrics.PriceMetrics;
+import sp.global.exercise.persistence.BatchArchive;
+import sp.global.exercise.persistence.DurablePriceStore;
+import sp.global.exercise.persistence.RecordCodec;
+import sp.global.exercise.replication.ReplicationClient;
+import sp.global.exercise.replication.ReplicationServer;
 import sp.global.exercise.model.BatchInfo;
+import sp.global.exercise.model.BatchPage;
 import sp.global.exercise.model.BatchStatus;
 import sp.global.exercise.model.PriceRecord;
 import sp.global.exercise.model.UploadRequest;
+import sp.global.exercise.service.BatchListener;
+import sp.global.exercise.service.LatestJson;
+import sp.global.exercise.service.LatestPriceStream;
+import sp.global.exercise.service.PriceListener;
 import sp.global.exercise.service.PriceService;
+import sp.global.exercise.service.ReadOnlyReplicaException;
+import sp.global.exercise.store.DensePriceStore;
+import sp.global.exercise.store.InstrumentDictionary;
+import sp.global.exercise.store.OffHeapPriceStore;
+import sp.global.exercise.store.PartitionedPriceStore;
+import sp.global.exercise.store.PriceHistory;
+import sp.global.exercise.store.PriceSnapshot;
+import sp.global.exercise.store.PriceStore;
+import sp.global.exercise.store.VersionedPriceStore;
+import tools.jackson.databind.json.JsonMapper;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 
 @Service
+@Slf4j
 public class PriceServiceImpl implements PriceService {
 
-    private static final int CHUNK_SIZE = 1000;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_IN_FLIGHT_CHUNKS = PARALLELISM * 2;
+    // Chunks are reduced locally before staging, larger ones collapse more duplicates
+    // but leave fewer chunks to spread over the workers
+    private static final int MIN_CHUNK_SIZE = 256;
+    private static final int MAX_CHUNK_SIZE = 16_384;
+    // Chunks per worker for a batch of known size, evens out slower chunks
+    private static final int CHUNKS_PER_WORKER = 4;
     private static final Duration BATCH_TIMEOUT = Duration.ofSeconds(30);
+    // Finest grain of the progress pushed to batch watchers
+    private static final Duration PROGRESS_INTERVAL = Duration.ofMillis(250);
+    // Staging cost of one record charged to the admission budget, a small payload included
+    private static final long ESTIMATED_RECORD_BYTES = 256;
+    // Copy of one id when a group of batches is merged: a node in two hash maps and its group entry
+    private static final long GROUP_ENTRY_BYTES = 128;
+    // Commits a price subscriber may fall behind before it is dropped
+    private static final int FEED_MAX_PENDING = 1024;
+    // Commits, and ids changed by them in total, kept to answer delta reads
+    private static final int CHANGE_INDEX_VERSIONS = 1024;
+    private static final int CHANGE_INDEX_IDS = 1 << 20;
 
-    // Using for Atomic Search
-    private final AtomicReference<Map<String, PriceRecord>> liveStore =
-            new AtomicReference<>(new ConcurrentHashMap<>());
+    // Dense int code per instrument id, shared by staging and the live store
+    private final InstrumentDictionary dictionary = new InstrumentDictionary();
 
-    // Batch tracking
-    private final ConcurrentHashMap<UUID, BatchInfo> batchStatus = new ConcurrentHashMap<>();
+    // Using for Atomic Search, every commit publishes a new versioned snapshot
+    private final PriceStore liveStore;
+
+    // Batch tracking, BatchInfo is only built on status requests. Finished batches age out
+    private final BatchRegistry batches;
+
+    // Open chunked upload sessions
+    private final ConcurrentHashMap<UUID, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    // Per-id price series for as-of lookups, null unless history is enabled
+    private final PriceHistory history;
+    // Superseded records a batch keeps for the history, 0 without history
+    private final long maxSuperseded;
+
+    // JSON of the live prices, reused across reads until a newer price is committed
+    private final EncodedPriceCache encodedPrices;
+
+    // Pushes batch progress to watchers instead of them polling the status
+    private final BatchNotifier notifier = new BatchNotifier(PROGRESS_INTERVAL);
+
+    // Pushes the prices each commit changed to subscribers
+    private final PriceFeed feed = new PriceFeed(FEED_MAX_PENDING);
+
+    // Batches ready at about the same time share one store commit
+    private final CommitCoordinator committer;
+    // Batches from their seal to the end of their commit, the ones a group may wait for
+    private final AtomicInteger sealing = new AtomicInteger();
+    // Commits run side by side, what they changed is published in version order
+    private final PublishOrder publishOrder;
+
+    // Ids changed by the last commits and version of the last change per id, for delta reads
+    private final ChangeIndex changes;
+    // Versions are only comparable within an epoch: new per process, and whenever the store is replaced
+    private volatile long epoch = ThreadLocalRandom.current().nextLong();
+
+    // Admits batches within the memory budget, the rest wait in a fair queue or are rejected
+    private final IngestScheduler admission;
+    private final Duration queueTimeout;
+    private final long streamReservation;
+    private final Duration sessionIdleTimeout;
+    // Cancels forgotten sessions, started with the first one
+    private ScheduledExecutorService sessionReaper;
+
+    // Where and past how many records a staging spills to run files
+    private final SpillRuns.Settings spill;
+
+    // Streams every commit to followers, null unless this instance is a replication primary
+    private final ReplicationServer replicationServer;
+    // Applies the commits of the primary, null unless this instance is a follower
+    private final ReplicationClient replicationClient;
+
+    private final PriceMetrics metrics;
+
+    public PriceServiceImpl() {
+        this(new SimpleMeterRegistry(), new PriceProperties());
+    }
+
+    public PriceServiceImpl(MeterRegistry registry, PriceProperties properties) {
+        this(registry, properties, JsonMapper.shared());
+    }
+
+    @Autowired
+    public PriceServiceImpl(MeterRegistry registry, PriceProperties properties, JsonMapper mapper) {
+        var replication = properties.getReplication();
+        if (replication.getRole() == PriceProperties.ReplicationRole.FOLLOWER && properties.getPersistence().isEnabled()) {
+            throw new IllegalStateException("A follower gets its store from the primary, persistence must be disabled");
+        }
+        this.metrics = new PriceMetrics(registry);
+        this.liveStore = createStore(properties, dictionary);
+        metrics.bindStore(liveStore);
+        this.encodedPrices = new EncodedPriceCache(mapper, liveStore.version(),
+                properties.getLatest().getCacheSize().toBytes());
+        metrics.bindEncodedPrices(encodedPrices::bytes);
+        this.changes = new ChangeIndex(dictionary, liveStore.version(), CHANGE_INDEX_VERSIONS, CHANGE_INDEX_IDS);
+        this.publishOrder = new PublishOrder(liveStore.version());
+        var admissionSettings = properties.getAdmission();
+        this.admission = new IngestScheduler(
+                admissionSettings.getMemoryBudget().toBytes(),
+                admissionSettings.getMaxConcurrentBatches(),
+                admissionSettings.getMaxQueuedBatches(),
+                metrics);
+        this.queueTimeout = admissionSettings.getQueueTimeout();
+        this.streamReservation = admissionSettings.getStreamReservation().toBytes();
+        this.sessionIdleTimeout = admissionSettings.getSessionIdleTimeout();
+        this.batches = createRegistry(properties.getBatches());
+        var commitSettings = properties.getCommit();
+        this.committer = new CommitCoordinator(this::commitGroup,
+                commitSettings.getGroupWindow(), commitSettings.getMaxGroupSize(), sealing::get);
+        this.spill = spillSettings(properties.getStaging(), mapper);
+        metrics.bindActiveBatches(batches::active);
+        metrics.bindTrackedBatches(batches::tracked);
+        metrics.bindBatchWatchers(notifier::watches);
+        metrics.bindPriceSubscribers(feed::subscriptions);
+        this.history = createHistory(properties.getHistory());
+        this.maxSuperseded = history == null ? 0 : properties.getHistory().getMaxSupersededPerBatch();
+        if (history != null) {
+            metrics.bindHistory(history);
+        }
+
+        // Last, a follower starts applying commits right away
+        var codec = new RecordCodec(mapper);
+        this.replicationServer = replication.getRole() == PriceProperties.ReplicationRole.PRIMARY
+                ? startPrimary(replication, codec)
+                : null;
+        this.replicationClient = replication.getRole() == PriceProperties.ReplicationRole.FOLLOWER
+                ? followPrimary(replication, codec)
+                : null;
+    }
+
+    private static PriceStore createStore(PriceProperties properties, InstrumentDictionary dictionary) {
+        var store = properties.getStore();
+        PriceStore memory = switch (store.getMode()) {
+            case DENSE -> new DensePriceStore(dictionary);
+            case HEAP -> store.getPartitions() > 1
+                    ? new PartitionedPriceStore(store.getPartitions(), ForkJoinPool.commonPool())
+                    : new VersionedPriceStore();
+            case OFF_HEAP -> new OffHeapPriceStore(
+                    dictionary,
+                    JsonMapper.shared(),
+                    Math.toIntExact(store.getArenaSize().toBytes()));
+        };
+
+        var persistence = properties.getPersistence();
+        if (!persistence.isEnabled()) {
+            return memory;
+        }
+        // Rebuilds the store from disk before the service takes any request
+        return new DurablePriceStore(memory, persistence, new RecordCodec(JsonMapper.shared()));
+    }
+
+    private static BatchRegistry createRegistry(PriceProperties.Batches settings) {
+        BatchArchive archive = null;
+        if (settings.isArchive()) {
+            try {
+                archive = new BatchArchive(settings.getArchiveFile(), settings.getArchiveCapacity());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot open batch archive " + settings.getArchiveFile(), e);
+            }
+        }
+        return new BatchRegistry(settings.getRetention(), settings.getMaxFinished(), Clock.systemUTC(), archive);
+    }
+
+    private static PriceHistory createHistory(PriceProperties.History history) {
+        if (!history.isEnabled()) {
+            return null;
+        }
+        return new PriceHistory(history.getMaxPointsPerId(), history.getMaxAge(), Clock.systemUTC());
+    }
+
+    private static SpillRuns.Settings spillSettings(PriceProperties.Staging staging, JsonMapper mapper) {
+        // Staged records are counted against the threshold at their estimated size
+        long maxRecords = Math.max(1, staging.getSpillThreshold().toBytes() / ESTIMATED_RECORD_BYTES);
+        Path directory = staging.getSpillDirectory() != null
+                ? staging.getSpillDirectory()
+                : Path.of(System.getProperty("java.io.tmpdir"));
+        // Files of a crashed process are deleted here, they would never be otherwise
+        return SpillRuns.Settings.forProcess(directory, maxRecords, mapper);
+    }
+
+    private ReplicationServer startPrimary(PriceProperties.Replication settings, RecordCodec codec) {
+        try {
+            var server = new ReplicationServer(liveStore, codec,
+                    InetAddress.getByName(settings.getBindAddress()), settings.getPort(),
+                    settings.getLogVersions(), settings.getLogSize().toBytes(),
+                    settings.getMaxPending(), settings.getHeartbeat());
+            metrics.bindReplicationFollowers(server::followers);
+            log.info("Streaming commits to followers on {}:{}", settings.getBindAddress(), server.port());
+            return server;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot listen for followers on "
+                    + settings.getBindAddress() + ":" + settings.getPort(), e);
+        }
+    }
+
+    private ReplicationClient followPrimary(PriceProperties.Replication settings, RecordCodec codec) {
+        String primary = settings.getPrimary();
+        int colon = primary.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Replication primary must be host:port, got " + primary);
+        }
+        var address = InetSocketAddress.createUnresolved(primary.substring(0, colon),
+                Integer.parseInt(primary.substring(colon + 1)));
+        var client = new ReplicationClient(address, codec, new ReplicatedStore(),
+                settings.getHeartbeat(), settings.getRetryInterval(),
+                Math.toIntExact(settings.getMaxFrameSize().toBytes()));
+        metrics.bindReplicationLag(client::lag);
+        client.start();
+        return client;
+    }
+
+    /**
+     * Port followers connect to, -1 unless this instance is a replication primary.
+     */
+    public int replicationPort() {
+        return replicationServer == null ? -1 : replicationServer.port();
+    }
+
+    @PreDestroy
+    public void shutdown() throws Exception {
+        if (replicationClient != null) {
+            replicationClient.close();
+        }
+        if (replicationServer != null) {
+            replicationServer.close();
+        }
+        synchronized (this) {
+            if (sessionReaper != null) {
+                sessionReaper.shutdownNow();
+            }
+        }
+        notifier.close();
+        feed.close();
+        batches.close();
+        if (liveStore instanceof AutoCloseable closeable) {
+            closeable.close();
+        }
+    }
 
 
     // ============================
@@ -33,113 +303,400 @@ public class PriceServiceImpl implements PriceService {
     // ============================
     @Override
     public UUID uploadAll(UploadRequest request) {
+        checkWritable();
 
         UUID batchId = UUID.randomUUID();
         int totalRecords = request.prices().size();
 
+        // Queued without blocking the caller, rejected right away when the queue is full
+        var ticket = admission.enqueue(totalRecords * ESTIMATED_RECORD_BYTES);
+
         // Initialize batch status
-        batchStatus.put(batchId, new BatchInfo(
-                batchId,
-                BatchStatus.IN_PROGRESS,
-                Instant.now(),
-                null,
-                totalRecords,
-                0,
-                0.0
-        ));
+        var progress = new BatchProgress(batchId, totalRecords);
+        batches.register(progress);
+        progress.onAbort(ticket::withdraw);
 
-        ConcurrentHashMap<String, PriceRecord> staging = new ConcurrentHashMap<>();
+        BatchStaging staging = newStaging();
 
-        // Run processing asynchronously
-        CompletableFuture.runAsync(() -> processBatch(batchId, request, staging));
+        // Run processing asynchronously once admitted
+        ticket.admitted()
+                .orTimeout(queueTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .thenRunAsync(() -> processBatch(progress, request, staging))
+                .whenComplete((ignored, e) -> {
+                    ticket.close();
+                    if (e != null && progress.status() == BatchStatus.IN_PROGRESS) {
+                        // Not admitted within the queue timeout
+                        metrics.admissionRejected();
+                        progress.fail();
+                    }
+                });
 
         return batchId;
     }
 
 
     // ============================
-    // Internal batch processor
+    // API 1b — Upload from a record stream
     // ============================
-    private void processBatch(UUID batchId,
-                              UploadRequest request,
-                              ConcurrentHashMap<String, PriceRecord> staging) {
+    @Override
+    public UUID uploadStream(InputStream body, PriceRecordReader reader) throws IOException {
+        return ingest((dispatcher, progress, staging) -> {
+            // Chunks are merged by the workers while the parser keeps reading
+            var chunker = dispatcher.chunker(MIN_CHUNK_SIZE, MAX_CHUNK_SIZE, PARALLELISM,
+                    chunk -> mergeChunk(progress, chunk, staging));
+            reader.read(body, chunker);
+            chunker.flush();
+        });
+    }
 
-        try {
-            List<List<PriceRecord>> chunks = chunk(request.prices(), CHUNK_SIZE);
 
-            AtomicInteger processed = new AtomicInteger(0);
-            int total = request.prices().size();
+    // ============================
+    // API 1c — Bulk upload (CSV / binary)
+    // ============================
+    @Override
+    public UUID uploadBlocks(InputStream body, PriceBlockReader reader) throws IOException {
+        // Only framing happens here, the workers decode the blocks
+        return ingest((dispatcher, progress, staging) -> reader.split(body,
+                block -> dispatcher.submit(block.records(), () -> mergeBlock(progress, reader, block, staging))));
+    }
 
-            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+    /**
+     * Feeds a streamed body to the dispatcher of a new batch.
+     */
+    @FunctionalInterface
+    private interface Ingestion {
+        void feed(ChunkDispatcher dispatcher,
+                  BatchProgress progress,
+                  BatchStaging staging) throws IOException;
+    }
 
-                List<Future<?>> tasks = new ArrayList<>();
+    private UUID ingest(Ingestion ingestion) throws IOException {
+        checkWritable();
 
-                for (var chunk : chunks) {
-                    tasks.add(executor.submit(() -> {
-                        for (var record : chunk) {
+        // The size is unknown until the body is read, wait for room on the request thread
+        var ticket = admission.enqueue(streamReservation);
+        admission.await(ticket, queueTimeout);
 
-                            // Skip if batch cancelled
-                            if (isCancelled(batchId)) return;
+        UUID batchId = UUID.randomUUID();
 
-                            // Keep newest price by asOf
-                            staging.merge(
-                                    record.id(),
-                                    record,
-                                    (oldVal, newVal) ->
-                                            newVal.asOf().isAfter(oldVal.asOf()) ? newVal : oldVal
-                            );
+        // Record count is only known once the body is fully read
+        var progress = new BatchProgress(batchId, 0);
+        BatchStaging staging;
+        try {
+            batches.register(progress);
+            staging = newStaging();
+        } catch (RuntimeException e) {
+            // Nothing holds the ticket yet
+            progress.fail();
+            ticket.close();
+            throw e;
+        }
 
-                            // Update progress
-                            int done = processed.incrementAndGet();
-                            updateProgress(batchId, done, total);
-                        }
-                    }));
-                }
+        var executor = Executors.newVirtualThreadPerTaskExecutor();
+        var dispatcher = new ChunkDispatcher(MAX_IN_FLIGHT_CHUNKS, executor, progress::setRecordCount);
+        progress.onAbort(() -> abort(executor, staging));
 
-                // Timeout guard
-                long deadline = System.currentTimeMillis() + BATCH_TIMEOUT.toMillis();
+        // Workers merge while the body is parsed
+        long parseStart = System.nanoTime();
+        try {
+            ingestion.feed(dispatcher, progress, staging);
+            metrics.phase(PriceMetrics.Phase.PARSE, System.nanoTime() - parseStart);
+        } catch (IOException | RuntimeException e) {
+            if (progress.status() != BatchStatus.IN_PROGRESS) {
+                // Cancelled while parsing, the workers are already stopped
+                executor.close();
+                ticket.close();
+                recordAbort(progress);
+                return batchId;
+            }
+            progress.fail();
+            executor.close();
+            ticket.close();
+            throw e;
+        }
 
-                for (var task : tasks) {
-                    long remaining = deadline - System.currentTimeMillis();
-                    if (remaining <= 0) {
-                        throw new TimeoutException("Batch timed out");
-                    }
-                    task.get(remaining, TimeUnit.MILLISECONDS);
+        // The body is consumed, wait for the workers and commit asynchronously
+        CompletableFuture.runAsync(() -> {
+            try (ticket) {
+                try (executor) {
+                    finishBatch(progress, dispatcher.allMerged(), staging, dispatcher.dispatched(), parseStart);
                 }
+                recordAbort(progress);
             }
+        });
+
+        return batchId;
+    }
+
+
+    // ============================
+    // Internal batch processor
+    // ============================
+    private void processBatch(BatchProgress progress,
+                              UploadRequest request,
+                              BatchStaging staging) {
+
+        int total = request.prices().size();
+        // Admitted, the queue wait is behind
+        long mergeStart = System.nanoTime();
+
+        List<List<PriceRecord>> chunks = chunk(request.prices(), chunkSize(total));
 
-            // Skip commit if cancelled
-            if (isCancelled(batchId)) return;
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+
+            // Cancel or timeout stops the workers and drops the staging right away
+            progress.onAbort(() -> abort(executor, staging));
+
+            // Chunks in flight are bounded like for a streamed upload, the rest wait here
+            var dispatcher = new ChunkDispatcher(MAX_IN_FLIGHT_CHUNKS, executor, dispatched -> {});
+            for (var chunk : chunks) {
+                dispatcher.submit(chunk.size(), () -> mergeChunk(progress, chunk, staging));
+            }
+
+            finishBatch(progress, dispatcher.allMerged(), staging, total, mergeStart);
+        } catch (RejectedExecutionException | CancellationException e) {
+            // Aborted while the chunks were being submitted
+        }
+
+        // Closing the executor waited for the interrupted workers
+        recordAbort(progress);
+    }
+
+    /**
+     * Waits for all chunk tasks of a batch and commits its staging.
+     * @param mergeStart nanoTime the first chunk could be merged
+     */
+    private void finishBatch(BatchProgress progress,
+                             CompletableFuture<Void> allMerged,
+                             BatchStaging staging,
+                             int total,
+                             long mergeStart) {
+        try {
+            // Wake up as soon as all chunks are merged or the batch is aborted, timeout guard
+            CompletableFuture.anyOf(allMerged, progress.aborted())
+                    .get(BATCH_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+
+            // Skip commit if cancelled, no cancel gets through once it starts
+            if (!progress.startCommit()) return;
+            metrics.phase(PriceMetrics.Phase.MERGE, System.nanoTime() - mergeStart);
 
             // Atomic commit
-            commit(staging);
+            commit(staging, progress);
 
-            markCompleted(batchId, total);
+            markCompleted(progress, total);
 
         } catch (Exception e) {
-            markFailed(batchId);
+            progress.fail();
+        }
+    }
+
+    private void mergeChunk(BatchProgress progress,
+                            List<PriceRecord> chunk,
+                            BatchStaging staging) {
+        // Newest price by asOf within the chunk, without touching the shared staging
+        var reduction = staging.reduction(chunk.size());
+        for (var record : chunk) {
+
+            // Skip if batch cancelled or timed out
+            if (progress.isAborted()) return;
+
+            reduction.add(record);
+        }
+
+        // Only the distinct ids of the chunk meet the other workers
+        stage(progress, reduction, staging);
+    }
+
+
+    private void mergeBlock(BatchProgress progress,
+                            PriceBlockReader reader,
+                            RecordBlock block,
+                            BatchStaging staging) {
+        var reduction = staging.reduction(block.records());
+        try {
+            reader.decode(block.bytes(), record -> {
+                // Stop decoding if batch cancelled or timed out
+                if (progress.isAborted()) throw new CancellationException();
+
+                reduction.add(record);
+            });
+            stage(progress, reduction, staging);
+        } catch (CancellationException e) {
+            // Aborted, the staging is already released
         }
     }
 
 
+    private static void stage(BatchProgress progress, ChunkReduction reduction, BatchStaging staging) {
+        staging.mergeAll(reduction);
+        progress.addStaged(reduction.records(), reduction.dropped(), reduction.superseded());
+    }
+
+
     // ============================
     // Atomic commit to live store
     // ============================
-    private void commit(Map<String, PriceRecord> staging) {
-        liveStore.updateAndGet(current -> {
-            var newStore = new ConcurrentHashMap<>(current);
+    private void commit(BatchStaging staging, BatchProgress progress) {
+        long start = System.nanoTime();
+        sealing.incrementAndGet();
+        try {
+            // Records of a spilled run superseded by a later run only show up now
+            progress.addStaged(0, 0, staging.seal());
 
-            for (var entry : staging.entrySet()) {
-                newStore.merge(
-                        entry.getKey(),
-                        entry.getValue(),
-                        (oldVal, newVal) ->
-                                newVal.asOf().isAfter(oldVal.asOf()) ? newVal : oldVal
-                );
+            // Batches finishing meanwhile share the store update
+            long staleInStore = committer.commit(staging);
+
+            // History takes every committed record, superseded ones included
+            if (history != null) {
+                staging.forEachRecord(history::append);
+                metrics.historyDropped(staging.supersededDropped());
             }
 
-            return newStore;
-        });
+            // Lost to prices committed since the batch started
+            progress.addStale(staleInStore);
+            metrics.phase(PriceMetrics.Phase.COMMIT, System.nanoTime() - start);
+            // Records dropped against the batch-start snapshot count as stale in store too
+            metrics.stagingCommitted(staging.newest().size(), staging.stale(), staleInStore + staging.dropped());
+        } finally {
+            sealing.decrementAndGet();
+            // Deletes the run files of a spilled staging, committed or not
+            staging.clear();
+        }
+    }
+
+    /**
+     * Commits a group of stagings in one store update, side by side with the
+     * groups of other leaders. Stagings are applied oldest first and a record replaces one
+     * of an earlier staging only with a newer asOf, so each batch counts the
+     * stale records it would have counted committing alone.
+     */
+    private long[] commitGroup(List<BatchStaging> group) {
+        // Counted when an id is already staged newer by an earlier batch, or live newer
+        long[] staleInStore = new long[group.size()];
+
+        Map<String, PriceRecord> merged;
+        // Null for a single staging, else the staging of each record kept and the ones it replaced
+        Map<String, GroupEntry> entries;
+        // The copy of a group, on top of what the batches reserved. Charged until it is published
+        IngestScheduler.Ticket copy = null;
+        try {
+            if (group.size() == 1) {
+                merged = group.get(0).newest();
+                entries = null;
+            } else {
+                int size = 0;
+                for (var staging : group) {
+                    size += staging.newest().size();
+                }
+                copy = admission.charge(size * GROUP_ENTRY_BYTES);
+                merged = HashMap.newHashMap(size);
+                entries = HashMap.newHashMap(size);
+                for (int batch = 0; batch < group.size(); batch++) {
+                    for (var record : group.get(batch).newest().values()) {
+                        var entry = entries.get(record.id());
+                        if (entry != null && PriceRecord.newest(entry.record(), record) == entry.record()) {
+                            staleInStore[batch]++;
+                        } else {
+                            entries.put(record.id(), new GroupEntry(batch, record, entry));
+                            merged.put(record.id(), record);
+                        }
+                    }
+                }
+            }
+
+            // Ids whose live record stays, and the group records a live one beat. The resolver may
+            // run on several threads and again on a retry: sets, so a record beaten twice counts once.
+            // Live prices only move forward, one beaten by an attempt is beaten by the next
+            Set<String> unchanged = ConcurrentHashMap.newKeySet();
+            Set<GroupEntry> beaten = entries == null ? null : ConcurrentHashMap.newKeySet();
+            var snapshot = liveStore.commit(merged, (live, staged) -> {
+                var kept = PriceRecord.newest(live, staged);
+                if (kept == live) {
+                    unchanged.add(live.id());
+                }
+                if (entries != null) {
+                    // The records replaced are older than the one kept, a newer live price beats them too
+                    for (var entry = entries.get(live.id()); entry != null; entry = entry.replaced()) {
+                        if (PriceRecord.newest(live, entry.record()) == live) {
+                            beaten.add(entry);
+                        }
+                    }
+                }
+                return kept;
+            });
+
+            // Counted once the commit went through, from the attempt that did
+            if (beaten == null) {
+                staleInStore[0] += unchanged.size();
+            } else {
+                for (var entry : beaten) {
+                    staleInStore[entry.batch()]++;
+                }
+            }
+
+            long version = snapshot.version();
+            var spilled = group.get(0).spilled() ? snapshot : null;
+            // Only the publish step waits for the commits before, the change index and subscribers get versions in order
+            publishOrder.publish(version, () -> changed(merged, unchanged, spilled), changed -> {
+                encodedPrices.invalidate(version, changed);
+                changes.record(version, changed);
+                feed.publish(version, changed);
+                if (replicationServer != null) {
+                    replicationServer.publish(version, changed);
+                }
+            }, () -> publishUnknown(version));
+            metrics.groupCommitted(group.size());
+            return staleInStore;
+        } finally {
+            if (copy != null) {
+                copy.close();
+            }
+        }
+    }
+
+    /**
+     * Publish step of a committed version whose changed records could not be
+     * read back: the caches and the change index start over at it, the
+     * subscribers and followers catch up from the latest prices.
+     */
+    private void publishUnknown(long version) {
+        log.warn("Changes of version {} unknown, caches, subscribers and followers start over", version);
+        encodedPrices.reset(version);
+        changes.reset(version);
+        feed.dropAll();
+        if (replicationServer != null) {
+            replicationServer.skip(version);
+        }
+    }
+
+    /**
+     * Record of a group commit kept for an id, with the record of an earlier staging it replaced.
+     */
+    private record GroupEntry(int batch, PriceRecord record, GroupEntry replaced) {}
+
+
+    /**
+     * @param spilled snapshot to take the changed records from, for a spilled staging
+     *                whose records are decoded anew on every pass. Null otherwise
+     */
+    private static List<PriceRecord> changed(Map<String, PriceRecord> merged, Set<String> unchanged,
+                                             PriceSnapshot spilled) {
+        List<PriceRecord> changed = new ArrayList<>(merged.size() - unchanged.size());
+        if (spilled != null) {
+            // Only the ids are read back, the live store's instance is taken instead of decoding a copy
+            for (String id : merged.keySet()) {
+                if (!unchanged.contains(id)) {
+                    changed.add(spilled.get(id));
+                }
+            }
+            return changed;
+        }
+        for (var record : merged.values()) {
+            if (!unchanged.contains(record.id())) {
+                changed.add(record);
+            }
+        }
+        return changed;
     }
 
 
@@ -148,17 +705,11 @@ public class PriceServiceImpl implements PriceService {
     // ============================
     @Override
     public void cancel(UUID batchId) {
-        batchStatus.computeIfPresent(batchId, (id, info) ->
-                new BatchInfo(
-                        id,
-                        BatchStatus.CANCELLED,
-                        info.startedAt(),
-                        Instant.now(),
-                        info.recordCount(),
-                        info.processedCount(),
-                        info.progressPercent()
-                )
-        );
+        var progress = batches.get(batchId);
+        if (progress != null) {
+            // Runs the abort handlers of the batch
+            progress.cancel();
+        }
     }
 
 
@@ -167,7 +718,8 @@ public class PriceServiceImpl implements PriceService {
     // ============================
     @Override
     public Map<String, PriceRecord> getLatest(List<String> ids) {
-        var snapshot = liveStore.get();
+        long start = System.nanoTime();
+        var snapshot = liveStore.snapshot();
         Map<String, PriceRecord> result = new HashMap<>();
 
         for (var id : ids) {
@@ -176,16 +728,306 @@ public class PriceServiceImpl implements PriceService {
                 result.put(id, price);
             }
         }
+        metrics.lookup(ids.size(), System.nanoTime() - start);
         return result;
     }
 
 
+    @Override
+    public List<byte[]> getLatestJson(List<String> ids) {
+        long start = System.nanoTime();
+        var view = encodedPrices.view(liveStore::snapshot);
+        List<byte[]> members = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+
+        for (var id : ids) {
+            if (seen.add(id)) {
+                var member = view.member(id);
+                if (member != null) {
+                    members.add(member);
+                }
+            }
+        }
+        metrics.lookup(ids.size(), System.nanoTime() - start);
+        return members;
+    }
+
+
+    @Override
+    public LatestJson getLatestJsonSince(List<String> ids, long sinceVersion) {
+        long start = System.nanoTime();
+        // Read first, a store replaced after it gets the next request a full read
+        long current = epoch;
+        // Changes are known up to this version, the snapshot read after it is at least as new
+        long version = changes.latest();
+        if (sinceVersion == version) {
+            return new LatestJson(current, version, List.of());
+        }
+        var view = encodedPrices.view(liveStore::snapshot);
+
+        // Null when the version is too old for the index, or ahead of this store: every id is read then
+        List<String> changed = sinceVersion > version ? null : changes.changedSince(sinceVersion, ids);
+        List<byte[]> members = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (var id : changed == null ? ids : changed) {
+            if (seen.add(id)) {
+                var member = view.member(id);
+                if (member != null) {
+                    members.add(member);
+                }
+            }
+        }
+        metrics.lookup(ids.size(), System.nanoTime() - start);
+        return new LatestJson(current, version, members);
+    }
+
+
+    @Override
+    public LatestPriceStream streamLatest(OutputStream out) {
+        // One snapshot for the whole stream, like a single getLatest call. A stream may
+        // walk every id once, it reads cached prices but leaves the cache to repeated lookups
+        return new NdjsonLatestPriceStream(encodedPrices.readOnlyView(liveStore::snapshot), out, metrics);
+    }
+
+
     // ============================
     // API 4 — Get batch status
     // ============================
     @Override
     public BatchInfo getBatchStatus(UUID batchId) {
-        return batchStatus.get(batchId);
+        return batches.info(batchId);
+    }
+
+    @Override
+    public BatchPage listBatches(BatchStatus status, Long before, Instant since, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        return batches.page(status, before, since, limit);
+    }
+
+    @Override
+    public Runnable watchBatches(List<UUID> batchIds, BatchListener listener) {
+        List<BatchProgress> watched = new ArrayList<>(batchIds.size());
+        for (UUID batchId : new LinkedHashSet<>(batchIds)) {
+            var progress = batches.get(batchId);
+            if (progress == null) {
+                throw new IllegalArgumentException("Unknown batch: " + batchId);
+            }
+            watched.add(progress);
+        }
+        return notifier.watch(watched, listener);
+    }
+
+    @Override
+    public Runnable subscribePrices(Set<String> ids, PriceListener listener) {
+        return feed.subscribe(ids, listener);
+    }
+
+
+    // ============================
+    // API 5 — Chunked upload session
+    // ============================
+    @Override
+    public UUID startBatch(Integer expectedRecords) {
+        if (expectedRecords != null && expectedRecords < 0) {
+            throw new IllegalArgumentException("expectedRecords must not be negative");
+        }
+        checkWritable();
+
+        // Held until the session completes or is cancelled
+        var ticket = admission.enqueue(expectedRecords == null
+                ? streamReservation
+                : expectedRecords * ESTIMATED_RECORD_BYTES);
+        admission.await(ticket, queueTimeout);
+
+        UUID batchId = UUID.randomUUID();
+
+        var progress = new BatchProgress(batchId, expectedRecords == null ? 0 : expectedRecords);
+        progress.onFinish(ticket::close);
+        try {
+            batches.register(progress);
+            sessions.put(batchId, new UploadSession(newStaging(), expectedRecords));
+        } catch (RuntimeException e) {
+            // Closes the ticket
+            progress.fail();
+            throw e;
+        }
+        startSessionReaper();
+
+        // Drop the staging of the session if it is cancelled before completion
+        progress.onAbort(() -> {
+            var session = sessions.remove(batchId);
+            if (session != null) {
+                var staging = session.close();
+                metrics.stagingReleased(staging.size());
+                staging.clear();
+            }
+            recordAbort(progress);
+        });
+
+        return batchId;
+    }
+
+    private synchronized void startSessionReaper() {
+        if (sessionReaper == null) {
+            sessionReaper = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                    .name("session-reaper")
+                    .daemon(true)
+                    .factory());
+            long period = Math.max(sessionIdleTimeout.toNanos() / 4, TimeUnit.MILLISECONDS.toNanos(10));
+            sessionReaper.scheduleWithFixedDelay(this::cancelIdleSessions, period, period, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Cancels the sessions that received no chunk within the idle timeout,
+     * their staging and admission ticket are released like on a cancel.
+     */
+    private void cancelIdleSessions() {
+        long timeout = sessionIdleTimeout.toNanos();
+        sessions.forEach((batchId, session) -> {
+            if (session.idleNanos() >= timeout) {
+                var progress = batches.get(batchId);
+                if (progress != null && progress.cancel()) {
+                    log.info("Cancelled batch {}, no chunk received for {}", batchId, sessionIdleTimeout);
+                }
+            }
+        });
+    }
+
+    @Override
+    public BatchInfo uploadChunk(UUID batchId, List<PriceRecord> prices) {
+        var session = openSession(batchId);
+        var progress = batches.get(batchId);
+
+        // Merge right away, nothing reaches the live store before completeBatch
+        long start = System.nanoTime();
+        var reduction = session.merge(prices);
+        metrics.phase(PriceMetrics.Phase.MERGE, System.nanoTime() - start);
+        progress.addStaged(reduction.records(), reduction.dropped(), reduction.superseded());
+        progress.setRecordCount(session.recordCount());
+
+        return progress.toInfo();
+    }
+
+    @Override
+    public BatchInfo completeBatch(UUID batchId) {
+        openSession(batchId);
+
+        // Whoever removes the session first (complete or cancel) owns it
+        var session = sessions.remove(batchId);
+        if (session == null) {
+            throw new IllegalStateException("Batch " + batchId + " is not accepting chunks");
+        }
+
+        var staging = session.close();
+        var progress = batches.get(batchId);
+        if (!progress.startCommit()) {
+            // Cancelled after the session was taken, its abort handler found nothing to release
+            metrics.stagingReleased(staging.size());
+            staging.clear();
+            throw new IllegalStateException("Batch " + batchId + " is not accepting chunks");
+        }
+
+        try {
+            // Atomic commit
+            commit(staging, progress);
+            markCompleted(progress, session.received());
+        } catch (Exception e) {
+            progress.fail();
+            throw e;
+        }
+
+        return progress.toInfo();
+    }
+
+
+    // ============================
+    // API 6 — Live store version
+    // ============================
+    @Override
+    public long getStoreVersion() {
+        return liveStore.version();
+    }
+
+    @Override
+    public long getStoreEpoch() {
+        return epoch;
+    }
+
+
+    // ============================
+    // API 7 — Historical prices
+    // ============================
+    @Override
+    public Map<String, PriceRecord> getAsOf(List<String> ids, Instant asOf) {
+        if (history == null) {
+            throw new IllegalStateException("Price history is not enabled");
+        }
+        Map<String, PriceRecord> result = new HashMap<>();
+
+        for (var id : ids) {
+            var price = history.asOf(id, asOf);
+            if (price != null) {
+                result.put(id, price);
+            }
+        }
+        return result;
+    }
+
+
+    // ============================
+    // Replication follower
+    // ============================
+
+    /**
+     * The live store of a follower, fed by the replication client thread
+     * only. Nothing else commits to it, uploads are refused.
+     */
+    private final class ReplicatedStore implements ReplicationClient.Replica {
+
+        @Override
+        public void restore(long version, Map<String, PriceRecord> records) {
+            encodedPrices.suspend();
+            try {
+                liveStore.restore(version, records);
+            } finally {
+                // A snapshot cut off midway leaves the previous content, started over all the same
+                long restored = liveStore.version();
+                // Versions before the snapshot are unknown, delta reads get every requested id
+                changes.reset(restored);
+                encodedPrices.reset(restored);
+                publishOrder.reset(restored);
+                // Last, whoever read the new prices under the old epoch reads them all again
+                epoch = ThreadLocalRandom.current().nextLong();
+            }
+            metrics.replicationRestored();
+        }
+
+        @Override
+        public void apply(long version, Instant committedAt, List<PriceRecord> changed) {
+            if (liveStore.version() != version - 1) {
+                throw new IllegalStateException("Replica at version " + liveStore.version()
+                        + " cannot apply version " + version);
+            }
+            Map<String, PriceRecord> delta = HashMap.newHashMap(changed.size());
+            for (var record : changed) {
+                delta.put(record.id(), record);
+            }
+            // The primary already resolved every record against its live price
+            var snapshot = liveStore.commit(delta, (live, replicated) -> replicated);
+            // Published first, the commits after this version wait for it
+            publishOrder.publish(snapshot.version(), () -> {
+                encodedPrices.invalidate(snapshot.version(), changed);
+                changes.record(snapshot.version(), changed);
+                feed.publish(snapshot.version(), changed);
+            });
+            if (history != null) {
+                changed.forEach(history::append);
+            }
+            metrics.replicationApplied(Duration.between(committedAt, Instant.now()).toNanos());
+        }
     }
 
 
@@ -193,51 +1035,65 @@ public class PriceServiceImpl implements PriceService {
     // Helpers
     // ============================
 
-    private boolean isCancelled(UUID batchId) {
-        var info = batchStatus.get(batchId);
-        return info != null && info.status() == BatchStatus.CANCELLED;
-    }
-
-    private void updateProgress(UUID batchId, int processed, int total) {
-        batchStatus.computeIfPresent(batchId, (id, info) ->
-                new BatchInfo(
-                        id,
-                        BatchStatus.IN_PROGRESS,
-                        info.startedAt(),
-                        null,
-                        info.recordCount(),
-                        processed,
-                        (processed * 100.0) / total
-                )
-        );
-    }
-
-    private void markCompleted(UUID batchId, int total) {
-        batchStatus.computeIfPresent(batchId, (id, info) ->
-                new BatchInfo(
-                        id,
-                        BatchStatus.COMPLETED,
-                        info.startedAt(),
-                        Instant.now(),
-                        info.recordCount(),
-                        total,
-                        100.0
-                )
-        );
-    }
-
-    private void markFailed(UUID batchId) {
-        batchStatus.computeIfPresent(batchId, (id, info) ->
-                new BatchInfo(
-                        id,
-                        BatchStatus.FAILED,
-                        info.startedAt(),
-                        Instant.now(),
-                        info.recordCount(),
-                        info.processedCount(),
-                        info.progressPercent()
-                )
-        );
+    private BatchStaging newStaging() {
+        // Superseded records are only staged when history needs them, up to its cap.
+        // Records not newer than the live prices at batch start are dropped before staging
+        return new BatchStaging(dictionary, maxSuperseded, liveStore.snapshot(), spill);
+    }
+
+    private void checkWritable() {
+        if (replicationClient != null) {
+            throw new ReadOnlyReplicaException("This instance follows a replication primary, upload there");
+        }
+    }
+
+    private UploadSession openSession(UUID batchId) {
+        var session = sessions.get(batchId);
+        if (session != null) {
+            return session;
+        }
+        if (batches.contains(batchId)) {
+            throw new IllegalStateException("Batch " + batchId + " is not accepting chunks");
+        }
+        throw new IllegalArgumentException("Unknown batch " + batchId);
+    }
+
+    /**
+     * Abort handler of an asynchronous batch: interrupts its workers and
+     * releases the staging without waiting for them to drain.
+     */
+    private void abort(ExecutorService executor, BatchStaging staging) {
+        executor.shutdownNow();
+        metrics.stagingReleased(staging.size());
+        staging.clear();
+    }
+
+    private void recordAbort(BatchProgress progress) {
+        long nanos = progress.nanosSinceAbort();
+        if (nanos >= 0) {
+            metrics.batchAborted(progress.status(), nanos);
+        }
+    }
+
+    private void markCompleted(BatchProgress progress, int total) {
+        progress.complete(total);
+        metrics.batchCompleted(total, progress.nanosSinceStart());
+
+        var info = progress.toInfo();
+        long millis = Math.max(1, Duration.between(info.startedAt(), info.completedAt()).toMillis());
+        Runtime runtime = Runtime.getRuntime();
+        log.info("Batch {} committed {} records in {} ms ({} records/s, heap used {} MB)",
+                info.batchId(), total, millis, total * 1000L / millis,
+                (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+    }
+
+    /**
+     * Chunk size for a batch of {@code total} records: a few chunks per core,
+     * within the bounds the local reduction is sized for.
+     */
+    private static int chunkSize(int total) {
+        long perChunk = Math.ceilDiv((long) total, (long) PARALLELISM * CHUNKS_PER_WORKER);
+        return Math.clamp(perChunk, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE);
     }
 
     private List<List<PriceRecord>> chunk(List<PriceRecord> list, int size) {
@@ -0,0 +1,83 @@
+package sp.global.exercise.service.impl;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Publishes commits that ran side by side in version order. The store
+ * commits themselves are not held back, only the step telling the change
+ * index, the caches and the subscribers about a version waits until every
+ * earlier version was told.
+ * <p>
+ * Every version of the store goes through here once, or every later one
+ * waits for it forever. A store commit that throws never took a version,
+ * the stores make a snapshot visible last; past the store commit, what may
+ * still throw is prepared through {@link #publish(long, Supplier, Consumer, Runnable)},
+ * which publishes a fallback in its place.
+ */
+final class PublishOrder {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition turn = lock.newCondition();
+    // Version whose publish runs next, guarded by the lock
+    private long next;
+
+    /**
+     * @param version of the store, already published
+     */
+    PublishOrder(long version) {
+        this.next = version + 1;
+    }
+
+    /**
+     * Runs the publish step of a committed version once the versions before it ran theirs.
+     * Steps run one at a time, a step throwing still lets the next version through.
+     */
+    void publish(long version, Runnable step) {
+        lock.lock();
+        try {
+            while (version > next) {
+                turn.awaitUninterruptibly();
+            }
+            try {
+                step.run();
+            } finally {
+                next = Math.max(next, version + 1);
+                turn.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Prepares what a committed version publishes, outside its turn, then
+     * runs the step with it in its turn. If preparing throws, {@code skipped}
+     * runs in the turn instead and the exception is rethrown.
+     */
+    <T> void publish(long version, Supplier<T> prepare, Consumer<T> step, Runnable skipped) {
+        T prepared;
+        try {
+            prepared = prepare.get();
+        } catch (Throwable e) {
+            publish(version, skipped);
+            throw e;
+        }
+        publish(version, () -> step.accept(prepared));
+    }
+
+    /**
+     * Starts over once the store was replaced by one at {@code version}.
+     */
+    void reset(long version) {
+        lock.lock();
+        try {
+            next = version + 1;
+            turn.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package sp.global.exercise.service.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calls to one client, run in the order they were submitted and one at a
+ * time, on a thread of the executor while there are any. A client blocked
+ * on a slow connection only holds its own queue back, the thread deciding
+ * what to send never waits for it.
+ * <p>
+ * Calls handle their own failures, one throwing is dropped and the next
+ * ones still run.
+ */
+final class SerialSender {
+
+    private final Executor executor;
+    private final Queue<Runnable> calls = new ConcurrentLinkedQueue<>();
+    // Calls submitted and not finished, the one running included
+    private final AtomicInteger queued = new AtomicInteger();
+
+    SerialSender(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @throws java.util.concurrent.RejectedExecutionException if the executor was shut down
+     */
+    void submit(Runnable call) {
+        calls.add(call);
+        if (queued.getAndIncrement() == 0) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Calls submitted and not finished yet.
+     */
+    int queued() {
+        return queued.get();
+    }
+
+    private void drain() {
+        do {
+            try {
+                calls.poll().run();
+            } catch (RuntimeException e) {
+                // Dropped, the next calls still go out
+            }
+        } while (queued.decrementAndGet() > 0);
+    }
+}
@@ -0,0 +1,574 @@
+package sp.global.exercise.service.impl;
+
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.store.InstrumentDictionary;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
+
+/**
+ * Temp files of a staging that outgrew its memory threshold.
+ * <p>
+ * Each spill writes the newest record per id staged so far as a run sorted
+ * by dictionary code, {@code [int length][int code][long epochSecond][int nano][payload JSON]}
+ * per record. Records superseded within the batch, only kept for history,
+ * go unsorted to a side file with the same layout. Files are read back
+ * through memory-mapped windows, so reading a run costs no heap beyond the
+ * records it yields.
+ * <p>
+ * The newest record per id of the batch is a k-way merge of the runs and
+ * the sorted remainder still in memory: for each code the newest asOf
+ * wins, an earlier run wins a tie like a record already staged does. The
+ * merge runs once, when the staging is {@link #seal sealed}, copying the
+ * winners byte for byte to a merged run, and the losers the history still
+ * has room for to the side file; every later pass reads the merged run
+ * alone and a lookup finds its id through a sparse index of codes.
+ * Payloads round-trip as JSON, as in the off-heap store.
+ * <p>
+ * Files go to a directory of the process, under the configured one, and
+ * the directories of processes no longer running are deleted when the
+ * next one starts: a crash leaves nothing behind for long.
+ */
+class SpillRuns {
+
+    // Size of one mapped window, a record larger than it gets a window of its own
+    private static final int WINDOW_BYTES = 16 << 20;
+    private static final int HEADER_BYTES = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    // Records of the merged run per entry of its index
+    private static final int INDEX_STRIDE = 64;
+    private static final String PROCESS_DIRECTORY_PREFIX = "prices-staging-";
+
+    /**
+     * @param directory where the run files are created
+     * @param maxRecords records a staging holds in memory before it spills
+     */
+    record Settings(Path directory, long maxRecords, JsonMapper mapper) {
+
+        /**
+         * Settings spilling to a directory of this process under {@code parent},
+         * after deleting the ones left there by processes no longer running.
+         */
+        static Settings forProcess(Path parent, long maxRecords, JsonMapper mapper) {
+            long pid = ProcessHandle.current().pid();
+            try (var directories = Files.list(parent)) {
+                for (Path directory : directories.toList()) {
+                    String name = directory.getFileName().toString();
+                    if (name.startsWith(PROCESS_DIRECTORY_PREFIX) && !running(name.substring(PROCESS_DIRECTORY_PREFIX.length()), pid)) {
+                        deleteTree(directory);
+                    }
+                }
+            } catch (IOException e) {
+                // Nothing to clean, or not readable: spill anyway, files are deleted by their batch
+            }
+            return new Settings(parent.resolve(PROCESS_DIRECTORY_PREFIX + pid), maxRecords, mapper);
+        }
+
+        /**
+         * Whether the directory suffix is the pid of another process still running.
+         */
+        private static boolean running(String suffix, long self) {
+            try {
+                long pid = Long.parseLong(suffix);
+                // A directory of our own pid was left by an earlier process
+                return pid != self && ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+            } catch (NumberFormatException e) {
+                // Not one of ours
+                return true;
+            }
+        }
+
+        private static void deleteTree(Path directory) throws IOException {
+            try (var files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private final Settings settings;
+    private final InstrumentDictionary dictionary;
+
+    // Guarded by this
+    private final List<Path> runs = new ArrayList<>();
+    private Path superseded;
+    private long runRecords;
+    private long supersededRecords;
+    private boolean deleted;
+
+    // Set by seal: newest record per id, sorted by code, and every INDEX_STRIDE-th code with its offset
+    private Path merged;
+    private int[] indexCodes;
+    private long[] indexOffsets;
+
+    SpillRuns(Settings settings, InstrumentDictionary dictionary) {
+        this.settings = settings;
+        this.dictionary = dictionary;
+    }
+
+    // ============================
+    // Writing
+    // ============================
+
+    /**
+     * Writes the first {@code count} records as a new run, {@code codes} ascending.
+     * @throws CancellationException if the runs were deleted meanwhile, the batch was aborted
+     */
+    synchronized void writeRun(int[] codes, PriceRecord[] records, int count) throws IOException {
+        checkOpen();
+        Path run = createFile(".run");
+        runs.add(run);
+        try (var out = output(run, false)) {
+            for (int i = 0; i < count; i++) {
+                write(out, codes[i], records[i]);
+            }
+        }
+        runRecords += count;
+    }
+
+    /**
+     * Appends records superseded within the batch, in no particular order.
+     */
+    synchronized void appendSuperseded(Collection<PriceRecord> records) throws IOException {
+        checkOpen();
+        if (records.isEmpty()) {
+            return;
+        }
+        if (superseded == null) {
+            superseded = createFile(".superseded");
+        }
+        try (var out = output(superseded, true)) {
+            for (var record : records) {
+                write(out, dictionary.lookup(record.id()), record);
+            }
+        }
+        supersededRecords += records.size();
+    }
+
+    synchronized long records() {
+        return runRecords + supersededRecords;
+    }
+
+    synchronized int runCount() {
+        return runs.size();
+    }
+
+    synchronized boolean sealed() {
+        return merged != null;
+    }
+
+    /**
+     * Deletes every file, later writes are refused.
+     */
+    synchronized void delete() {
+        deleted = true;
+        List<Path> files = new ArrayList<>(runs);
+        if (superseded != null) {
+            files.add(superseded);
+        }
+        if (merged != null) {
+            files.add(merged);
+        }
+        runs.clear();
+        superseded = null;
+        merged = null;
+        runRecords = 0;
+        supersededRecords = 0;
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // Left in the temp directory, nothing refers to it anymore
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (deleted) {
+            throw new CancellationException("Staging was released");
+        }
+    }
+
+    private Path createFile(String suffix) throws IOException {
+        Files.createDirectories(settings.directory());
+        return Files.createTempFile(settings.directory(), "staging-", suffix);
+    }
+
+    private static DataOutputStream output(Path file, boolean append) throws IOException {
+        var stream = append
+                ? Files.newOutputStream(file, StandardOpenOption.APPEND)
+                : Files.newOutputStream(file);
+        return new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+    }
+
+    private void write(DataOutputStream out, int code, PriceRecord record) throws IOException {
+        byte[] payload = settings.mapper().writeValueAsBytes(record.payload());
+        out.writeInt(HEADER_BYTES + payload.length);
+        out.writeInt(code);
+        out.writeLong(record.asOf().getEpochSecond());
+        out.writeInt(record.asOf().getNano());
+        out.write(payload);
+    }
+
+    // ============================
+    // Reading
+    // ============================
+
+    /**
+     * The merged run and the superseded records kept. Only once {@link #seal sealed}.
+     */
+    synchronized void forEach(Consumer<PriceRecord> action) {
+        List<Path> files = new ArrayList<>(List.of(merged));
+        if (superseded != null) {
+            files.add(superseded);
+        }
+        for (Path file : files) {
+            var cursor = new RunCursor(file, 0, 0);
+            while (cursor.advance()) {
+                action.accept(cursor.record());
+            }
+        }
+    }
+
+    /**
+     * Merges the runs and the in-memory remainder into the merged run, the
+     * winners copied without decoding any payload.
+     * @param codes codes of the remainder, ascending
+     * @param keepLosers records superseded across runs to append to the superseded ones, for the history
+     * @return {@code {distinct, superseded, kept}}: ids, records superseded across runs and the ones kept of them
+     * @throws CancellationException if the runs were deleted meanwhile, the batch was aborted
+     */
+    synchronized long[] seal(int[] codes, PriceRecord[] records, int count, long keepLosers) throws IOException {
+        checkOpen();
+        var merge = new RunMerge(sources(codes, records, count));
+        Path file = createFile(".merged");
+        if (keepLosers > 0 && superseded == null) {
+            superseded = createFile(".superseded");
+        }
+        int[] indexedCodes = new int[16];
+        long[] offsets = new long[16];
+        int distinct = 0;
+        long kept = 0;
+        try (var out = output(file, false);
+             var losers = keepLosers > 0 ? output(superseded, true) : null) {
+            while (merge.hasNext()) {
+                var newest = merge.pollNewest();
+                if (distinct % INDEX_STRIDE == 0) {
+                    int entry = distinct / INDEX_STRIDE;
+                    if (entry == indexedCodes.length) {
+                        indexedCodes = Arrays.copyOf(indexedCodes, entry * 2);
+                        offsets = Arrays.copyOf(offsets, entry * 2);
+                    }
+                    indexedCodes[entry] = newest.code;
+                    offsets[entry] = out.size();
+                }
+                newest.copyTo(out);
+                for (var source : merge.same) {
+                    if (source != newest && kept < keepLosers) {
+                        source.copyTo(losers);
+                        kept++;
+                    }
+                }
+                merge.advanceSame();
+                distinct++;
+            }
+        }
+        int entries = (distinct + INDEX_STRIDE - 1) / INDEX_STRIDE;
+        merged = file;
+        indexCodes = Arrays.copyOf(indexedCodes, entries);
+        indexOffsets = Arrays.copyOf(offsets, entries);
+        supersededRecords += kept;
+        return new long[]{distinct, merge.losers, kept};
+    }
+
+    /**
+     * Newest record per id, in code order. Only once {@link #seal sealed}.
+     */
+    synchronized Iterator<PriceRecord> newest() {
+        var cursor = new RunCursor(merged, 0, 0);
+        return new Iterator<>() {
+            private boolean ready = cursor.advance();
+
+            @Override
+            public boolean hasNext() {
+                return ready;
+            }
+
+            @Override
+            public PriceRecord next() {
+                if (!ready) {
+                    throw new NoSuchElementException();
+                }
+                var record = cursor.record();
+                ready = cursor.advance();
+                return record;
+            }
+        };
+    }
+
+    /**
+     * Ids of {@link #newest}, in the same order, no payload decoded.
+     */
+    synchronized Iterator<String> newestIds() {
+        var cursor = new RunCursor(merged, 0, 0);
+        return new Iterator<>() {
+            private boolean ready = cursor.advance();
+
+            @Override
+            public boolean hasNext() {
+                return ready;
+            }
+
+            @Override
+            public String next() {
+                if (!ready) {
+                    throw new NoSuchElementException();
+                }
+                String id = dictionary.id(cursor.code);
+                ready = cursor.advance();
+                return id;
+            }
+        };
+    }
+
+    /**
+     * Newest record of the code, null if the batch has none. Only once {@link #seal sealed}.
+     */
+    synchronized PriceRecord find(int code) {
+        // Last indexed code not after the one looked up, its record starts the scan
+        int entry = Arrays.binarySearch(indexCodes, code);
+        if (entry < 0) {
+            entry = -entry - 2;
+            if (entry < 0) {
+                return null;
+            }
+        }
+        var cursor = new RunCursor(merged, 0, indexOffsets[entry]);
+        for (int i = 0; i < INDEX_STRIDE && cursor.advance() && cursor.code <= code; i++) {
+            if (cursor.code == code) {
+                return cursor.record();
+            }
+        }
+        return null;
+    }
+
+    private List<Source> sources(int[] codes, PriceRecord[] records, int count) {
+        List<Source> sources = new ArrayList<>(runs.size() + 1);
+        for (int i = 0; i < runs.size(); i++) {
+            sources.add(new RunCursor(runs.get(i), i, 0));
+        }
+        // The remainder was staged last, it loses a tie to every run
+        sources.add(new MemoryRun(codes, records, count, runs.size()));
+        return sources;
+    }
+
+    /**
+     * A sorted sequence of records, {@link #advance} moves to the next one.
+     */
+    private abstract static class Source {
+
+        final int order;
+        int code;
+        Instant asOf;
+
+        Source(int order) {
+            this.order = order;
+        }
+
+        abstract boolean advance();
+
+        /**
+         * The current record, to be read before the next advance.
+         */
+        abstract PriceRecord record();
+
+        /**
+         * Writes the current record in the run layout.
+         */
+        abstract void copyTo(DataOutputStream out) throws IOException;
+    }
+
+    private final class MemoryRun extends Source {
+
+        private final int[] codes;
+        private final PriceRecord[] records;
+        private final int count;
+        private int next;
+
+        MemoryRun(int[] codes, PriceRecord[] records, int count, int order) {
+            super(order);
+            this.codes = codes;
+            this.records = records;
+            this.count = count;
+        }
+
+        @Override
+        boolean advance() {
+            if (next == count) {
+                return false;
+            }
+            code = codes[next];
+            asOf = records[next].asOf();
+            next++;
+            return true;
+        }
+
+        @Override
+        PriceRecord record() {
+            return records[next - 1];
+        }
+
+        @Override
+        void copyTo(DataOutputStream out) throws IOException {
+            write(out, code, records[next - 1]);
+        }
+    }
+
+    private final class RunCursor extends Source {
+
+        private final Path file;
+        private final long size;
+        private long position;
+        private MappedByteBuffer window;
+        private long windowStart;
+        private int payloadOffset;
+        private int payloadLength;
+
+        RunCursor(Path file, int order, long position) {
+            super(order);
+            this.file = file;
+            this.position = position;
+            try {
+                this.size = Files.size(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read spilled run " + file, e);
+            }
+        }
+
+        @Override
+        boolean advance() {
+            if (position >= size) {
+                return false;
+            }
+            int length = window(position, Integer.BYTES).getInt(offset(position));
+            var buffer = window(position, Integer.BYTES + length);
+            int offset = offset(position) + Integer.BYTES;
+            code = buffer.getInt(offset);
+            asOf = Instant.ofEpochSecond(buffer.getLong(offset + Integer.BYTES), buffer.getInt(offset + Integer.BYTES + Long.BYTES));
+            payloadOffset = offset + HEADER_BYTES;
+            payloadLength = length - HEADER_BYTES;
+            position += Integer.BYTES + length;
+            return true;
+        }
+
+        @Override
+        PriceRecord record() {
+            byte[] payload = new byte[payloadLength];
+            window.get(payloadOffset, payload);
+            return new PriceRecord(dictionary.id(code), asOf, settings.mapper().readValue(payload, Object.class));
+        }
+
+        @Override
+        void copyTo(DataOutputStream out) throws IOException {
+            int length = HEADER_BYTES + payloadLength;
+            byte[] bytes = new byte[Integer.BYTES + length];
+            window.get(payloadOffset - HEADER_BYTES - Integer.BYTES, bytes);
+            out.write(bytes);
+        }
+
+        private int offset(long position) {
+            return (int) (position - windowStart);
+        }
+
+        /**
+         * Maps a new window when {@code bytes} from {@code position} are not all in the current one.
+         */
+        private MappedByteBuffer window(long position, int bytes) {
+            if (window == null || position < windowStart || position + bytes > windowStart + window.capacity()) {
+                long length = Math.min(Math.max(WINDOW_BYTES, bytes), size - position);
+                // The mapping stays valid once the channel is closed
+                try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot read spilled run " + file, e);
+                }
+                windowStart = position;
+            }
+            return window;
+        }
+    }
+
+    /**
+     * K-way merge of sources sorted by code, one record per code.
+     */
+    private static final class RunMerge {
+
+        private final PriorityQueue<Source> heads = new PriorityQueue<>((a, b) -> a.code != b.code
+                ? Integer.compare(a.code, b.code)
+                : Integer.compare(a.order, b.order));
+        // Sources at the code polled last, the newest among them
+        final List<Source> same = new ArrayList<>();
+        long losers;
+
+        RunMerge(List<Source> sources) {
+            for (var source : sources) {
+                if (source.advance()) {
+                    heads.add(source);
+                }
+            }
+        }
+
+        boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        /**
+         * Takes every source at the lowest code, sources of the same code come out in run order.
+         * @return the one holding the newest record, to be read before {@link #advanceSame}
+         */
+        Source pollNewest() {
+            if (heads.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            var newest = heads.poll();
+            same.add(newest);
+            while (!heads.isEmpty() && heads.peek().code == newest.code) {
+                var source = heads.poll();
+                same.add(source);
+                if (source.asOf.isAfter(newest.asOf)) {
+                    newest = source;
+                }
+            }
+            losers += same.size() - 1;
+            return newest;
+        }
+
+        void advanceSame() {
+            for (var source : same) {
+                if (source.advance()) {
+                    heads.add(source);
+                }
+            }
+            same.clear();
+        }
+    }
+}
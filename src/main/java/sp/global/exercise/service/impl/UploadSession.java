@@ -0,0 +1,101 @@
+package sp.global.exercise.service.impl;
+
+import sp.global.exercise.model.PriceRecord;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Staging area of a batch that is uploaded in several chunks.
+ * Chunks are merged as soon as they arrive. Completing or cancelling the
+ * batch closes the session, which waits for chunks still being merged so
+ * that no record can slip into the staging after it was handed over.
+ * A session tells how long it has been idle, so one the client forgot can
+ * be cancelled and give its admission back.
+ */
+class UploadSession {
+
+    private final BatchStaging staging;
+
+    // Chunks share the read lock, close takes the write lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final AtomicInteger received = new AtomicInteger(0);
+    private final Integer expectedRecords;
+    private boolean closed;
+
+    // Chunks being merged, and when the last one started or ended
+    private final AtomicInteger merging = new AtomicInteger();
+    private volatile long lastActiveNanos = System.nanoTime();
+
+    UploadSession(BatchStaging staging, Integer expectedRecords) {
+        this.staging = staging;
+        this.expectedRecords = expectedRecords;
+    }
+
+    /**
+     * Merges a chunk into the staging.
+     * @return the reduction of the chunk, with its stale and superseded counts
+     * @throws IllegalStateException if the session was already closed
+     */
+    ChunkReduction merge(List<PriceRecord> chunk) {
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Batch is not accepting chunks anymore");
+            }
+            merging.incrementAndGet();
+            lastActiveNanos = System.nanoTime();
+            try {
+                // Duplicates of the chunk collapse before the shared staging is touched
+                var reduction = staging.reduction(chunk.size());
+                for (var record : chunk) {
+                    reduction.add(record);
+                }
+                staging.mergeAll(reduction);
+                received.addAndGet(chunk.size());
+                return reduction;
+            } finally {
+                lastActiveNanos = System.nanoTime();
+                merging.decrementAndGet();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Nanos since the session was opened or last merged a chunk, 0 while one is being merged.
+     */
+    long idleNanos() {
+        return merging.get() > 0 ? 0 : System.nanoTime() - lastActiveNanos;
+    }
+
+    /**
+     * Closes the session once all in-flight chunks are merged.
+     * @return the staging, ready to be committed
+     */
+    BatchStaging close() {
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            return staging;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int received() {
+        return received.get();
+    }
+
+    /**
+     * Expected size of the batch, or the records received so far when the
+     * client did not announce it (or sent more than announced).
+     */
+    int recordCount() {
+        int count = received.get();
+        return expectedRecords == null ? count : Math.max(expectedRecords, count);
+    }
+}
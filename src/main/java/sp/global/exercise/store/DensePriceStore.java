@@ -0,0 +1,121 @@
+package sp.global.exercise.store;
+
+import sp.global.exercise.model.PriceRecord;
+
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+
+/**
+ * Live price store indexed by the dictionary code of the id.
+ * <p>
+ * Codes are dense, so the index is a paged array of records rather than a
+ * hash table: a read is one dictionary lookup and two array loads, with no
+ * hashing or probing of the id in the store itself. A commit copies only
+ * the pages it touches, the others are shared with the previous snapshot.
+ * Records are kept as objects, like the HEAP store, so reads decode nothing.
+ */
+public class DensePriceStore implements PriceStore {
+
+    private final InstrumentDictionary dictionary;
+
+    // Commits are serialized, readers only follow the current snapshot
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private volatile Snapshot current = new Snapshot(0, RecordPages.EMPTY, 0);
+
+    public DensePriceStore(InstrumentDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public final class Snapshot implements PriceSnapshot {
+
+        private final long version;
+        private final RecordPages records;
+        private final int size;
+
+        private Snapshot(long version, RecordPages records, int size) {
+            this.version = version;
+            this.records = records;
+            this.size = size;
+        }
+
+        @Override
+        public long version() {
+            return version;
+        }
+
+        @Override
+        public PriceRecord get(String id) {
+            int code = dictionary.lookup(id);
+            return code < 0 ? null : records.get(code);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Visits the records in code order, that is in the order their ids were first seen.
+         */
+        @Override
+        public void forEach(BiConsumer<String, PriceRecord> action) {
+            int capacity = records.capacity();
+            for (int code = 0; code < capacity; code++) {
+                PriceRecord record = records.get(code);
+                if (record != null) {
+                    action.accept(record.id(), record);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    @Override
+    public Snapshot commit(Map<String, PriceRecord> staging, BinaryOperator<PriceRecord> resolver) {
+        commitLock.lock();
+        try {
+            Snapshot base = current;
+            var records = base.records.edit();
+            int size = base.size;
+
+            for (PriceRecord record : staging.values()) {
+                int code = dictionary.intern(record.id());
+                PriceRecord live = records.get(code);
+                if (live == null) {
+                    size++;
+                } else {
+                    record = resolver.apply(live, record);
+                    if (record == live) {
+                        continue;
+                    }
+                }
+                records.set(code, record);
+            }
+
+            current = new Snapshot(base.version + 1, records.build(), size);
+            return current;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    @Override
+    public void restore(long version, Map<String, PriceRecord> records) {
+        commitLock.lock();
+        try {
+            var pages = RecordPages.EMPTY.edit();
+            for (PriceRecord record : records.values()) {
+                pages.set(dictionary.intern(record.id()), record);
+            }
+            current = new Snapshot(version, pages.build(), records.size());
+        } finally {
+            commitLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package sp.global.exercise.store;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps instrument ids to dense int codes, assigned once and never reused.
+ * Codes can be used as array indexes by primitive structures.
+ * <p>
+ * The process-wide dictionary only learns the ids that get committed. A
+ * batch codes its ids in a dictionary of its own, dropped with the batch,
+ * which keeps the shared instance of the ids already known there.
+ */
+public class InstrumentDictionary {
+
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+    // Null for the process-wide dictionary
+    private final InstrumentDictionary shared;
+
+    // Reverse lookup, replaced (never changed in place) when it grows
+    private volatile String[] ids = new String[1024];
+    private int size;
+
+    public InstrumentDictionary() {
+        this(null);
+    }
+
+    /**
+     * @param shared dictionary whose instance of an id is kept when it has one, null for none
+     */
+    public InstrumentDictionary(InstrumentDictionary shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * @return the code of the id, or -1 if it was never interned
+     */
+    public int lookup(String id) {
+        Integer code = codes.get(id);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * @return the code of the id, assigning the next one if needed
+     */
+    public int intern(String id) {
+        Integer code = codes.get(id);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            code = codes.get(id);
+            if (code != null) {
+                return code;
+            }
+            int next = size;
+            String[] current = ids;
+            if (next == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[next] = shared == null ? id : shared.canonical(id);
+            ids = current;
+            size = next + 1;
+            // Published last, so whoever sees the code also sees the reverse entry
+            codes.put(id, next);
+            return next;
+        }
+    }
+
+    public String id(int code) {
+        return ids[code];
+    }
+
+    /**
+     * @return this dictionary's instance of the id, or the id itself if it was never interned
+     */
+    public String canonical(String id) {
+        Integer code = codes.get(id);
+        return code == null ? id : ids[code];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
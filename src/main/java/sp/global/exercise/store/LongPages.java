@@ -0,0 +1,85 @@
+package sp.global.exercise.store;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Immutable, paged array of longs indexed by a dense int.
+ * An edit copies only the pages it touches, the others are shared with the
+ * previous version. Unset slots read as 0.
+ */
+final class LongPages {
+
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    static final LongPages EMPTY = new LongPages(new long[0][]);
+
+    private final long[][] pages;
+
+    private LongPages(long[][] pages) {
+        this.pages = pages;
+    }
+
+    long get(int index) {
+        int page = index >>> PAGE_BITS;
+        if (page >= pages.length || pages[page] == null) {
+            return 0;
+        }
+        return pages[page][index & PAGE_MASK];
+    }
+
+    /**
+     * Highest index that can hold a value, exclusive.
+     */
+    int capacity() {
+        return pages.length << PAGE_BITS;
+    }
+
+    Editor edit() {
+        return new Editor(pages.clone());
+    }
+
+    /**
+     * Single-threaded editor, pages are copied on first write.
+     */
+    static final class Editor {
+
+        private long[][] pages;
+        private final BitSet owned = new BitSet();
+
+        private Editor(long[][] pages) {
+            this.pages = pages;
+        }
+
+        long get(int index) {
+            int page = index >>> PAGE_BITS;
+            if (page >= pages.length || pages[page] == null) {
+                return 0;
+            }
+            return pages[page][index & PAGE_MASK];
+        }
+
+        void set(int index, long value) {
+            int page = index >>> PAGE_BITS;
+            if (page >= pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(page + 1, pages.length * 2));
+            }
+            if (!owned.get(page)) {
+                pages[page] = pages[page] == null ? new long[PAGE_SIZE] : pages[page].clone();
+                owned.set(page);
+            }
+            pages[page][index & PAGE_MASK] = value;
+        }
+
+        int capacity() {
+            return pages.length << PAGE_BITS;
+        }
+
+        LongPages build() {
+            owned.clear();
+            return new LongPages(pages.clone());
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package sp.global.exercise.store;
+
+import sp.global.exercise.model.PriceRecord;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+
+/**
+ * Live price store keeping records serialized in direct (off-heap) buffers.
+ * <p>
+ * Ids are dictionary-encoded to dense ints, the index is a paged long array
+ * from code to record address. A record is laid out as
+ * {@code [long epochSecond][int nano][int payloadLength][payload JSON]} and
+ * is only decoded when it is read. Arenas are append-only: a commit writes
+ * new records after the existing ones and copies only the index pages it
+ * touches, so older snapshots stay valid. Superseded records are reclaimed
+ * by compacting into fresh arenas once they outweigh the live ones.
+ */
+public class OffHeapPriceStore implements PriceStore {
+
+    private static final int HEADER_BYTES = Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+    private final InstrumentDictionary dictionary;
+    private final JsonMapper mapper;
+    private final int arenaSize;
+
+    // Commits write to the arenas, so they are serialized
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private volatile Snapshot current;
+
+    // Writer state, guarded by commitLock
+    private ByteBuffer[] arenas = new ByteBuffer[0];
+    private int writeOffset;
+    private long liveBytes;
+    private long deadBytes;
+
+    public OffHeapPriceStore(InstrumentDictionary dictionary, JsonMapper mapper, int arenaSize) {
+        this.dictionary = dictionary;
+        this.mapper = mapper;
+        this.arenaSize = arenaSize;
+        this.current = new Snapshot(0, LongPages.EMPTY, arenas, 0);
+    }
+
+    public final class Snapshot implements PriceSnapshot {
+
+        private final long version;
+        private final LongPages index;
+        private final ByteBuffer[] arenas;
+        private final int size;
+
+        private Snapshot(long version, LongPages index, ByteBuffer[] arenas, int size) {
+            this.version = version;
+            this.index = index;
+            this.arenas = arenas;
+            this.size = size;
+        }
+
+        @Override
+        public long version() {
+            return version;
+        }
+
+        @Override
+        public PriceRecord get(String id) {
+            int code = dictionary.lookup(id);
+            if (code < 0) {
+                return null;
+            }
+            long address = index.get(code);
+            return address == 0 ? null : decode(arenas, address, id);
+        }
+
+        @Override
+        public Instant asOf(String id) {
+            int code = dictionary.lookup(id);
+            if (code < 0) {
+                return null;
+            }
+            long address = index.get(code);
+            return address == 0 ? null : readAsOf(arenas, address);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void forEach(BiConsumer<String, PriceRecord> action) {
+            int capacity = index.capacity();
+            for (int code = 0; code < capacity; code++) {
+                long address = index.get(code);
+                if (address != 0) {
+                    String id = dictionary.id(code);
+                    action.accept(id, decode(arenas, address, id));
+                }
+            }
+        }
+    }
+
+    @Override
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    /**
+     * Off-heap bytes held by the arenas of the writer, superseded records included.
+     */
+    public long offHeapBytes() {
+        commitLock.lock();
+        try {
+            long total = 0;
+            for (ByteBuffer arena : arenas) {
+                total += arena.capacity();
+            }
+            return total;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * The resolver only needs the asOf of the live record, so it gets a
+     * record without payload. Returning that record keeps the live one.
+     */
+    @Override
+    public Snapshot commit(Map<String, PriceRecord> staging, BinaryOperator<PriceRecord> resolver) {
+        commitLock.lock();
+        try {
+            Snapshot base = current;
+            var index = base.index.edit();
+            int size = base.size;
+
+            for (var entry : staging.entrySet()) {
+                String id = entry.getKey();
+                PriceRecord record = entry.getValue();
+                int code = dictionary.intern(id);
+                long address = index.get(code);
+
+                if (address != 0) {
+                    var live = new PriceRecord(id, readAsOf(arenas, address), null);
+                    if (resolver.apply(live, record) == live) {
+                        continue;
+                    }
+                    int length = recordLength(arenas, address);
+                    liveBytes -= length;
+                    deadBytes += length;
+                } else {
+                    size++;
+                }
+
+                index.set(code, append(encode(record)));
+            }
+
+            if (deadBytes > Math.max(liveBytes, arenaSize)) {
+                compact(index);
+            }
+
+            current = new Snapshot(base.version + 1, index.build(), arenas, size);
+            return current;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    @Override
+    public void restore(long version, Map<String, PriceRecord> records) {
+        commitLock.lock();
+        ByteBuffer[] previousArenas = arenas;
+        int previousOffset = writeOffset;
+        long previousLive = liveBytes;
+        long previousDead = deadBytes;
+        try {
+            arenas = new ByteBuffer[0];
+            writeOffset = 0;
+            liveBytes = 0;
+            deadBytes = 0;
+
+            var index = LongPages.EMPTY.edit();
+            for (var entry : records.entrySet()) {
+                index.set(dictionary.intern(entry.getKey()), append(encode(entry.getValue())));
+            }
+            current = new Snapshot(version, index.build(), arenas, records.size());
+        } catch (RuntimeException e) {
+            // Records cut off midway, commits keep writing where the current snapshot left off
+            arenas = previousArenas;
+            writeOffset = previousOffset;
+            liveBytes = previousLive;
+            deadBytes = previousDead;
+            throw e;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    // ============================
+    // Encoding
+    // ============================
+
+    private byte[] encode(PriceRecord record) {
+        byte[] payload = mapper.writeValueAsBytes(record.payload());
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        buffer.putLong(record.asOf().getEpochSecond())
+                .putInt(record.asOf().getNano())
+                .putInt(payload.length)
+                .put(payload);
+        return buffer.array();
+    }
+
+    private PriceRecord decode(ByteBuffer[] arenas, long address, String id) {
+        ByteBuffer arena = arenas[arenaOf(address)];
+        int offset = offsetOf(address);
+        byte[] payload = new byte[arena.getInt(offset + Long.BYTES + Integer.BYTES)];
+        arena.get(offset + HEADER_BYTES, payload);
+        return new PriceRecord(id, readAsOf(arenas, address), mapper.readValue(payload, Object.class));
+    }
+
+    private static Instant readAsOf(ByteBuffer[] arenas, long address) {
+        ByteBuffer arena = arenas[arenaOf(address)];
+        int offset = offsetOf(address);
+        return Instant.ofEpochSecond(arena.getLong(offset), arena.getInt(offset + Long.BYTES));
+    }
+
+    private static int recordLength(ByteBuffer[] arenas, long address) {
+        return HEADER_BYTES + arenas[arenaOf(address)].getInt(offsetOf(address) + Long.BYTES + Integer.BYTES);
+    }
+
+    // ============================
+    // Arenas
+    // ============================
+
+    /**
+     * Addresses are {@code (arena + 1) << 32 | offset}, so 0 means absent.
+     */
+    private static int arenaOf(long address) {
+        return (int) (address >>> 32) - 1;
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    private long append(byte[] bytes) {
+        if (arenas.length == 0 || writeOffset + bytes.length > arenas[arenas.length - 1].capacity()) {
+            // Records never span arenas, an oversized one gets its own
+            arenas = Arrays.copyOf(arenas, arenas.length + 1);
+            arenas[arenas.length - 1] = ByteBuffer.allocateDirect(Math.max(arenaSize, bytes.length));
+            writeOffset = 0;
+        }
+        int arena = arenas.length - 1;
+        arenas[arena].put(writeOffset, bytes);
+        long address = ((long) (arena + 1) << 32) | writeOffset;
+        writeOffset += bytes.length;
+        liveBytes += bytes.length;
+        return address;
+    }
+
+    /**
+     * Copies every live record into fresh arenas. The old arenas are freed
+     * by the GC once no snapshot refers to them anymore.
+     */
+    private void compact(LongPages.Editor index) {
+        ByteBuffer[] old = arenas;
+        arenas = new ByteBuffer[0];
+        writeOffset = 0;
+        liveBytes = 0;
+        deadBytes = 0;
+
+        int capacity = index.capacity();
+        for (int code = 0; code < capacity; code++) {
+            long address = index.get(code);
+            if (address != 0) {
+                byte[] bytes = new byte[recordLength(old, address)];
+                old[arenaOf(address)].get(offsetOf(address), bytes);
+                index.set(code, append(bytes));
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package sp.global.exercise.store;
+
+import sp.global.exercise.model.PriceRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+
+/**
+ * Live price store split into hash partitions, each one a
+ * {@link PersistentHashMap}. A commit merges the partitions it touches in
+ * parallel on a fork-join pool, then publishes them all at once in a new
+ * snapshot, which is the version fence: readers see either none or all of
+ * a batch.
+ * <p>
+ * Commits are serialized on a lock rather than retried on a CAS, so a
+ * commit never redoes its merge because another batch finished first.
+ */
+public class PartitionedPriceStore implements PriceStore {
+
+    // Below this many records the merge stays on the committing thread
+    private static final int PARALLEL_THRESHOLD = 2048;
+
+    private final int partitionBits;
+    private final ForkJoinPool pool;
+    private final Object commitLock = new Object();
+
+    private volatile Snapshot current;
+
+    /**
+     * @param partitions rounded up to a power of two
+     */
+    public PartitionedPriceStore(int partitions, ForkJoinPool pool) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be positive");
+        }
+        this.partitionBits = 32 - Integer.numberOfLeadingZeros(partitions - 1);
+        this.pool = pool;
+        this.current = new Snapshot(0, emptyPartitions(1 << partitionBits), 0);
+    }
+
+    public record Snapshot(long version, PersistentHashMap<String, PriceRecord>[] partitions, int size)
+            implements PriceSnapshot {
+
+        @Override
+        public PriceRecord get(String id) {
+            return partitions[partition(id, partitions.length)].get(id);
+        }
+
+        @Override
+        public void forEach(BiConsumer<String, PriceRecord> action) {
+            for (var partition : partitions) {
+                partition.forEach(action);
+            }
+        }
+    }
+
+    @Override
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    public int partitions() {
+        return 1 << partitionBits;
+    }
+
+    /**
+     * Merges the staging into a new snapshot. Costs O(staging size),
+     * spread over the partitions it touches.
+     */
+    @Override
+    public Snapshot commit(Map<String, PriceRecord> staging, BinaryOperator<PriceRecord> resolver) {
+        List<List<PriceRecord>> buckets = split(staging);
+
+        synchronized (commitLock) {
+            var base = current;
+            var next = base.partitions().clone();
+
+            List<ForkJoinTask<?>> merges = new ArrayList<>();
+            for (int p = 0; p < next.length; p++) {
+                var bucket = buckets.get(p);
+                if (bucket.isEmpty()) {
+                    // Untouched partitions are shared with the previous snapshot
+                    continue;
+                }
+                int partition = p;
+                merges.add(ForkJoinTask.adapt(() -> next[partition] = merge(next[partition], bucket, resolver)));
+            }
+
+            if (merges.size() > 1 && staging.size() >= PARALLEL_THRESHOLD) {
+                // Joining the tasks publishes their array writes to this thread
+                pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(merges)));
+            } else {
+                merges.forEach(ForkJoinTask::invoke);
+            }
+
+            int size = 0;
+            for (var partition : next) {
+                size += partition.size();
+            }
+
+            current = new Snapshot(base.version() + 1, next, size);
+            return current;
+        }
+    }
+
+    @Override
+    public void restore(long version, Map<String, PriceRecord> records) {
+        List<List<PriceRecord>> buckets = split(records);
+        var partitions = emptyPartitions(partitions());
+        for (int p = 0; p < partitions.length; p++) {
+            partitions[p] = merge(partitions[p], buckets.get(p), (oldVal, newVal) -> newVal);
+        }
+        synchronized (commitLock) {
+            current = new Snapshot(version, partitions, records.size());
+        }
+    }
+
+    private List<List<PriceRecord>> split(Map<String, PriceRecord> records) {
+        int partitions = partitions();
+        List<List<PriceRecord>> buckets = new ArrayList<>(partitions);
+        int expected = records.size() / partitions + 1;
+        for (int p = 0; p < partitions; p++) {
+            buckets.add(new ArrayList<>(expected));
+        }
+        for (var record : records.values()) {
+            buckets.get(partition(record.id(), partitions)).add(record);
+        }
+        return buckets;
+    }
+
+    private static PersistentHashMap<String, PriceRecord> merge(PersistentHashMap<String, PriceRecord> partition,
+                                                                List<PriceRecord> records,
+                                                                BinaryOperator<PriceRecord> resolver) {
+        var editor = partition.asTransient();
+        for (var record : records) {
+            editor.merge(record.id(), record, resolver);
+        }
+        return editor.persistent();
+    }
+
+    /**
+     * Picks the partition from the high bits of a scrambled hash, the trie
+     * inside the partition branches on the low bits.
+     */
+    private static int partition(String id, int partitions) {
+        if (partitions == 1) {
+            return 0;
+        }
+        return (id.hashCode() * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(partitions - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PersistentHashMap<String, PriceRecord>[] emptyPartitions(int partitions) {
+        var empty = (PersistentHashMap<String, PriceRecord>[]) new PersistentHashMap<?, ?>[partitions];
+        Arrays.fill(empty, PersistentHashMap.<String, PriceRecord>empty());
+        return empty;
+    }
+}
@@ -0,0 +1,349 @@
+package sp.global.exercise.store;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+
+/**
+ * Immutable hash array mapped trie (HAMT).
+ * Every update copies only the path from the root to the changed entry and
+ * shares the rest of the trie with the previous version, so readers holding
+ * an older map keep a consistent view at no extra cost.
+ * <p>
+ * Bulk updates go through a {@link Transient}: nodes it created itself are
+ * updated in place, which makes merging a batch O(batch size) instead of
+ * O(batch size * path copy).
+ */
+public final class PersistentHashMap<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(BitmapNode.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        return (V) root.find(0, hash(key), key);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return a new map with the entry added or replaced, this map is left untouched
+     */
+    public PersistentHashMap<K, V> put(K key, V value) {
+        var editor = asTransient();
+        editor.put(key, value);
+        return editor.persistent();
+    }
+
+    /**
+     * Starts a batch of updates on top of this map.
+     */
+    public Transient<K, V> asTransient() {
+        return new Transient<>(root, size);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bitpos(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    // ============================
+    // Transient (batch) editor
+    // ============================
+
+    /**
+     * Single-threaded editor for a batch of updates.
+     * Once {@link #persistent()} is called it can no longer be used.
+     */
+    public static final class Transient<K, V> {
+
+        // Identity of this edit, nodes carrying it may be changed in place
+        private Object edit = new Object();
+        private Node root;
+        private int size;
+
+        private Transient(Node root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        public void put(K key, V value) {
+            merge(key, value, null);
+        }
+
+        /**
+         * Adds the entry, or replaces the existing value with {@code resolver(old, value)}.
+         * A null resolver always replaces.
+         */
+        @SuppressWarnings("unchecked")
+        public void merge(K key, V value, BinaryOperator<V> resolver) {
+            ensureEditable();
+            Objects.requireNonNull(key);
+            var added = new boolean[1];
+            root = root.put(edit, 0, hash(key), key, value, (BinaryOperator<Object>) resolver, added);
+            if (added[0]) {
+                size++;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public V get(K key) {
+            ensureEditable();
+            return (V) root.find(0, hash(key), key);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public PersistentHashMap<K, V> persistent() {
+            ensureEditable();
+            edit = null;
+            return new PersistentHashMap<>(root, size);
+        }
+
+        private void ensureEditable() {
+            if (edit == null) {
+                throw new IllegalStateException("Transient used after persistent() call");
+            }
+        }
+    }
+
+    // ============================
+    // Trie nodes
+    // ============================
+
+    private record Leaf(int hash, Object key, Object value) {}
+
+    private abstract static class Node {
+
+        // Owner transient, null for nodes of a persistent map
+        final Object edit;
+
+        Node(Object edit) {
+            this.edit = edit;
+        }
+
+        boolean editable(Object edit) {
+            return edit != null && this.edit == edit;
+        }
+
+        abstract Object find(int shift, int hash, Object key);
+
+        abstract Node put(Object edit, int shift, int hash, Object key, Object value,
+                          BinaryOperator<Object> resolver, boolean[] added);
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+    }
+
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+        int bitmap;
+        // Leaf or Node per set bit, in bit order
+        Object[] array;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            super(edit);
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = array[index(bit)];
+            if (slot instanceof Leaf leaf) {
+                return leaf.hash == hash && leaf.key.equals(key) ? leaf.value : null;
+            }
+            return ((Node) slot).find(shift + BITS, hash, key);
+        }
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value,
+                 BinaryOperator<Object> resolver, boolean[] added) {
+            int bit = bitpos(hash, shift);
+            int idx = index(bit);
+
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                Object[] grown = new Object[array.length + 1];
+                System.arraycopy(array, 0, grown, 0, idx);
+                grown[idx] = new Leaf(hash, key, value);
+                System.arraycopy(array, idx, grown, idx + 1, array.length - idx);
+
+                if (editable(edit)) {
+                    bitmap |= bit;
+                    array = grown;
+                    return this;
+                }
+                return new BitmapNode(edit, bitmap | bit, grown);
+            }
+
+            Object slot = array[idx];
+            Object replacement;
+
+            if (slot instanceof Leaf leaf) {
+                if (leaf.hash == hash && leaf.key.equals(key)) {
+                    Object merged = resolver == null ? value : resolver.apply(leaf.value, value);
+                    if (merged == leaf.value) {
+                        return this;
+                    }
+                    replacement = new Leaf(hash, key, merged);
+                } else {
+                    added[0] = true;
+                    replacement = createNode(edit, shift + BITS, leaf, new Leaf(hash, key, value));
+                }
+            } else {
+                Node child = (Node) slot;
+                Node updated = child.put(edit, shift + BITS, hash, key, value, resolver, added);
+                if (updated == child) {
+                    return this;
+                }
+                replacement = updated;
+            }
+
+            if (editable(edit)) {
+                array[idx] = replacement;
+                return this;
+            }
+            Object[] copy = array.clone();
+            copy[idx] = replacement;
+            return new BitmapNode(edit, bitmap, copy);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (Object slot : array) {
+                if (slot instanceof Leaf leaf) {
+                    action.accept(leaf.key, leaf.value);
+                } else {
+                    ((Node) slot).forEach(action);
+                }
+            }
+        }
+
+        private static Node createNode(Object edit, int shift, Leaf a, Leaf b) {
+            if (a.hash == b.hash) {
+                return new CollisionNode(edit, a.hash, new Leaf[]{a, b});
+            }
+            int bitA = bitpos(a.hash, shift);
+            int bitB = bitpos(b.hash, shift);
+            if (bitA == bitB) {
+                return new BitmapNode(edit, bitA, new Object[]{createNode(edit, shift + BITS, a, b)});
+            }
+            // Unsigned compare, bit 31 is negative
+            return Integer.compareUnsigned(bitA, bitB) < 0
+                    ? new BitmapNode(edit, bitA | bitB, new Object[]{a, b})
+                    : new BitmapNode(edit, bitA | bitB, new Object[]{b, a});
+        }
+    }
+
+    /**
+     * Keys whose full 32-bit hashes are equal.
+     */
+    private static final class CollisionNode extends Node {
+
+        final int hash;
+        Leaf[] leaves;
+
+        CollisionNode(Object edit, int hash, Leaf[] leaves) {
+            super(edit);
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            for (Leaf leaf : leaves) {
+                if (leaf.key.equals(key)) {
+                    return leaf.value;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        Node put(Object edit, int shift, int hash, Object key, Object value,
+                 BinaryOperator<Object> resolver, boolean[] added) {
+            if (hash != this.hash) {
+                // Same prefix but a different hash, push this node one level down
+                return new BitmapNode(edit, bitpos(this.hash, shift), new Object[]{this})
+                        .put(edit, shift, hash, key, value, resolver, added);
+            }
+
+            for (int i = 0; i < leaves.length; i++) {
+                Leaf leaf = leaves[i];
+                if (leaf.key.equals(key)) {
+                    Object merged = resolver == null ? value : resolver.apply(leaf.value, value);
+                    if (merged == leaf.value) {
+                        return this;
+                    }
+                    Leaf replacement = new Leaf(hash, key, merged);
+                    if (editable(edit)) {
+                        leaves[i] = replacement;
+                        return this;
+                    }
+                    Leaf[] copy = leaves.clone();
+                    copy[i] = replacement;
+                    return new CollisionNode(edit, hash, copy);
+                }
+            }
+
+            added[0] = true;
+            Leaf[] grown = Arrays.copyOf(leaves, leaves.length + 1);
+            grown[leaves.length] = new Leaf(hash, key, value);
+            if (editable(edit)) {
+                leaves = grown;
+                return this;
+            }
+            return new CollisionNode(edit, hash, grown);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (Leaf leaf : leaves) {
+                action.accept(leaf.key, leaf.value);
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package sp.global.exercise.store;
+
+import sp.global.exercise.model.PriceRecord;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Committed prices over time, a bounded series per id. A series keeps its
+ * timestamps in a sorted {@code long[]} of epoch nanos next to the payloads,
+ * so an as-of lookup is a binary search and a point costs one array slot
+ * each instead of a record object.
+ * <p>
+ * Retention is applied per series when it is written: at most
+ * {@code maxPointsPerId} points, none older than {@code maxAge}. Lookups
+ * also ignore points that aged out while the series was idle.
+ * Timestamps outside the epoch nanos range (years 1677 to 2262) are
+ * clamped to it.
+ */
+public class PriceHistory {
+
+    // long timestamp + compressed payload reference per slot
+    private static final int SLOT_BYTES = Long.BYTES + 4;
+    // Series object, its two arrays and the map entry holding it
+    private static final int SERIES_OVERHEAD_BYTES = 128;
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final ConcurrentHashMap<String, Series> series = new ConcurrentHashMap<>();
+
+    private final int maxPointsPerId;
+    private final Duration maxAge;
+    private final Clock clock;
+
+    private final LongAdder points = new LongAdder();
+    private final LongAdder slots = new LongAdder();
+
+    /**
+     * @param maxAge oldest asOf kept relative to now, null keeps points regardless of age
+     */
+    public PriceHistory(int maxPointsPerId, Duration maxAge, Clock clock) {
+        if (maxPointsPerId < 1) {
+            throw new IllegalArgumentException("maxPointsPerId must be positive");
+        }
+        this.maxPointsPerId = maxPointsPerId;
+        this.maxAge = maxAge;
+        this.clock = clock;
+    }
+
+    /**
+     * Adds a committed record to the series of its id. A point with the
+     * same asOf as an existing one is ignored, like the live store keeps
+     * the first record on a tie.
+     */
+    public void append(PriceRecord record) {
+        long oldest = oldest();
+        long time = epochNanos(record.asOf());
+        if (time < oldest) {
+            return;
+        }
+        series.computeIfAbsent(record.id(), id -> new Series())
+                .add(time, record.payload(), oldest);
+    }
+
+    /**
+     * Newest point of the id at or before {@code at}, or null.
+     */
+    public PriceRecord asOf(String id, Instant at) {
+        var points = series.get(id);
+        return points == null ? null : points.asOf(id, epochNanos(at), oldest());
+    }
+
+    public int instruments() {
+        return series.size();
+    }
+
+    public long points() {
+        return points.sum();
+    }
+
+    /**
+     * Estimated heap held by the series, payload objects excluded.
+     */
+    public long estimatedBytes() {
+        return slots.sum() * SLOT_BYTES + (long) series.size() * SERIES_OVERHEAD_BYTES;
+    }
+
+    private long oldest() {
+        return maxAge == null ? Long.MIN_VALUE : epochNanos(clock.instant().minus(maxAge));
+    }
+
+    /**
+     * Nanos since the epoch, saturated outside the years 1677 to 2262.
+     */
+    public static long epochNanos(Instant instant) {
+        try {
+            return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), 1_000_000_000L), instant.getNano());
+        } catch (ArithmeticException e) {
+            return instant.getEpochSecond() < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    static Instant instant(long epochNanos) {
+        return Instant.ofEpochSecond(Math.floorDiv(epochNanos, 1_000_000_000L), Math.floorMod(epochNanos, 1_000_000_000L));
+    }
+
+    // ============================
+    // Series of one id
+    // ============================
+
+    /**
+     * Points live in {@code [start, end)} of the arrays, sorted by time.
+     * Trimming moves start forward, the arrays are compacted or grown
+     * when a point has to go past their end.
+     */
+    private final class Series {
+
+        private long[] times = new long[INITIAL_CAPACITY];
+        private Object[] payloads = new Object[INITIAL_CAPACITY];
+        private int start;
+        private int end;
+
+        Series() {
+            slots.add(INITIAL_CAPACITY);
+        }
+
+        synchronized void add(long time, Object payload, long oldest) {
+            int before = end - start;
+
+            int index = search(time);
+            if (index >= start && times[index] == time) {
+                return;
+            }
+            int at = index + 1;
+
+            if (end == times.length) {
+                makeRoom();
+                at = search(time) + 1;
+            }
+            System.arraycopy(times, at, times, at + 1, end - at);
+            System.arraycopy(payloads, at, payloads, at + 1, end - at);
+            times[at] = time;
+            payloads[at] = payload;
+            end++;
+
+            // Retention, by count then by age
+            while (end - start > maxPointsPerId || (start < end && times[start] < oldest)) {
+                payloads[start++] = null;
+            }
+            points.add(end - start - before);
+        }
+
+        synchronized PriceRecord asOf(String id, long at, long oldest) {
+            int index = search(at);
+            if (index < start || times[index] < oldest) {
+                return null;
+            }
+            return new PriceRecord(id, instant(times[index]), payloads[index]);
+        }
+
+        /**
+         * Index of the last point at or before {@code time}, start - 1 if none.
+         */
+        private int search(long time) {
+            int low = start;
+            int high = end - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] <= time) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+
+        private void makeRoom() {
+            int size = end - start;
+            int capacity = times.length;
+            if (start > 0 && (start > capacity / 2 || capacity > maxPointsPerId)) {
+                // Enough trimmed, compact in place
+                System.arraycopy(times, start, times, 0, size);
+                System.arraycopy(payloads, start, payloads, 0, size);
+                Arrays.fill(payloads, size, end, null);
+            } else {
+                // Never grow past what retention can keep, plus the point being added
+                int grown = Math.min(Math.max(capacity * 2, INITIAL_CAPACITY), maxPointsPerId + 1);
+                grown = Math.max(grown, size + 1);
+                var newTimes = new long[grown];
+                var newPayloads = new Object[grown];
+                System.arraycopy(times, start, newTimes, 0, size);
+                System.arraycopy(payloads, start, newPayloads, 0, size);
+                times = newTimes;
+                payloads = newPayloads;
+                slots.add(grown - capacity);
+            }
+            start = 0;
+            end = size;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package sp.global.exercise.store;
+
+import sp.global.exercise.model.PriceRecord;
+
+import java.time.Instant;
+import java.util.function.BiConsumer;
+
+/**
+ * Consistent view of the live store, never changes once obtained.
+ */
+public interface PriceSnapshot {
+
+    long version();
+
+    PriceRecord get(String id);
+
+    /**
+     * asOf of the live price of an id, null if it has none. Stores keeping
+     * records serialized override it to skip decoding the payload.
+     */
+    default Instant asOf(String id) {
+        PriceRecord record = get(id);
+        return record == null ? null : record.asOf();
+    }
+
+    int size();
+
+    void forEach(BiConsumer<String, PriceRecord> action);
+}
@@ -0,0 +1,33 @@
+package sp.global.exercise.store;
+
+import sp.global.exercise.model.PriceRecord;
+
+import java.util.Map;
+import java.util.function.BinaryOperator;
+
+/**
+ * Live price store. Readers work on immutable snapshots, every commit
+ * publishes a new snapshot with the next version number.
+ */
+public interface PriceStore {
+
+    PriceSnapshot snapshot();
+
+    default long version() {
+        return snapshot().version();
+    }
+
+    /**
+     * Merges the staging of a batch into a new snapshot.
+     * @param resolver picks the record to keep when an id is already live, called as (live, staged)
+     */
+    PriceSnapshot commit(Map<String, PriceRecord> staging, BinaryOperator<PriceRecord> resolver);
+
+    /**
+     * Replaces the whole content, used when rebuilding the store on startup
+     * and by replication followers. The records are walked once, and may be
+     * read off a connection while walked: the new content becomes visible
+     * only once the walk completed, a walk that throws leaves the store as it was.
+     */
+    void restore(long version, Map<String, PriceRecord> records);
+}
@@ -0,0 +1,83 @@
+package sp.global.exercise.store;
+
+import sp.global.exercise.model.PriceRecord;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Immutable, paged array of records indexed by a dense int, the object
+ * counterpart of {@link LongPages}. An edit copies only the pages it
+ * touches. Unset slots read as null.
+ */
+final class RecordPages {
+
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    static final RecordPages EMPTY = new RecordPages(new PriceRecord[0][]);
+
+    private final PriceRecord[][] pages;
+
+    private RecordPages(PriceRecord[][] pages) {
+        this.pages = pages;
+    }
+
+    PriceRecord get(int index) {
+        int page = index >>> PAGE_BITS;
+        if (page >= pages.length || pages[page] == null) {
+            return null;
+        }
+        return pages[page][index & PAGE_MASK];
+    }
+
+    /**
+     * Highest index that can hold a value, exclusive.
+     */
+    int capacity() {
+        return pages.length << PAGE_BITS;
+    }
+
+    Editor edit() {
+        return new Editor(pages.clone());
+    }
+
+    /**
+     * Single-threaded editor, pages are copied on first write.
+     */
+    static final class Editor {
+
+        private PriceRecord[][] pages;
+        private final BitSet owned = new BitSet();
+
+        private Editor(PriceRecord[][] pages) {
+            this.pages = pages;
+        }
+
+        PriceRecord get(int index) {
+            int page = index >>> PAGE_BITS;
+            if (page >= pages.length || pages[page] == null) {
+                return null;
+            }
+            return pages[page][index & PAGE_MASK];
+        }
+
+        void set(int index, PriceRecord value) {
+            int page = index >>> PAGE_BITS;
+            if (page >= pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(page + 1, pages.length * 2));
+            }
+            if (!owned.get(page)) {
+                pages[page] = pages[page] == null ? new PriceRecord[PAGE_SIZE] : pages[page].clone();
+                owned.set(page);
+            }
+            pages[page][index & PAGE_MASK] = value;
+        }
+
+        RecordPages build() {
+            owned.clear();
+            return new RecordPages(pages.clone());
+        }
+    }
+}
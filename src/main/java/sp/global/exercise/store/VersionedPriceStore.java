@@ -0,0 +1,80 @@
+package sp.global.exercise.store;
+
+import sp.global.exercise.model.PriceRecord;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+
+/**
+ * Live price store backed by a {@link PersistentHashMap}.
+ * Each commit produces a new immutable snapshot with the next version number,
+ * sharing all untouched entries with the previous one.
+ */
+public class VersionedPriceStore implements PriceStore {
+
+    private final AtomicReference<Snapshot> current =
+            new AtomicReference<>(new Snapshot(0, PersistentHashMap.empty()));
+
+    public record Snapshot(long version, PersistentHashMap<String, PriceRecord> prices) implements PriceSnapshot {
+
+        @Override
+        public PriceRecord get(String id) {
+            return prices.get(id);
+        }
+
+        @Override
+        public int size() {
+            return prices.size();
+        }
+
+        @Override
+        public void forEach(BiConsumer<String, PriceRecord> action) {
+            prices.forEach(action);
+        }
+    }
+
+    // Merges thrown away because another commit published first
+    private final LongAdder commitRetries = new LongAdder();
+
+    @Override
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    /**
+     * Merges the staging into a new snapshot. Costs O(staging size),
+     * whatever the size of the store.
+     */
+    @Override
+    public Snapshot commit(Map<String, PriceRecord> staging, BinaryOperator<PriceRecord> resolver) {
+        int[] attempts = {0};
+        var committed = current.updateAndGet(snapshot -> {
+            attempts[0]++;
+            var next = snapshot.prices().asTransient();
+
+            for (var entry : staging.entrySet()) {
+                next.merge(entry.getKey(), entry.getValue(), resolver);
+            }
+
+            return new Snapshot(snapshot.version() + 1, next.persistent());
+        });
+        if (attempts[0] > 1) {
+            commitRetries.add(attempts[0] - 1);
+        }
+        return committed;
+    }
+
+    public long commitRetries() {
+        return commitRetries.sum();
+    }
+
+    @Override
+    public void restore(long version, Map<String, PriceRecord> records) {
+        var prices = PersistentHashMap.<String, PriceRecord>empty().asTransient();
+        records.forEach(prices::put);
+        current.set(new Snapshot(version, prices.persistent()));
+    }
+}
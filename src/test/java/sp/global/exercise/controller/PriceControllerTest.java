@@ -4,9 +4,20 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.*;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import sp.global.exercise.ingest.IdListReader;
+import sp.global.exercise.ingest.PriceBlockReader;
+import sp.global.exercise.ingest.PriceRecordReader;
 import sp.global.exercise.model.*;
+import sp.global.exercise.service.AdmissionRejectedException;
+import sp.global.exercise.service.LatestJson;
 import sp.global.exercise.service.PriceService;
+import sp.global.exercise.service.impl.PriceServiceImpl;
+import tools.jackson.databind.json.JsonMapper;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 
@@ -41,6 +52,17 @@ class PriceControllerTest {
         assertEquals(batchId, response.getBody());
     }
 
+    @Test
+    void testUpload_QueueFull() {
+        UploadRequest request = new UploadRequest(Collections.emptyList());
+        when(service.uploadAll(request)).thenThrow(new AdmissionRejectedException("full", Duration.ofSeconds(12)));
+
+        ResponseEntity<UUID> response = controller.upload(request);
+
+        assertEquals(429, response.getStatusCode().value());
+        assertEquals("12", response.getHeaders().getFirst("Retry-After"));
+    }
+
     @Test
     void testUpload_Failure() {
         UploadRequest request = new UploadRequest(Collections.emptyList());
@@ -85,22 +107,23 @@ class PriceControllerTest {
     @Test
     void testLatest_SuccessWithData() {
         List<String> ids = List.of("id1", "id2");
-        Map<String, PriceRecord> prices = new HashMap<>();
-        prices.put("id1", new PriceRecord("id1", Instant.ofEpochSecond(100), new Date().toInstant()));
-        when(service.getLatest(ids)).thenReturn(prices);
+        List<byte[]> members = List.of(
+                "\"id1\":{\"price\":1}".getBytes(),
+                "\"id2\":{\"price\":2}".getBytes());
+        when(service.getLatestJson(ids)).thenReturn(members);
 
-        ResponseEntity<Map<String, PriceRecord>> response = controller.latest(ids);
+        ResponseEntity<byte[]> response = controller.latest(ids, null, null);
 
         assertEquals(200, response.getStatusCode().value());
-        assertEquals(prices, response.getBody());
+        assertEquals("{\"id1\":{\"price\":1},\"id2\":{\"price\":2}}", new String(response.getBody()));
     }
 
     @Test
     void testLatest_NoData() {
         List<String> ids = List.of("id1", "id2");
-        when(service.getLatest(ids)).thenReturn(Collections.emptyMap());
+        when(service.getLatestJson(ids)).thenReturn(Collections.emptyList());
 
-        ResponseEntity<Map<String, PriceRecord>> response = controller.latest(ids);
+        ResponseEntity<byte[]> response = controller.latest(ids, null, null);
 
         assertEquals(204, response.getStatusCode().value()); // No Content
         assertNull(response.getBody());
@@ -109,14 +132,68 @@ class PriceControllerTest {
     @Test
     void testLatest_Failure() {
         List<String> ids = List.of("id1");
-        when(service.getLatest(ids)).thenThrow(new RuntimeException("Fetch failed"));
+        when(service.getLatestJson(ids)).thenThrow(new RuntimeException("Fetch failed"));
 
-        ResponseEntity<Map<String, PriceRecord>> response = controller.latest(ids);
+        ResponseEntity<byte[]> response = controller.latest(ids, null, null);
 
         assertEquals(500, response.getStatusCode().value());
         assertNull(response.getBody());
     }
 
+    @Test
+    void testLatest_ETagOfVersionReadFirst() {
+        List<String> ids = List.of("id1");
+        when(service.getStoreEpoch()).thenReturn(0xabL);
+        when(service.getStoreVersion()).thenReturn(7L);
+        when(service.getLatestJson(ids)).thenReturn(List.of("\"id1\":{\"price\":1}".getBytes()));
+
+        ResponseEntity<byte[]> response = controller.latest(ids, null, null);
+
+        assertEquals(200, response.getStatusCode().value());
+        assertEquals("\"ab-7\"", response.getHeaders().getETag());
+    }
+
+    @Test
+    void testLatest_IfNoneMatchUnchanged() {
+        List<String> ids = List.of("id1", "id2");
+        when(service.getStoreEpoch()).thenReturn(0xabL);
+        when(service.getLatestJsonSince(ids, 7)).thenReturn(new LatestJson(0xab, 9, List.of()));
+
+        ResponseEntity<byte[]> response = controller.latest(ids, null, "W/\"ab-7\"");
+
+        assertEquals(304, response.getStatusCode().value());
+        assertEquals("\"ab-9\"", response.getHeaders().getETag());
+        assertNull(response.getBody());
+    }
+
+    @Test
+    void testLatest_IfNoneMatchOfAnotherEpochReadsEveryId() {
+        List<String> ids = List.of("id1");
+        when(service.getStoreEpoch()).thenReturn(0xcdL);
+        when(service.getStoreVersion()).thenReturn(2L);
+        when(service.getLatestJson(ids)).thenReturn(List.of("\"id1\":{\"price\":1}".getBytes()));
+
+        // Version 7 of the store before a restart
+        ResponseEntity<byte[]> response = controller.latest(ids, null, "\"ab-7\"");
+
+        assertEquals(200, response.getStatusCode().value());
+        assertEquals("\"cd-2\"", response.getHeaders().getETag());
+        verify(service, never()).getLatestJsonSince(any(), anyLong());
+    }
+
+    @Test
+    void testLatest_SinceVersionReturnsDelta() {
+        List<String> ids = List.of("id1", "id2");
+        when(service.getLatestJsonSince(ids, 3)).thenReturn(new LatestJson(0, 5, List.of("\"id2\":{\"price\":2}".getBytes())));
+
+        ResponseEntity<byte[]> response = controller.latest(ids, 3L, "\"0-1\"");
+
+        assertEquals(200, response.getStatusCode().value());
+        assertEquals("{\"id2\":{\"price\":2}}", new String(response.getBody()));
+        assertEquals("\"0-5\"", response.getHeaders().getETag());
+        verify(service, never()).getLatestJson(any());
+    }
+
     // ======================
     // Test /batch/{id}/status endpoint
     // ======================
@@ -125,7 +202,7 @@ class PriceControllerTest {
         UUID batchId = UUID.randomUUID();
         BatchInfo batchInfo = new BatchInfo(batchId, BatchStatus.COMPLETED,
                 new Date().toInstant(), new Date().toInstant(),
-                10, 10, 100.0);
+                10, 10, 10, 0, 0, 100.0);
         when(service.getBatchStatus(batchId)).thenReturn(batchInfo);
 
         ResponseEntity<BatchInfo> response = controller.status(batchId);
@@ -155,5 +232,237 @@ class PriceControllerTest {
         assertEquals(500, response.getStatusCode().value());
         assertNull(response.getBody());
     }
-}
 
+    // ======================
+    // Test chunked upload endpoints
+    // ======================
+    @Test
+    void testStartBatch_Success() {
+        UUID batchId = UUID.randomUUID();
+        when(service.startBatch(10)).thenReturn(batchId);
+
+        ResponseEntity<UUID> response = controller.startBatch(10);
+
+        assertEquals(200, response.getStatusCode().value());
+        assertEquals(batchId, response.getBody());
+    }
+
+    @Test
+    void testUploadChunk_UnknownBatch() {
+        UUID batchId = UUID.randomUUID();
+        when(service.uploadChunk(batchId, List.of())).thenThrow(new IllegalArgumentException("Unknown batch"));
+
+        ResponseEntity<BatchInfo> response = controller.uploadChunk(batchId, new UploadRequest(List.of()));
+
+        assertEquals(404, response.getStatusCode().value());
+    }
+
+    @Test
+    void testCompleteBatch_AlreadyClosed() {
+        UUID batchId = UUID.randomUUID();
+        when(service.completeBatch(batchId)).thenThrow(new IllegalStateException("Closed"));
+
+        ResponseEntity<BatchInfo> response = controller.completeBatch(batchId);
+
+        assertEquals(409, response.getStatusCode().value());
+    }
+
+    // ======================
+    // Test /upload/stream endpoint
+    // ======================
+    @Test
+    void testUploadStream_Success() throws Exception {
+        PriceRecordReader reader = mock(PriceRecordReader.class);
+        when(reader.supports(any())).thenReturn(true);
+        PriceController streamingController = new PriceController(service, List.of(reader), List.of(), null);
+
+        UUID batchId = UUID.randomUUID();
+        when(service.uploadStream(any(), eq(reader))).thenReturn(batchId);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContentType("application/json");
+        request.setContent("[]".getBytes());
+
+        ResponseEntity<UUID> response = streamingController.uploadStream(request);
+
+        assertEquals(200, response.getStatusCode().value());
+        assertEquals(batchId, response.getBody());
+    }
+
+    @Test
+    void testUploadStream_UnsupportedMediaType() {
+        PriceController streamingController = new PriceController(service, List.of(), List.of(), null);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContentType("text/plain");
+
+        ResponseEntity<UUID> response = streamingController.uploadStream(request);
+
+        assertEquals(415, response.getStatusCode().value());
+    }
+
+    // ======================
+    // Test bulk /upload endpoint
+    // ======================
+    @Test
+    void testUploadBulk_Success() throws Exception {
+        PriceBlockReader reader = mock(PriceBlockReader.class);
+        when(reader.supports(any())).thenReturn(true);
+        PriceController bulkController = new PriceController(service, List.of(), List.of(reader), null);
+
+        UUID batchId = UUID.randomUUID();
+        when(service.uploadBlocks(any(), eq(reader))).thenReturn(batchId);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContentType("text/csv");
+        request.setContent("id1,1700000000000,1\n".getBytes());
+
+        ResponseEntity<UUID> response = bulkController.uploadBulk(request);
+
+        assertEquals(200, response.getStatusCode().value());
+        assertEquals(batchId, response.getBody());
+    }
+
+    @Test
+    void testUploadBulk_MalformedBody() throws Exception {
+        PriceBlockReader reader = mock(PriceBlockReader.class);
+        when(reader.supports(any())).thenReturn(true);
+        PriceController bulkController = new PriceController(service, List.of(), List.of(reader), null);
+        when(service.uploadBlocks(any(), eq(reader))).thenThrow(new IllegalArgumentException("truncated"));
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContentType("application/x-price-records");
+
+        ResponseEntity<UUID> response = bulkController.uploadBulk(request);
+
+        assertEquals(400, response.getStatusCode().value());
+    }
+
+    // ======================
+    // Test /asof endpoint
+    // ======================
+    @Test
+    void testAsOf_HistoryDisabled() {
+        Instant at = Instant.now();
+        when(service.getAsOf(List.of("id1"), at)).thenThrow(new IllegalStateException("disabled"));
+
+        ResponseEntity<Map<String, PriceRecord>> response = controller.asOf(at, List.of("id1"));
+
+        assertEquals(501, response.getStatusCode().value());
+    }
+
+    // ======================
+    // Test /batches endpoint
+    // ======================
+    @Test
+    void testBatches_Success() {
+        BatchPage page = new BatchPage(List.of(), null);
+        when(service.listBatches(BatchStatus.FAILED, 42L, null, 20)).thenReturn(page);
+
+        ResponseEntity<BatchPage> response = controller.batches(BatchStatus.FAILED, 42L, null, 20);
+
+        assertEquals(200, response.getStatusCode().value());
+        assertSame(page, response.getBody());
+    }
+
+    @Test
+    void testBatches_PageTooLarge() {
+        ResponseEntity<BatchPage> response = controller.batches(null, null, null, 5000);
+
+        assertEquals(400, response.getStatusCode().value());
+        verifyNoInteractions(service);
+    }
+
+    // ======================
+    // Test /batch/events endpoint
+    // ======================
+    @Test
+    void testBatchEvents_UnknownBatch() {
+        UUID batchId = UUID.randomUUID();
+        when(service.watchBatches(eq(List.of(batchId)), any())).thenThrow(new IllegalArgumentException("Unknown batch"));
+
+        ResponseEntity<SseEmitter> response = controller.batchEvents(List.of(batchId));
+
+        assertEquals(404, response.getStatusCode().value());
+    }
+
+    @Test
+    void testBatchEvents_WatchesRequestedBatches() {
+        UUID batchId = UUID.randomUUID();
+        Runnable stop = mock(Runnable.class);
+        when(service.watchBatches(eq(List.of(batchId)), any())).thenReturn(stop);
+
+        ResponseEntity<SseEmitter> response = controller.batchEvents(List.of(batchId));
+
+        assertEquals(200, response.getStatusCode().value());
+        assertNotNull(response.getBody());
+    }
+
+    // ======================
+    // Test /feed endpoint
+    // ======================
+    @Test
+    void testFeed_EmptyIds() {
+        ResponseEntity<SseEmitter> response = controller.feed(Set.of());
+
+        assertEquals(400, response.getStatusCode().value());
+        verify(service, never()).subscribePrices(any(), any());
+    }
+
+    @Test
+    void testFeed_SubscribesRequestedIds() {
+        when(service.subscribePrices(eq(Set.of("id1")), any())).thenReturn(mock(Runnable.class));
+
+        ResponseEntity<SseEmitter> response = controller.feed(Set.of("id1"));
+
+        assertEquals(200, response.getStatusCode().value());
+        assertNotNull(response.getBody());
+        verify(service).subscribePrices(eq(Set.of("id1")), any());
+    }
+
+    // ======================
+    // Test /latest/stream endpoint
+    // ======================
+    @Test
+    void testLatestStream_WritesOneLinePerFoundId() throws Exception {
+        PriceServiceImpl realService = new PriceServiceImpl();
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+        UUID batchId = realService.startBatch(null);
+        realService.uploadChunk(batchId, List.of(
+                new PriceRecord("id1", t0, Map.of("price", 1)),
+                new PriceRecord("id2", t0, Map.of("price", 2))));
+        realService.completeBatch(batchId);
+
+        PriceController streamingController = new PriceController(realService, List.of(), List.of(),
+                new IdListReader(JsonMapper.builder().build()));
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContentType("text/plain");
+        request.setContent("id2\nunknown\nid1\n".getBytes());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        streamingController.latestStream(request, response);
+
+        assertEquals(200, response.getStatus());
+        assertEquals("application/x-ndjson", response.getContentType());
+        String[] lines = response.getContentAsString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].contains("\"id\":\"id2\""));
+        assertTrue(lines[1].contains("\"id\":\"id1\""));
+    }
+
+    @Test
+    void testLatestStream_MalformedIds() throws Exception {
+        PriceController streamingController = new PriceController(new PriceServiceImpl(), List.of(), List.of(),
+                new IdListReader(JsonMapper.builder().build()));
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContentType("application/json");
+        request.setContent("{\"ids\": []}".getBytes());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        streamingController.latestStream(request, response);
+
+        assertEquals(400, response.getStatus());
+    }
+}
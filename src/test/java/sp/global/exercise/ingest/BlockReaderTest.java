@@ -0,0 +1,91 @@
+package sp.global.exercise.ingest;
+
+import org.junit.jupiter.api.Test;
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.persistence.RecordCodec;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockReaderTest {
+
+    private final JsonMapper mapper = JsonMapper.builder().build();
+
+    @Test
+    void csv_splitsOnLinesAcrossSmallBlocks() throws Exception {
+        String body = "id,asOf,payload\r\n"
+                + "id1,2024-01-01T09:30:00Z,{\"price\": 1}\r\n"
+                + "id2,1704101400000,\"{\"\"price\"\": 2}\"\n"
+                + "\n"
+                + "id3,1704101400000,closed";
+
+        // Blocks smaller than a line force the buffer to grow and carry tails over
+        var reader = new CsvPriceRecordReader(mapper, 16);
+        List<PriceRecord> records = readAll(reader, body.getBytes(StandardCharsets.UTF_8));
+
+        Instant asOf = Instant.parse("2024-01-01T09:30:00Z");
+        assertEquals(List.of(
+                new PriceRecord("id1", asOf, Map.of("price", 1)),
+                new PriceRecord("id2", asOf, Map.of("price", 2)),
+                new PriceRecord("id3", asOf, "closed")), records);
+    }
+
+    @Test
+    void csv_rejectsMissingFields() {
+        var reader = new CsvPriceRecordReader(mapper);
+        var body = "id1;2024-01-01T09:30:00Z\n".getBytes(StandardCharsets.UTF_8);
+
+        assertThrows(IllegalArgumentException.class, () -> readAll(reader, body));
+    }
+
+    @Test
+    void binary_roundTripsLengthPrefixedRecords() throws Exception {
+        var codec = new RecordCodec(mapper);
+        List<PriceRecord> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            expected.add(new PriceRecord("id" + i, Instant.ofEpochSecond(1_700_000_000L, i), Map.of("price", i)));
+        }
+
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        for (var record : expected) {
+            var encoded = new ByteArrayOutputStream();
+            codec.write(new DataOutputStream(encoded), record);
+            out.writeInt(encoded.size());
+            encoded.writeTo(out);
+        }
+
+        var reader = new BinaryPriceRecordReader(codec, 64);
+        assertEquals(expected, readAll(reader, bytes.toByteArray()));
+    }
+
+    @Test
+    void binary_rejectsTruncatedTail() {
+        var reader = new BinaryPriceRecordReader(new RecordCodec(mapper), 64);
+
+        assertThrows(IllegalArgumentException.class, () -> readAll(reader, new byte[] {0, 0, 0, 9, 1}));
+    }
+
+    private static List<PriceRecord> readAll(PriceBlockReader reader, byte[] body) throws Exception {
+        List<RecordBlock> blocks = new ArrayList<>();
+        reader.split(new ByteArrayInputStream(body), blocks::add);
+
+        List<PriceRecord> records = new ArrayList<>();
+        int counted = 0;
+        for (var block : blocks) {
+            counted += block.records();
+            reader.decode(block.bytes(), records::add);
+        }
+        assertEquals(records.size(), counted);
+        return records;
+    }
+}
@@ -0,0 +1,125 @@
+package sp.global.exercise.persistence;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sp.global.exercise.model.BatchInfo;
+import sp.global.exercise.model.BatchStatus;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchArchiveTest {
+
+    @TempDir
+    Path directory;
+
+    private final Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+
+    private BatchInfo batch(int round, BatchStatus status) {
+        return new BatchInfo(UUID.randomUUID(), status, t0.plusSeconds(round), t0.plusSeconds(round + 1),
+                10, status == BatchStatus.COMPLETED ? 10 : 4,
+                status == BatchStatus.COMPLETED ? 6 : 2, status == BatchStatus.COMPLETED ? 3 : 1, 1,
+                status == BatchStatus.COMPLETED ? 100.0 : 40.0);
+    }
+
+    private static List<Long> sequences(List<BatchArchive.Entry> page) {
+        return page.stream().map(BatchArchive.Entry::sequence).toList();
+    }
+
+    // ======================
+    // Test ring
+    // ======================
+    @Test
+    void testAppend_overwritesOldestOnceFull() throws Exception {
+        try (var archive = new BatchArchive(directory.resolve("batches.ring"), 3)) {
+            List<BatchInfo> batches = List.of(
+                    batch(1, BatchStatus.COMPLETED), batch(2, BatchStatus.FAILED),
+                    batch(3, BatchStatus.COMPLETED), batch(4, BatchStatus.CANCELLED));
+            for (int i = 0; i < batches.size(); i++) {
+                archive.append(i + 1, batches.get(i));
+            }
+
+            assertEquals(3, archive.size());
+            assertNull(archive.find(batches.get(0).batchId()));
+            assertEquals(batches.get(1), archive.find(batches.get(1).batchId()));
+            assertEquals(batches.get(3), archive.find(batches.get(3).batchId()));
+            assertThrows(IllegalArgumentException.class, () -> archive.append(4, batches.get(0)));
+        }
+    }
+
+    @Test
+    void testPage_newestFirstFromCursor() throws Exception {
+        try (var archive = new BatchArchive(directory.resolve("batches.ring"), 4)) {
+            for (int i = 1; i <= 6; i++) {
+                archive.append(i * 10, batch(i, i % 2 == 0 ? BatchStatus.COMPLETED : BatchStatus.FAILED));
+            }
+
+            assertEquals(List.of(60L, 50L), sequences(archive.page(Long.MAX_VALUE, null, null, 2)));
+            assertEquals(List.of(40L, 30L), sequences(archive.page(50, null, null, 10)));
+            assertEquals(List.of(60L, 40L), sequences(archive.page(Long.MAX_VALUE, BatchStatus.COMPLETED, null, 10)));
+            // Batch 5 completed at t0 + 6s
+            assertEquals(List.of(60L, 50L), sequences(archive.page(Long.MAX_VALUE, null, t0.plusSeconds(6), 10)));
+        }
+    }
+
+    // ======================
+    // Test reopen
+    // ======================
+    @Test
+    void testReopen_keepsBatchesAndSequence() throws Exception {
+        Path file = directory.resolve("batches.ring");
+        BatchInfo kept = batch(5, BatchStatus.CANCELLED);
+        try (var archive = new BatchArchive(file, 3)) {
+            for (int i = 1; i <= 4; i++) {
+                archive.append(i, batch(i, BatchStatus.COMPLETED));
+            }
+            archive.append(5, kept);
+        }
+
+        try (var archive = new BatchArchive(file, 3)) {
+            assertEquals(3, archive.size());
+            assertEquals(5, archive.lastSequence());
+            assertEquals(kept, archive.find(kept.batchId()));
+            assertEquals(List.of(5L, 4L, 3L), sequences(archive.page(Long.MAX_VALUE, null, null, 10)));
+        }
+    }
+
+    @Test
+    void testReopen_tornSlotEndsRing() throws Exception {
+        Path file = directory.resolve("batches.ring");
+        try (var archive = new BatchArchive(file, 4)) {
+            for (int i = 1; i <= 3; i++) {
+                archive.append(i, batch(i, BatchStatus.COMPLETED));
+            }
+        }
+        // Corrupt the last slot written
+        try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}), 16 + 2 * BatchArchive.SLOT_BYTES + 30);
+        }
+
+        try (var archive = new BatchArchive(file, 4)) {
+            assertEquals(2, archive.size());
+            assertEquals(2, archive.lastSequence());
+        }
+    }
+
+    @Test
+    void testReopen_otherCapacityStartsEmpty() throws Exception {
+        Path file = directory.resolve("batches.ring");
+        try (var archive = new BatchArchive(file, 4)) {
+            archive.append(1, batch(1, BatchStatus.COMPLETED));
+        }
+
+        try (var archive = new BatchArchive(file, 8)) {
+            assertEquals(0, archive.size());
+            assertEquals(0, archive.lastSequence());
+        }
+    }
+}
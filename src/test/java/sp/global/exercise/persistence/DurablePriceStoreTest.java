@@ -0,0 +1,239 @@
+package sp.global.exercise.persistence;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sp.global.exercise.config.PriceProperties;
+import sp.global.exercise.model.PriceRecord;
+import sp.global.exercise.store.VersionedPriceStore;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BinaryOperator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DurablePriceStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private final RecordCodec codec = new RecordCodec(JsonMapper.shared());
+    private final Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+
+    private PriceProperties.Persistence settings(int snapshotEvery) {
+        var settings = new PriceProperties.Persistence();
+        settings.setEnabled(true);
+        settings.setDirectory(directory);
+        settings.setSnapshotEvery(snapshotEvery);
+        return settings;
+    }
+
+    private void commit(DurablePriceStore store, String id, int round) {
+        store.commit(Map.of(id, new PriceRecord(id, t0.plusSeconds(round), Map.of("round", round))),
+                PriceRecord::newest);
+    }
+
+    // ======================
+    // Test restart from log only
+    // ======================
+    @Test
+    void testRestart_replaysCommitLog() throws Exception {
+        var store = new DurablePriceStore(new VersionedPriceStore(), settings(1000), codec);
+        commit(store, "id1", 1);
+        commit(store, "id2", 2);
+        commit(store, "id1", 3);
+        store.close();
+
+        var restarted = new DurablePriceStore(new VersionedPriceStore(), settings(1000), codec);
+
+        assertEquals(3, restarted.version());
+        assertEquals(Map.of("round", 3), restarted.snapshot().get("id1").payload());
+        assertEquals(t0.plusSeconds(2), restarted.snapshot().get("id2").asOf());
+        restarted.close();
+    }
+
+    // ======================
+    // Test restart from snapshot + tail
+    // ======================
+    @Test
+    void testRestart_usesSnapshotAndDropsCoveredSegments() throws Exception {
+        var store = new DurablePriceStore(new VersionedPriceStore(), settings(5), codec);
+        for (int round = 1; round <= 12; round++) {
+            commit(store, "id" + (round % 4), round);
+        }
+        // Waits for the background snapshot writer
+        store.close();
+
+        try (Stream<Path> files = Files.list(directory)) {
+            var names = files.map(path -> path.getFileName().toString()).sorted().toList();
+            assertEquals(1, names.stream().filter(name -> name.startsWith("snapshot-")).count(), names.toString());
+            assertTrue(names.contains(String.format("snapshot-%020d.dat", 10)), names.toString());
+            assertFalse(names.contains(String.format("wal-%020d.log", 1)), names.toString());
+        }
+
+        var restarted = new DurablePriceStore(new VersionedPriceStore(), settings(5), codec);
+        assertEquals(12, restarted.version());
+        assertEquals(4, restarted.snapshot().size());
+        assertEquals(Map.of("round", 12), restarted.snapshot().get("id0").payload());
+        assertEquals(Map.of("round", 11), restarted.snapshot().get("id3").payload());
+        restarted.close();
+    }
+
+    // ======================
+    // Test torn log tail
+    // ======================
+    @Test
+    void testRestart_cutsTornEntry() throws Exception {
+        var store = new DurablePriceStore(new VersionedPriceStore(), settings(1000), codec);
+        commit(store, "id1", 1);
+        commit(store, "id1", 2);
+        store.close();
+
+        // Simulate a crash in the middle of the last write
+        Path segment = directory.resolve(String.format("wal-%020d.log", 1));
+        try (var channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(segment) - 3);
+        }
+
+        var restarted = new DurablePriceStore(new VersionedPriceStore(), settings(1000), codec);
+        assertEquals(1, restarted.version());
+        assertEquals(Map.of("round", 1), restarted.snapshot().get("id1").payload());
+
+        // The log keeps working after the cut
+        commit(restarted, "id1", 3);
+        restarted.close();
+
+        var again = new DurablePriceStore(new VersionedPriceStore(), settings(1000), codec);
+        assertEquals(2, again.version());
+        assertEquals(Map.of("round", 3), again.snapshot().get("id1").payload());
+        again.close();
+    }
+
+    @Test
+    void testRestart_failsOnTornEntryBeforeTheLastSegment() throws Exception {
+        var store = new DurablePriceStore(new VersionedPriceStore(), settings(2), codec);
+        for (int round = 1; round <= 3; round++) {
+            commit(store, "id1", round);
+        }
+        store.close();
+        // The snapshot of version 2 would cover the torn segment
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.filter(path -> path.getFileName().toString().startsWith("snapshot-")).toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.write(directory.resolve(String.format("wal-%020d.log", 1)), new byte[]{0, 0, 0, 42, 1});
+
+        assertThrows(UncheckedIOException.class,
+                () -> new DurablePriceStore(new VersionedPriceStore(), settings(2), codec));
+    }
+
+    // ======================
+    // Test failed commit
+    // ======================
+    @Test
+    void testCommit_failureLeavesNoLogEntry() throws Exception {
+        var failing = new VersionedPriceStore() {
+            @Override
+            public Snapshot commit(Map<String, PriceRecord> staging, BinaryOperator<PriceRecord> resolver) {
+                if (staging.containsKey("poison")) {
+                    throw new IllegalStateException("Simulated failure");
+                }
+                return super.commit(staging, resolver);
+            }
+        };
+        var store = new DurablePriceStore(failing, settings(1000), codec);
+        commit(store, "id1", 1);
+        assertThrows(IllegalStateException.class, () -> commit(store, "poison", 2));
+        commit(store, "id1", 3);
+        store.close();
+
+        var restarted = new DurablePriceStore(new VersionedPriceStore(), settings(1000), codec);
+        assertEquals(2, restarted.version());
+        assertNull(restarted.snapshot().get("poison"));
+        assertEquals(Map.of("round", 3), restarted.snapshot().get("id1").payload());
+        restarted.close();
+    }
+
+    @Test
+    void testCommit_stagingFailingMidReadLeavesNoLogEntry() throws Exception {
+        var store = new DurablePriceStore(new VersionedPriceStore(), settings(1000), codec);
+        commit(store, "id1", 1);
+        // Like a spilled staging whose run file cannot be read back
+        var unreadable = new AbstractMap<String, PriceRecord>() {
+            @Override
+            public Set<Entry<String, PriceRecord>> entrySet() {
+                return new AbstractSet<>() {
+                    @Override
+                    public Iterator<Entry<String, PriceRecord>> iterator() {
+                        return new Iterator<>() {
+                            private boolean first = true;
+
+                            @Override
+                            public boolean hasNext() {
+                                return true;
+                            }
+
+                            @Override
+                            public Entry<String, PriceRecord> next() {
+                                if (!first) {
+                                    throw new UncheckedIOException(new IOException("Run file gone"));
+                                }
+                                first = false;
+                                return Map.entry("id2", new PriceRecord("id2", t0, Map.of("round", 2)));
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return 2;
+                    }
+                };
+            }
+        };
+        assertThrows(UncheckedIOException.class, () -> store.commit(unreadable, PriceRecord::newest));
+        commit(store, "id1", 3);
+        store.close();
+
+        var restarted = new DurablePriceStore(new VersionedPriceStore(), settings(1000), codec);
+        assertEquals(2, restarted.version());
+        assertNull(restarted.snapshot().get("id2"));
+        assertEquals(Map.of("round", 3), restarted.snapshot().get("id1").payload());
+        restarted.close();
+    }
+
+    // ======================
+    // Test restore
+    // ======================
+    @Test
+    void testRestore_replacesContentOnDisk() throws Exception {
+        var store = new DurablePriceStore(new VersionedPriceStore(), settings(2), codec);
+        for (int round = 1; round <= 5; round++) {
+            commit(store, "id" + round, round);
+        }
+        store.restore(2, Map.of("other", new PriceRecord("other", t0, Map.of("round", 0))));
+        commit(store, "id9", 9);
+        store.close();
+
+        var restarted = new DurablePriceStore(new VersionedPriceStore(), settings(2), codec);
+        assertEquals(3, restarted.version());
+        assertEquals(2, restarted.snapshot().size());
+        assertNull(restarted.snapshot().get("id5"));
+        assertEquals(Map.of("round", 0), restarted.snapshot().get("other").payload());
+        assertEquals(Map.of("round", 9), restarted.snapshot().get("id9").payload());
+        restarted.close();
+    }
+}
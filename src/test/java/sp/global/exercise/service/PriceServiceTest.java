@@ -1,14 +1,35 @@
 package sp.global.exercise.service;
 
 import org.junit.jupiter.api.BeforeEach;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import sp.global.exercise.config.PriceProperties;
+import sp.global.exercise.ingest.BinaryPriceRecordReader;
+import sp.global.exercise.ingest.CsvPriceRecordReader;
+import sp.global.exercise.ingest.JsonPriceRecordReader;
 import sp.global.exercise.model.*;
+import sp.global.exercise.service.AdmissionRejectedException;
+import sp.global.exercise.service.BatchListener;
 import sp.global.exercise.service.impl.PriceServiceImpl;
 
+import org.springframework.util.unit.DataSize;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -49,6 +70,38 @@ class PriceServiceImplTest {
         assertEquals("{\"price\": 170.25}", latest.get("id2").payload());
     }
 
+    @Test
+    void testUploadAll_duplicatedIdsKeepNewestAcrossChunks() throws InterruptedException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PriceServiceImpl meteredService = new PriceServiceImpl(registry, new PriceProperties());
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+
+        // 50 ids repeated over many chunks, the newest price of each id sits in the middle
+        List<PriceRecord> prices = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            int id = i % 50;
+            long seconds = i < 50_000 ? i : 100_000 - i;
+            prices.add(new PriceRecord("id" + id, t0.plusSeconds(seconds), i));
+        }
+
+        UUID batchId = meteredService.uploadAll(new UploadRequest(prices));
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (meteredService.getBatchStatus(batchId).status() == BatchStatus.IN_PROGRESS
+                && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+
+        BatchInfo info = meteredService.getBatchStatus(batchId);
+        assertEquals(BatchStatus.COMPLETED, info.status());
+        assertEquals(100_000, info.processedCount());
+
+        Map<String, PriceRecord> latest = meteredService.getLatest(List.of("id0", "id49"));
+        assertEquals(50_000, latest.get("id0").payload());
+        assertEquals(49_999, latest.get("id49").payload());
+        assertEquals(99_950, registry.find("prices.records.stale").tag("stage", "staging").counter().count());
+    }
+
     // ======================
     // Test cancel batch
     // ======================
@@ -126,5 +179,914 @@ class PriceServiceImplTest {
         Map<String, PriceRecord> latest = failingService.getLatest(List.of("id1"));
         assertTrue(!latest.isEmpty());
     }
-}
 
+    // ======================
+    // Test chunked upload session
+    // ======================
+    @Test
+    void testChunkedUpload_commitsOnlyOnComplete() {
+        Instant t0 = Instant.now();
+        UUID batchId = service.startBatch(3);
+
+        service.uploadChunk(batchId, List.of(
+                new PriceRecord("id1", t0, "{\"price\": 1}"),
+                new PriceRecord("id2", t0, "{\"price\": 2}")));
+        BatchInfo info = service.uploadChunk(batchId, List.of(
+                new PriceRecord("id1", t0.plusSeconds(1), "{\"price\": 3}")));
+
+        assertEquals(BatchStatus.IN_PROGRESS, info.status());
+        assertEquals(3, info.processedCount());
+        assertEquals(100.0, info.progressPercent());
+
+        // Nothing is visible before the commit
+        assertTrue(service.getLatest(List.of("id1", "id2")).isEmpty());
+
+        info = service.completeBatch(batchId);
+        assertEquals(BatchStatus.COMPLETED, info.status());
+
+        Map<String, PriceRecord> latest = service.getLatest(List.of("id1", "id2"));
+        assertEquals(2, latest.size());
+        assertEquals("{\"price\": 3}", latest.get("id1").payload());
+    }
+
+    @Test
+    void testChunkedUpload_cancelDiscardsStaging() {
+        UUID batchId = service.startBatch(null);
+        service.uploadChunk(batchId, List.of(new PriceRecord("id1", Instant.now(), "{\"price\": 1}")));
+
+        service.cancel(batchId);
+
+        assertEquals(BatchStatus.CANCELLED, service.getBatchStatus(batchId).status());
+        assertThrows(IllegalStateException.class, () ->
+                service.uploadChunk(batchId, List.of(new PriceRecord("id2", Instant.now(), "{}"))));
+        assertThrows(IllegalStateException.class, () -> service.completeBatch(batchId));
+        assertTrue(service.getLatest(List.of("id1", "id2")).isEmpty());
+    }
+
+    @Test
+    void testChunkedUpload_unknownBatch() {
+        UUID batchId = UUID.randomUUID();
+        assertThrows(IllegalArgumentException.class, () -> service.uploadChunk(batchId, List.of()));
+        assertThrows(IllegalArgumentException.class, () -> service.completeBatch(batchId));
+    }
+
+    // ======================
+    // Test streamed upload
+    // ======================
+    @Test
+    void testUploadStream_mergesWhileParsing() throws Exception {
+        StringBuilder body = new StringBuilder("{\"prices\": [");
+        for (int i = 0; i < 2500; i++) {
+            if (i > 0) body.append(',');
+            body.append("{\"id\": \"id").append(i % 10)
+                    .append("\", \"asOf\": \"").append(Instant.ofEpochSecond(1_700_000_000L + i))
+                    .append("\", \"payload\": {\"price\": ").append(i).append("}}");
+        }
+        body.append("]}");
+
+        UUID batchId = service.uploadStream(
+                new ByteArrayInputStream(body.toString().getBytes(StandardCharsets.UTF_8)),
+                new JsonPriceRecordReader(JsonMapper.builder().build()));
+
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        BatchInfo info = service.getBatchStatus(batchId);
+        assertEquals(BatchStatus.COMPLETED, info.status());
+        assertEquals(2500, info.recordCount());
+
+        // Newest asOf wins: the last record of id9 has price 2499
+        Map<String, PriceRecord> latest = service.getLatest(List.of("id9"));
+        assertEquals(Map.of("price", 2499), latest.get("id9").payload());
+    }
+
+    @Test
+    void testUploadStream_malformedBodyFailsBatch() {
+        var reader = new JsonPriceRecordReader(JsonMapper.builder().build());
+        var body = new ByteArrayInputStream("\"not prices\"".getBytes(StandardCharsets.UTF_8));
+
+        assertThrows(IllegalArgumentException.class, () -> service.uploadStream(body, reader));
+    }
+
+    // ======================
+    // Test bulk upload
+    // ======================
+    @Test
+    void testUploadBlocks_csv() throws Exception {
+        StringBuilder body = new StringBuilder("id,asOf,payload\n");
+        for (int i = 0; i < 2500; i++) {
+            body.append("id").append(i % 10).append(',')
+                    .append(1_700_000_000_000L + i).append(',')
+                    .append("{\"price\": ").append(i).append("}\n");
+        }
+
+        UUID batchId = service.uploadBlocks(
+                new ByteArrayInputStream(body.toString().getBytes(StandardCharsets.UTF_8)),
+                new CsvPriceRecordReader(JsonMapper.builder().build()));
+
+        // Blocks are decoded on the workers, wait for the commit
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (service.getBatchStatus(batchId).status() == BatchStatus.IN_PROGRESS
+                && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+
+        BatchInfo info = service.getBatchStatus(batchId);
+        assertEquals(BatchStatus.COMPLETED, info.status());
+        assertEquals(2500, info.recordCount());
+        assertEquals(Map.of("price", 2499), service.getLatest(List.of("id9")).get("id9").payload());
+    }
+
+    @Test
+    void testUploadBlocks_truncatedBinaryFailsBatch() {
+        var reader = new BinaryPriceRecordReader(JsonMapper.builder().build());
+        var body = new ByteArrayInputStream(new byte[] {0, 0, 0, 42, 1, 2});
+
+        assertThrows(IllegalArgumentException.class, () -> service.uploadBlocks(body, reader));
+    }
+
+    // ======================
+    // Test store version
+    // ======================
+    @Test
+    void testCommit_incrementsStoreVersion() {
+        long before = service.getStoreVersion();
+
+        UUID batchId = service.startBatch(null);
+        service.uploadChunk(batchId, List.of(new PriceRecord("id1", Instant.now(), "{}")));
+        assertEquals(before, service.getStoreVersion());
+
+        service.completeBatch(batchId);
+        assertEquals(before + 1, service.getStoreVersion());
+    }
+
+    // ======================
+    // Test prompt cancellation
+    // ======================
+    @Test
+    void testCancelLargeBatch_stopsWorkersAndRecordsMetrics() throws InterruptedException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PriceServiceImpl meteredService = new PriceServiceImpl(registry, new PriceProperties());
+
+        Instant now = Instant.now();
+        List<PriceRecord> prices = new ArrayList<>();
+        for (int i = 0; i < 500_000; i++) {
+            prices.add(new PriceRecord("id" + i, now, "{}"));
+        }
+
+        UUID batchId = meteredService.uploadAll(new UploadRequest(prices));
+        meteredService.cancel(batchId);
+
+        // Workers stop and report within a bounded time
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (registry.find("prices.batch.abort.latency").tag("status", "CANCELLED").timer().count() == 0
+                && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+
+        assertEquals(1, registry.find("prices.batch.abort.latency").tag("status", "CANCELLED").timer().count());
+        assertEquals(BatchStatus.CANCELLED, meteredService.getBatchStatus(batchId).status());
+        assertTrue(meteredService.getLatest(List.of("id0", "id499999")).isEmpty());
+    }
+
+    // ======================
+    // Test pipeline metrics
+    // ======================
+    @Test
+    void testCommit_recordsPhaseAndStaleMetrics() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PriceServiceImpl meteredService = new PriceServiceImpl(registry, new PriceProperties());
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+
+        UUID first = meteredService.startBatch(null);
+        meteredService.uploadChunk(first, List.of(new PriceRecord("id1", t0, 1)));
+        meteredService.completeBatch(first);
+
+        // One record superseded within the batch, one older than the live price
+        UUID second = meteredService.startBatch(null);
+        meteredService.uploadChunk(second, List.of(
+                new PriceRecord("id1", t0.minusSeconds(1), 0),
+                new PriceRecord("id2", t0, 2),
+                new PriceRecord("id2", t0.plusSeconds(1), 3)));
+        meteredService.completeBatch(second);
+
+        meteredService.getLatest(List.of("id1", "id2"));
+
+        assertEquals(2, registry.find("prices.batch.phase").tag("phase", "commit").timer().count());
+        assertEquals(2, registry.find("prices.batch.phase").tag("phase", "merge").timer().count());
+        assertEquals(1, registry.find("prices.records.stale").tag("stage", "staging").counter().count());
+        assertEquals(1, registry.find("prices.records.stale").tag("stage", "commit").counter().count());
+        assertEquals(2, registry.find("prices.store.size").gauge().value());
+        assertEquals(2, registry.find("prices.store.version").gauge().value());
+        assertEquals(0, registry.find("prices.batch.active").gauge().value());
+        assertEquals(1, registry.find("prices.latest.latency").tag("size", "1-10").timer().count());
+        assertEquals(2, registry.find("prices.latest.ids").summary().totalAmount());
+    }
+
+    // ======================
+    // Test stale records dropped at ingest
+    // ======================
+    @Test
+    void testBatchInfo_countsStaleAndSupersededRecords() {
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+        UUID first = service.startBatch(null);
+        service.uploadChunk(first, List.of(new PriceRecord("id1", t0, 1)));
+        service.completeBatch(first);
+
+        UUID second = service.startBatch(null);
+        BatchInfo info = service.uploadChunk(second, List.of(
+                new PriceRecord("id1", t0.minusSeconds(1), 0),
+                new PriceRecord("id2", t0, 2),
+                new PriceRecord("id2", t0.plusSeconds(1), 3)));
+        assertEquals(1, info.staleCount());
+        assertEquals(1, info.supersededCount());
+        assertEquals(1, info.acceptedCount());
+
+        service.uploadChunk(second, List.of(new PriceRecord("id1", t0.plusSeconds(5), 4)));
+        info = service.completeBatch(second);
+        assertEquals(4, info.processedCount());
+        assertEquals(2, info.acceptedCount());
+        assertEquals(1, info.staleCount());
+        assertEquals(1, info.supersededCount());
+        assertEquals(4, service.getLatest(List.of("id1")).get("id1").payload());
+    }
+
+    @Test
+    void testStaleCheck_staysCorrectWithConcurrentCommit() {
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+        UUID slow = service.startBatch(null);
+        service.uploadChunk(slow, List.of(new PriceRecord("id1", t0, 1)));
+
+        // Committed after the slow batch took its snapshot
+        UUID fast = service.startBatch(null);
+        service.uploadChunk(fast, List.of(new PriceRecord("id1", t0.plusSeconds(10), 2)));
+        service.completeBatch(fast);
+
+        BatchInfo info = service.completeBatch(slow);
+        assertEquals(1, info.staleCount());
+        assertEquals(0, info.acceptedCount());
+        assertEquals(2, service.getLatest(List.of("id1")).get("id1").payload());
+    }
+
+    // ======================
+    // Test group commit
+    // ======================
+    @Test
+    void testGroupCommit_concurrentBatchesKeepTheirOwnOutcome() throws Exception {
+        PriceProperties properties = new PriceProperties();
+        // Long enough for every batch sealing meanwhile to queue
+        properties.getCommit().setGroupWindow(Duration.ofSeconds(5));
+        properties.getAdmission().setMaxConcurrentBatches(8);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PriceServiceImpl groupService = new PriceServiceImpl(registry, properties);
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+
+        int batches = 8;
+        List<UUID> batchIds = new ArrayList<>();
+        for (int i = 0; i < batches; i++) {
+            UUID batchId = groupService.startBatch(2);
+            groupService.uploadChunk(batchId, List.of(
+                    new PriceRecord("shared", t0.plusSeconds(i), i),
+                    new PriceRecord("own" + i, t0, i)));
+            batchIds.add(batchId);
+        }
+        long before = groupService.getStoreVersion();
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        Map<UUID, BatchInfo> infos = new ConcurrentHashMap<>();
+        for (UUID batchId : batchIds) {
+            threads.add(Thread.ofVirtual().start(() -> {
+                try {
+                    start.await();
+                    infos.put(batchId, groupService.completeBatch(batchId));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(10_000);
+        }
+
+        // How batches are grouped depends on when each one started sealing, every one is in a single group
+        var groups = registry.find("prices.commit.group.size").summary();
+        assertEquals(before + groups.count(), groupService.getStoreVersion());
+        assertEquals(batches, groups.totalAmount());
+        assertEquals(batches - 1, groupService.getLatest(List.of("shared")).get("shared").payload());
+        List<String> ownIds = new ArrayList<>();
+        for (int i = 0; i < batches; i++) {
+            ownIds.add("own" + i);
+        }
+        assertEquals(batches, groupService.getLatest(ownIds).size());
+
+        // Every batch accounts for its own records, a shared id only lost to a newer one
+        int accepted = 0;
+        for (UUID batchId : batchIds) {
+            BatchInfo info = infos.get(batchId);
+            assertEquals(BatchStatus.COMPLETED, info.status());
+            assertEquals(2, info.acceptedCount() + info.staleCount());
+            accepted += info.acceptedCount();
+        }
+        assertTrue(accepted >= batches + 1);
+    }
+
+    // ======================
+    // Test staging spilled to run files
+    // ======================
+    @Test
+    void testSpilledStaging_commitsNewestAndDeletesRuns(@TempDir Path directory) throws Exception {
+        PriceProperties properties = new PriceProperties();
+        // 16 staged records at the estimated 256 bytes each
+        properties.getStaging().setSpillThreshold(DataSize.ofBytes(16 * 256));
+        properties.getStaging().setSpillDirectory(directory);
+        // Left by a process that crashed, deleted when the next one starts
+        Path crashed = Files.createDirectories(directory.resolve("prices-staging-" + Long.MAX_VALUE));
+        Files.createFile(crashed.resolve("staging-1.run"));
+        PriceServiceImpl spillService = new PriceServiceImpl(new SimpleMeterRegistry(), properties);
+        assertFalse(Files.exists(crashed));
+        Path runs = directory.resolve("prices-staging-" + ProcessHandle.current().pid());
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+
+        // 50 records over 20 ids, two runs of 20 ids and 10 ids left in memory
+        UUID batchId = spillService.startBatch(50);
+        for (int chunk = 0; chunk < 5; chunk++) {
+            List<PriceRecord> prices = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                int k = chunk * 10 + i;
+                prices.add(new PriceRecord("spill" + (k % 20), t0.plusSeconds(k), k));
+            }
+            spillService.uploadChunk(batchId, prices);
+        }
+        try (var files = Files.list(runs)) {
+            assertEquals(2, files.count());
+        }
+
+        BatchInfo info = spillService.completeBatch(batchId);
+        assertEquals(BatchStatus.COMPLETED, info.status());
+        assertEquals(20, info.acceptedCount());
+        assertEquals(30, info.supersededCount());
+        for (int id = 0; id < 20; id++) {
+            int newest = id < 10 ? 40 + id : 20 + id;
+            PriceRecord record = spillService.getLatest(List.of("spill" + id)).get("spill" + id);
+            assertEquals(t0.plusSeconds(newest), record.asOf());
+            assertEquals(newest, record.payload());
+        }
+        try (var files = Files.list(runs)) {
+            assertEquals(0, files.count());
+        }
+
+        // Cancelling a spilled session deletes its runs too
+        UUID cancelledId = spillService.startBatch(null);
+        List<PriceRecord> prices = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            prices.add(new PriceRecord("spill" + i, t0.plusSeconds(100), -1));
+        }
+        spillService.uploadChunk(cancelledId, prices);
+        try (var files = Files.list(runs)) {
+            assertEquals(1, files.count());
+        }
+        spillService.cancel(cancelledId);
+        try (var files = Files.list(runs)) {
+            assertEquals(0, files.count());
+        }
+        assertEquals(40, spillService.getLatest(List.of("spill0")).get("spill0").payload());
+    }
+
+    @Test
+    void testSpilledStaging_capsSupersededHistory(@TempDir Path directory) {
+        PriceProperties properties = new PriceProperties();
+        properties.getStaging().setSpillThreshold(DataSize.ofBytes(16 * 256));
+        properties.getStaging().setSpillDirectory(directory);
+        properties.getHistory().setEnabled(true);
+        properties.getHistory().setMaxSupersededPerBatch(5);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PriceServiceImpl spillService = new PriceServiceImpl(registry, properties);
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+
+        // 30 superseded records, most of them across runs
+        UUID batchId = spillService.startBatch(50);
+        for (int chunk = 0; chunk < 5; chunk++) {
+            List<PriceRecord> prices = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                int k = chunk * 10 + i;
+                prices.add(new PriceRecord("spill" + (k % 20), t0.plusSeconds(k), k));
+            }
+            spillService.uploadChunk(batchId, prices);
+        }
+        BatchInfo info = spillService.completeBatch(batchId);
+
+        assertEquals(30, info.supersededCount());
+        assertEquals(25.0, registry.find("prices.history.dropped").counter().count());
+        // The newest prices reach the history too
+        assertEquals(49, spillService.getAsOf(List.of("spill9"), t0.plusSeconds(60)).get("spill9").payload());
+    }
+
+    // ======================
+    // Test replication to followers
+    // ======================
+    @Test
+    void testReplication_followersApplyEveryCommit() throws Exception {
+        PriceProperties primaryProperties = new PriceProperties();
+        primaryProperties.getReplication().setRole(PriceProperties.ReplicationRole.PRIMARY);
+        primaryProperties.getReplication().setPort(0);
+        primaryProperties.getReplication().setHeartbeat(Duration.ofMillis(100));
+        PriceServiceImpl primary = new PriceServiceImpl(new SimpleMeterRegistry(), primaryProperties);
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+
+        // Committed before the follower joins, it catches up from a snapshot
+        UUID first = primary.startBatch(2);
+        primary.uploadChunk(first, List.of(new PriceRecord("r1", t0, 1), new PriceRecord("r2", t0, 2)));
+        primary.completeBatch(first);
+
+        PriceProperties followerProperties = new PriceProperties();
+        followerProperties.getReplication().setRole(PriceProperties.ReplicationRole.FOLLOWER);
+        followerProperties.getReplication().setPrimary("localhost:" + primary.replicationPort());
+        followerProperties.getReplication().setHeartbeat(Duration.ofMillis(100));
+        followerProperties.getReplication().setRetryInterval(Duration.ofMillis(50));
+        SimpleMeterRegistry followerRegistry = new SimpleMeterRegistry();
+        PriceServiceImpl follower = new PriceServiceImpl(followerRegistry, followerProperties);
+        try {
+            awaitVersion(follower, primary.getStoreVersion());
+            assertEquals(1, follower.getLatest(List.of("r1")).get("r1").payload());
+            assertEquals(1.0, followerRegistry.find("prices.replication.snapshots").counter().count());
+
+            // Later commits arrive as deltas, in the same versions
+            UUID second = primary.startBatch(1);
+            primary.uploadChunk(second, List.of(new PriceRecord("r1", t0.plusSeconds(1), 10)));
+            primary.completeBatch(second);
+            awaitVersion(follower, primary.getStoreVersion());
+            assertEquals(10, follower.getLatest(List.of("r1")).get("r1").payload());
+            assertEquals(2, follower.getLatest(List.of("r2")).get("r2").payload());
+            assertEquals(1, followerRegistry.find("prices.replication.delay").timer().count());
+            assertEquals(0.0, followerRegistry.find("prices.replication.lag").gauge().value());
+
+            // A follower serves reads only
+            assertThrows(ReadOnlyReplicaException.class, () -> follower.startBatch(1));
+        } finally {
+            follower.shutdown();
+            primary.shutdown();
+        }
+    }
+
+    private static void awaitVersion(PriceService replica, long version) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (replica.getStoreVersion() != version && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertEquals(version, replica.getStoreVersion());
+    }
+
+    // ======================
+    // Test off-heap store mode
+    // ======================
+    @Test
+    void testOffHeapStore_servesCommittedPrices() {
+        PriceProperties properties = new PriceProperties();
+        properties.getStore().setMode(PriceProperties.StoreMode.OFF_HEAP);
+        PriceServiceImpl offHeapService = new PriceServiceImpl(new SimpleMeterRegistry(), properties);
+
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+        UUID first = offHeapService.startBatch(null);
+        offHeapService.uploadChunk(first, List.of(
+                new PriceRecord("id1", t0, Map.of("price", 1)),
+                new PriceRecord("id2", t0, "{\"price\": 2}")));
+        offHeapService.completeBatch(first);
+
+        UUID second = offHeapService.startBatch(null);
+        offHeapService.uploadChunk(second, List.of(
+                new PriceRecord("id1", t0.plusSeconds(1), Map.of("price", 3)),
+                new PriceRecord("id2", t0.minusSeconds(1), "stale")));
+        offHeapService.completeBatch(second);
+
+        Map<String, PriceRecord> latest = offHeapService.getLatest(List.of("id1", "id2", "id3"));
+        assertEquals(2, latest.size());
+        assertEquals(new PriceRecord("id1", t0.plusSeconds(1), Map.of("price", 3)), latest.get("id1"));
+        assertEquals(new PriceRecord("id2", t0, "{\"price\": 2}"), latest.get("id2"));
+        assertEquals(2, offHeapService.getStoreVersion());
+    }
+
+    // ======================
+    // Test encoded latest prices
+    // ======================
+    @Test
+    void testLatestJson_reusedUntilNewerPriceCommitted() {
+        JsonMapper mapper = JsonMapper.builder().build();
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+
+        UUID first = service.startBatch(null);
+        service.uploadChunk(first, List.of(new PriceRecord("id1", t0, Map.of("price", 1))));
+        service.completeBatch(first);
+
+        List<byte[]> members = service.getLatestJson(List.of("id1", "id1", "unknown"));
+        assertEquals(1, members.size());
+        assertEquals("\"id1\":" + mapper.writeValueAsString(new PriceRecord("id1", t0, Map.of("price", 1))),
+                new String(members.get(0), StandardCharsets.UTF_8));
+        assertSame(members.get(0), service.getLatestJson(List.of("id1")).get(0));
+
+        // An older price does not replace the live one, the cached bytes stay valid
+        UUID stale = service.startBatch(null);
+        service.uploadChunk(stale, List.of(new PriceRecord("id1", t0.minusSeconds(1), Map.of("price", 0))));
+        service.completeBatch(stale);
+        assertSame(members.get(0), service.getLatestJson(List.of("id1")).get(0));
+
+        UUID newer = service.startBatch(null);
+        service.uploadChunk(newer, List.of(new PriceRecord("id1", t0.plusSeconds(1), Map.of("price", 2))));
+        service.completeBatch(newer);
+        assertTrue(new String(service.getLatestJson(List.of("id1")).get(0), StandardCharsets.UTF_8)
+                .contains("\"price\":2"));
+    }
+
+    @Test
+    void testLatestJson_cacheStaysWithinItsSize() {
+        PriceProperties properties = new PriceProperties();
+        properties.getLatest().setCacheSize(DataSize.ofKilobytes(4));
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PriceServiceImpl cachedService = new PriceServiceImpl(registry, properties);
+
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+        List<PriceRecord> prices = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            prices.add(new PriceRecord("id" + i, t0, Map.of("price", i)));
+            ids.add("id" + i);
+        }
+        UUID batchId = cachedService.startBatch(null);
+        cachedService.uploadChunk(batchId, prices);
+        cachedService.completeBatch(batchId);
+
+        for (int round = 0; round < 2; round++) {
+            List<byte[]> members = cachedService.getLatestJson(ids);
+            assertEquals(200, members.size());
+            assertTrue(new String(members.get(199), StandardCharsets.UTF_8).contains("\"price\":199"));
+            assertTrue(registry.find("prices.latest.cache.bytes").gauge().value() <= 4096);
+        }
+    }
+
+    @Test
+    void testStreamLatest_doesNotFillTheCache() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PriceServiceImpl streamedService = new PriceServiceImpl(registry, new PriceProperties());
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+        UUID batchId = streamedService.startBatch(null);
+        streamedService.uploadChunk(batchId, List.of(
+                new PriceRecord("id1", t0, 1),
+                new PriceRecord("id2", t0, 2)));
+        streamedService.completeBatch(batchId);
+
+        var out = new ByteArrayOutputStream();
+        LatestPriceStream stream = streamedService.streamLatest(out);
+        stream.accept("id1");
+        stream.accept("unknown");
+        stream.accept("id2");
+
+        assertEquals(2, stream.finish());
+        assertEquals(2, out.toString(StandardCharsets.UTF_8).lines().count());
+        assertEquals(0.0, registry.find("prices.latest.cache.bytes").gauge().value());
+    }
+
+    // ======================
+    // Test price history
+    // ======================
+    @Test
+    void testHistory_keepsSupersededPricesOfABatch() {
+        PriceProperties properties = new PriceProperties();
+        properties.getHistory().setEnabled(true);
+        PriceServiceImpl historyService = new PriceServiceImpl(new SimpleMeterRegistry(), properties);
+
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+        UUID batchId = historyService.startBatch(null);
+        historyService.uploadChunk(batchId, List.of(
+                new PriceRecord("id1", t0, 1),
+                new PriceRecord("id1", t0.plusSeconds(10), 2),
+                new PriceRecord("id2", t0.plusSeconds(5), 3)));
+        historyService.completeBatch(batchId);
+
+        // Only the newest price is live, older ones stay queryable
+        assertEquals(2, historyService.getLatest(List.of("id1")).get("id1").payload());
+        Map<String, PriceRecord> asOf = historyService.getAsOf(List.of("id1", "id2"), t0.plusSeconds(5));
+        assertEquals(Map.of(
+                "id1", new PriceRecord("id1", t0, 1),
+                "id2", new PriceRecord("id2", t0.plusSeconds(5), 3)), asOf);
+    }
+
+    @Test
+    void testHistory_dropsSupersededPricesPastTheCap() {
+        PriceProperties properties = new PriceProperties();
+        properties.getHistory().setEnabled(true);
+        properties.getHistory().setMaxSupersededPerBatch(1);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PriceServiceImpl historyService = new PriceServiceImpl(registry, properties);
+
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+        UUID batchId = historyService.startBatch(null);
+        historyService.uploadChunk(batchId, List.of(
+                new PriceRecord("id1", t0, 1),
+                new PriceRecord("id1", t0.plusSeconds(5), 2),
+                new PriceRecord("id1", t0.plusSeconds(10), 3)));
+        historyService.completeBatch(batchId);
+
+        // The first superseded price is kept, the second one is left out
+        assertEquals(3, historyService.getLatest(List.of("id1")).get("id1").payload());
+        assertEquals(1, historyService.getAsOf(List.of("id1"), t0.plusSeconds(7)).get("id1").payload());
+        assertEquals(1.0, registry.find("prices.history.dropped").counter().count());
+    }
+
+    @Test
+    void testHistory_disabledByDefault() {
+        assertThrows(IllegalStateException.class, () -> service.getAsOf(List.of("id1"), Instant.now()));
+    }
+
+    // ======================
+    // Test pushed batch progress
+    // ======================
+    @Test
+    void testWatchBatches_pushesProgressUntilTerminal() throws InterruptedException {
+        Instant t0 = Instant.now();
+        UUID completed = service.startBatch(2);
+        UUID cancelled = service.startBatch(null);
+
+        List<BatchInfo> events = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch finished = new CountDownLatch(1);
+        service.watchBatches(List.of(completed, cancelled), new BatchListener() {
+            @Override
+            public void update(BatchInfo info) {
+                events.add(info);
+            }
+
+            @Override
+            public void finished() {
+                finished.countDown();
+            }
+        });
+
+        service.uploadChunk(completed, List.of(
+                new PriceRecord("id1", t0, "{\"price\": 1}"),
+                new PriceRecord("id2", t0, "{\"price\": 2}")));
+        service.completeBatch(completed);
+        service.cancel(cancelled);
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        // A batch is pushed once it is over and never after
+        for (UUID batchId : List.of(completed, cancelled)) {
+            List<BatchInfo> ofBatch = events.stream().filter(info -> info.batchId().equals(batchId)).toList();
+            BatchInfo last = ofBatch.get(ofBatch.size() - 1);
+            assertEquals(1, ofBatch.stream().filter(info -> info.status() != BatchStatus.IN_PROGRESS).count());
+            assertNotEquals(BatchStatus.IN_PROGRESS, last.status());
+        }
+        assertEquals(BatchStatus.COMPLETED, service.getBatchStatus(completed).status());
+    }
+
+    @Test
+    void testWatchBatches_slowWatchDoesNotDelayOthers() throws InterruptedException {
+        UUID stuck = service.startBatch(null);
+        UUID fast = service.startBatch(null);
+
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable stopSlow = service.watchBatches(List.of(stuck), new BatchListener() {
+            @Override
+            public void update(BatchInfo info) {
+                try {
+                    // A client that stopped reading
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void finished() {
+            }
+        });
+
+        CountDownLatch finished = new CountDownLatch(1);
+        service.watchBatches(List.of(fast), new BatchListener() {
+            @Override
+            public void update(BatchInfo info) {
+            }
+
+            @Override
+            public void finished() {
+                finished.countDown();
+            }
+        });
+        service.cancel(fast);
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        stopSlow.run();
+        release.countDown();
+    }
+
+    @Test
+    void testWatchBatches_unknownBatch() {
+        assertThrows(IllegalArgumentException.class, () -> service.watchBatches(List.of(UUID.randomUUID()), null));
+    }
+
+    // ======================
+    // Test delta reads
+    // ======================
+    @Test
+    void testLatestJsonSince_onlyIdsChangedAfterVersion() {
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+        UUID first = service.startBatch(null);
+        service.uploadChunk(first, List.of(
+                new PriceRecord("id1", t0, "{\"price\": 1}"),
+                new PriceRecord("id2", t0, "{\"price\": 2}"),
+                new PriceRecord("id3", t0, "{\"price\": 3}")));
+        service.completeBatch(first);
+
+        // Version 2 changes id2 and adds id4, id1 is stale
+        UUID second = service.startBatch(null);
+        service.uploadChunk(second, List.of(
+                new PriceRecord("id1", t0.minusSeconds(1), "{\"price\": 0}"),
+                new PriceRecord("id2", t0.plusSeconds(1), "{\"price\": 20}"),
+                new PriceRecord("id4", t0, "{\"price\": 4}")));
+        service.completeBatch(second);
+
+        // As many ids as changes walks the index, fewer checks the tags of the ids
+        LatestJson walked = service.getLatestJsonSince(List.of("id2", "id3"), 1);
+        LatestJson tagged = service.getLatestJsonSince(List.of("id2"), 1);
+        for (LatestJson delta : List.of(walked, tagged)) {
+            assertEquals(2, delta.version());
+            assertEquals(1, delta.members().size());
+            assertTrue(new String(delta.members().get(0)).startsWith("\"id2\":"));
+        }
+
+        assertEquals(3, service.getLatestJsonSince(List.of("id1", "id2", "id3"), 0).members().size());
+        LatestJson current = service.getLatestJsonSince(List.of("id1", "id2"), 2);
+        assertEquals(2, current.version());
+        assertTrue(current.members().isEmpty());
+        assertTrue(service.getLatestJsonSince(List.of("id1", "id3"), 1).members().isEmpty());
+
+        // A version ahead of the store was read from another one, every id is sent again
+        LatestJson ahead = service.getLatestJsonSince(List.of("id1", "id2"), 5);
+        assertEquals(2, ahead.members().size());
+        assertEquals(service.getStoreEpoch(), ahead.epoch());
+    }
+
+    // ======================
+    // Test price feed
+    // ======================
+    @Test
+    void testSubscribePrices_pushesOnlyChangedIds() throws InterruptedException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PriceServiceImpl service = new PriceServiceImpl(registry, new PriceProperties());
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+        BlockingQueue<PriceUpdate> followed = new LinkedBlockingQueue<>();
+        BlockingQueue<PriceUpdate> all = new LinkedBlockingQueue<>();
+        Runnable stop = service.subscribePrices(Set.of("id1", "id9"), followed::add);
+        service.subscribePrices(null, all::add);
+
+        UUID first = service.startBatch(null);
+        service.uploadChunk(first, List.of(
+                new PriceRecord("id1", t0, "{\"price\": 1}"),
+                new PriceRecord("id2", t0, "{\"price\": 2}")));
+        service.completeBatch(first);
+
+        // id1 is stale against the store, only id3 changes
+        UUID second = service.startBatch(null);
+        service.uploadChunk(second, List.of(
+                new PriceRecord("id1", t0.minusSeconds(1), "{\"price\": 0}"),
+                new PriceRecord("id3", t0, "{\"price\": 3}")));
+        service.completeBatch(second);
+
+        PriceUpdate update = followed.poll(5, TimeUnit.SECONDS);
+        assertEquals(1, update.version());
+        assertEquals(List.of(new PriceRecord("id1", t0, "{\"price\": 1}")), update.prices());
+
+        PriceUpdate everything = all.poll(5, TimeUnit.SECONDS);
+        assertEquals(1, everything.version());
+        assertEquals(Set.of("id1", "id2"), everything.prices().stream().map(PriceRecord::id).collect(Collectors.toSet()));
+        PriceUpdate delta = all.poll(5, TimeUnit.SECONDS);
+        assertEquals(2, delta.version());
+        assertEquals(List.of("id3"), delta.prices().stream().map(PriceRecord::id).toList());
+
+        assertNull(followed.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(2, registry.find("prices.feed.subscribers").gauge().value());
+        stop.run();
+        assertEquals(1, registry.find("prices.feed.subscribers").gauge().value());
+    }
+
+    // ======================
+    // Test bounded batch registry
+    // ======================
+    @Test
+    void testFinishedBatches_leaveMemoryIntoArchive(@TempDir Path directory) throws Exception {
+        PriceProperties properties = new PriceProperties();
+        properties.getBatches().setMaxFinished(1);
+        properties.getBatches().setArchive(true);
+        properties.getBatches().setArchiveFile(directory.resolve("batches.ring"));
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PriceServiceImpl boundedService = new PriceServiceImpl(registry, properties);
+
+        UUID first = boundedService.startBatch(null);
+        boundedService.completeBatch(first);
+        UUID second = boundedService.startBatch(null);
+        boundedService.cancel(second);
+        UUID running = boundedService.startBatch(null);
+
+        // The first batch was archived when the second one ended, its status is still served
+        assertEquals(BatchStatus.COMPLETED, boundedService.getBatchStatus(first).status());
+        assertEquals(BatchStatus.CANCELLED, boundedService.getBatchStatus(second).status());
+        assertEquals(2.0, registry.get("prices.batch.tracked").gauge().value());
+
+        BatchPage page = boundedService.listBatches(null, null, null, 2);
+        assertEquals(List.of(running, second), page.batches().stream().map(BatchInfo::batchId).toList());
+        page = boundedService.listBatches(null, page.next(), null, 2);
+        assertEquals(List.of(first), page.batches().stream().map(BatchInfo::batchId).toList());
+        assertNull(page.next());
+
+        page = boundedService.listBatches(BatchStatus.COMPLETED, null, null, 10);
+        assertEquals(List.of(first), page.batches().stream().map(BatchInfo::batchId).toList());
+        boundedService.shutdown();
+    }
+
+    @Test
+    void testFinishedBatches_droppedWithoutArchive() {
+        PriceProperties properties = new PriceProperties();
+        properties.getBatches().setMaxFinished(0);
+        PriceServiceImpl boundedService = new PriceServiceImpl(new SimpleMeterRegistry(), properties);
+
+        UUID batchId = boundedService.startBatch(null);
+        boundedService.completeBatch(batchId);
+
+        assertNull(boundedService.getBatchStatus(batchId));
+        assertTrue(boundedService.listBatches(null, null, null, 10).batches().isEmpty());
+    }
+
+    // ======================
+    // Test admission control
+    // ======================
+    @Test
+    void testAdmission_queuesThenRejectsPastCapacity() throws InterruptedException {
+        PriceProperties properties = new PriceProperties();
+        properties.getAdmission().setMaxConcurrentBatches(1);
+        properties.getAdmission().setMaxQueuedBatches(1);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PriceServiceImpl admittingService = new PriceServiceImpl(registry, properties);
+
+        UUID session = admittingService.startBatch(null);
+        UUID queued = admittingService.uploadAll(new UploadRequest(List.of(
+                new PriceRecord("id1", Instant.now(), "{\"price\": 1}"))));
+
+        // The queue holds one batch, the next one is refused with a hint
+        AdmissionRejectedException rejected = assertThrows(AdmissionRejectedException.class, () ->
+                admittingService.uploadAll(new UploadRequest(List.of())));
+        assertTrue(rejected.getRetryAfter().toSeconds() >= 1);
+        assertEquals(1.0, registry.get("prices.admission.queue").gauge().value());
+        assertEquals(1.0, registry.get("prices.admission.rejected").counter().count());
+
+        // Finishing the session admits the queued upload
+        admittingService.completeBatch(session);
+        long deadline = System.currentTimeMillis() + 5000;
+        // The reservation is released once processing returns, just after the status is set
+        while ((admittingService.getBatchStatus(queued).status() == BatchStatus.IN_PROGRESS
+                || registry.get("prices.admission.reserved").gauge().value() != 0.0)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(BatchStatus.COMPLETED, admittingService.getBatchStatus(queued).status());
+        assertEquals(0.0, registry.get("prices.admission.reserved").gauge().value());
+    }
+
+    @Test
+    void testAdmission_cancelledWhileQueuedLeavesQueue() {
+        PriceProperties properties = new PriceProperties();
+        properties.getAdmission().setMaxConcurrentBatches(1);
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PriceServiceImpl admittingService = new PriceServiceImpl(registry, properties);
+
+        admittingService.startBatch(null);
+        UUID queued = admittingService.uploadAll(new UploadRequest(List.of()));
+        admittingService.cancel(queued);
+
+        assertEquals(BatchStatus.CANCELLED, admittingService.getBatchStatus(queued).status());
+        assertEquals(0.0, registry.get("prices.admission.queue").gauge().value());
+    }
+
+    @Test
+    void testAdmission_idleSessionIsCancelledAndReleased() throws InterruptedException {
+        PriceProperties properties = new PriceProperties();
+        properties.getAdmission().setMaxConcurrentBatches(1);
+        properties.getAdmission().setSessionIdleTimeout(Duration.ofMillis(100));
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        PriceServiceImpl admittingService = new PriceServiceImpl(registry, properties);
+
+        UUID forgotten = admittingService.startBatch(null);
+        admittingService.uploadChunk(forgotten, List.of(new PriceRecord("id1", Instant.now(), 1)));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (admittingService.getBatchStatus(forgotten).status() == BatchStatus.IN_PROGRESS
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(BatchStatus.CANCELLED, admittingService.getBatchStatus(forgotten).status());
+        assertEquals(0.0, registry.get("prices.admission.reserved").gauge().value());
+        assertThrows(IllegalStateException.class, () -> admittingService.completeBatch(forgotten));
+
+        // Its slot is free again
+        UUID next = admittingService.startBatch(null);
+        admittingService.completeBatch(next);
+        assertTrue(admittingService.getLatest(List.of("id1")).isEmpty());
+    }
+}
@@ -0,0 +1,148 @@
+package sp.global.exercise.service.impl;
+
+import org.junit.jupiter.api.Test;
+import sp.global.exercise.model.BatchInfo;
+import sp.global.exercise.model.BatchStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchProgressTest {
+
+    private final BatchProgress progress = new BatchProgress(UUID.randomUUID(), 10);
+
+    // ======================
+    // Test counters
+    // ======================
+    @Test
+    void testToInfo_countsStagedStaleAndSuperseded() {
+        progress.addStaged(6, 1, 2);
+        progress.addStaged(4, 0, 1);
+        progress.addStale(2);
+
+        BatchInfo running = progress.toInfo();
+        assertEquals(BatchStatus.IN_PROGRESS, running.status());
+        assertNull(running.completedAt());
+        assertEquals(10, running.processedCount());
+        assertEquals(3, running.staleCount());
+        assertEquals(3, running.supersededCount());
+        assertEquals(4, running.acceptedCount());
+        assertEquals(100.0, running.progressPercent());
+
+        assertTrue(progress.complete(10));
+        // Counts are frozen on the terminal transition
+        progress.addStaged(5, 5, 0);
+
+        BatchInfo done = progress.toInfo();
+        assertEquals(BatchStatus.COMPLETED, done.status());
+        assertNotNull(done.completedAt());
+        assertEquals(10, done.recordCount());
+        assertEquals(10, done.processedCount());
+        assertEquals(3, done.staleCount());
+        assertEquals(4, done.acceptedCount());
+    }
+
+    @Test
+    void testToInfo_percentOfExpectedRecords() {
+        progress.addProcessed(4);
+        assertEquals(40.0, progress.toInfo().progressPercent());
+
+        assertTrue(progress.fail());
+        assertEquals(40.0, progress.toInfo().progressPercent());
+        assertEquals(4, progress.toInfo().processedCount());
+    }
+
+    // ======================
+    // Test transitions
+    // ======================
+    @Test
+    void testCancel_afterCompleteChangesNothing() {
+        var aborts = new AtomicInteger();
+        progress.onAbort(aborts::incrementAndGet);
+
+        assertTrue(progress.complete(10));
+        assertFalse(progress.cancel());
+        assertFalse(progress.fail());
+
+        assertEquals(BatchStatus.COMPLETED, progress.status());
+        assertEquals(0, aborts.get());
+        assertFalse(progress.aborted().isDone());
+        assertEquals(-1, progress.nanosSinceAbort());
+    }
+
+    @Test
+    void testFail_afterCancelKeepsCancelled() {
+        assertTrue(progress.cancel());
+        assertFalse(progress.fail());
+        assertFalse(progress.complete(10));
+
+        assertEquals(BatchStatus.CANCELLED, progress.status());
+        assertEquals(BatchStatus.CANCELLED, progress.aborted().join());
+    }
+
+    @Test
+    void testCancel_refusedOnceCommitStarted() {
+        assertTrue(progress.startCommit());
+        assertFalse(progress.cancel());
+        assertEquals(BatchStatus.IN_PROGRESS, progress.status());
+
+        assertTrue(progress.complete(10));
+        assertEquals(BatchStatus.COMPLETED, progress.status());
+    }
+
+    @Test
+    void testStartCommit_refusedAfterCancel() {
+        assertTrue(progress.cancel());
+        assertFalse(progress.startCommit());
+    }
+
+    @Test
+    void testHandlers_runOnceOnTheFirstTransition() {
+        List<String> calls = new ArrayList<>();
+        var transitions = new AtomicInteger();
+        progress.onTransition(batch -> transitions.incrementAndGet());
+        progress.onAbort(() -> calls.add("abort"));
+        progress.onFinish(() -> calls.add("finish"));
+
+        assertTrue(progress.cancel());
+        assertFalse(progress.cancel());
+        assertFalse(progress.fail());
+
+        assertEquals(1, transitions.get());
+        assertEquals(2, calls.size());
+        assertTrue(calls.containsAll(List.of("abort", "finish")));
+
+        // Registered late, run right away
+        progress.onAbort(() -> calls.add("late abort"));
+        progress.onFinish(() -> calls.add("late finish"));
+        assertEquals(List.of("late abort", "late finish"), calls.subList(2, 4));
+        assertTrue(progress.nanosSinceAbort() >= 0);
+    }
+
+    @Test
+    void testRemoveFinish_handlerNoLongerRuns() {
+        var finished = new AtomicInteger();
+        Runnable handler = finished::incrementAndGet;
+        progress.onFinish(handler);
+        progress.removeFinish(handler);
+
+        assertTrue(progress.complete(10));
+        assertEquals(0, finished.get());
+    }
+
+    @Test
+    void testAbortHandlers_runOutsideTheMonitor() {
+        List<Boolean> held = new ArrayList<>();
+        progress.onAbort(() -> held.add(Thread.holdsLock(progress)));
+
+        assertTrue(progress.fail());
+        progress.onAbort(() -> held.add(Thread.holdsLock(progress)));
+
+        assertEquals(List.of(false, false), held);
+        assertTrue(progress.aborted().isDone());
+    }
+}
@@ -0,0 +1,100 @@
+package sp.global.exercise.service.impl;
+
+import org.junit.jupiter.api.Test;
+import sp.global.exercise.store.InstrumentDictionary;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CommitCoordinatorTest {
+
+    private final List<Integer> groups = new CopyOnWriteArrayList<>();
+    private final AtomicInteger sealing = new AtomicInteger();
+
+    private CommitCoordinator coordinator(Duration window) {
+        return new CommitCoordinator(group -> {
+            groups.add(group.size());
+            return new long[group.size()];
+        }, window, 16, sealing::get);
+    }
+
+    private static BatchStaging staging() {
+        return new BatchStaging(new InstrumentDictionary(), false, null);
+    }
+
+    // ======================
+    // Test grouping
+    // ======================
+    @Test
+    void testCommit_waitsForBatchesSealing() throws InterruptedException {
+        var coordinator = coordinator(Duration.ofSeconds(5));
+        int batches = 4;
+        sealing.set(batches);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < batches; i++) {
+            threads.add(Thread.ofVirtual().start(() -> coordinator.commit(staging())));
+        }
+        for (Thread thread : threads) {
+            thread.join(10_000);
+        }
+
+        assertEquals(List.of(batches), groups);
+    }
+
+    @Test
+    void testCommit_doesNotWaitForBatchesNotSealing() {
+        var coordinator = coordinator(Duration.ofSeconds(5));
+        // Only the batch committing, open sessions and merging batches are not counted
+        sealing.set(1);
+
+        long start = System.nanoTime();
+        assertEquals(0, coordinator.commit(staging()));
+
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(1)) < 0);
+        assertEquals(List.of(1), groups);
+    }
+
+    @Test
+    void testCommit_failureIsThrownToTheBatch() {
+        var coordinator = new CommitCoordinator(group -> {
+            throw new IllegalStateException("Store refused the commit");
+        }, Duration.ZERO, 16, sealing::get);
+
+        assertThrows(IllegalStateException.class, () -> coordinator.commit(staging()));
+    }
+
+    @Test
+    void testCommit_errorFailsEveryBatchOfTheGroup() throws InterruptedException {
+        var coordinator = new CommitCoordinator(group -> {
+            groups.add(group.size());
+            throw new OutOfMemoryError("Group copy");
+        }, Duration.ofSeconds(5), 16, sealing::get);
+        int batches = 3;
+        sealing.set(batches);
+
+        List<Throwable> failures = new CopyOnWriteArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < batches; i++) {
+            threads.add(Thread.ofVirtual().start(() -> {
+                try {
+                    coordinator.commit(staging());
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join(10_000);
+        }
+
+        assertEquals(List.of(batches), groups);
+        assertEquals(batches, failures.size());
+        assertTrue(failures.stream().allMatch(OutOfMemoryError.class::isInstance));
+    }
+}
@@ -0,0 +1,69 @@
+package sp.global.exercise.service.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PublishOrderTest {
+
+    private final PublishOrder order = new PublishOrder(0);
+    private final List<String> steps = new CopyOnWriteArrayList<>();
+
+    // ======================
+    // Test ordering
+    // ======================
+    @Test
+    void testPublish_waitsForEarlierVersions() throws Exception {
+        var second = CompletableFuture.runAsync(() -> order.publish(2, () -> steps.add("2")));
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertFalse(second.isDone());
+
+        order.publish(1, () -> steps.add("1"));
+        second.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("1", "2"), steps);
+    }
+
+    @Test
+    void testPublish_throwingStepLetsNextVersionThrough() throws Exception {
+        var second = CompletableFuture.runAsync(() -> order.publish(2, () -> steps.add("2")));
+
+        assertThrows(IllegalStateException.class, () -> order.publish(1, () -> {
+            throw new IllegalStateException("step failed");
+        }));
+        second.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("2"), steps);
+    }
+
+    // ======================
+    // Test prepared steps
+    // ======================
+    @Test
+    void testPublish_failedPrepareRunsSkippedInItsTurn() throws Exception {
+        var second = CompletableFuture.runAsync(() -> order.publish(2, () -> steps.add("2")));
+
+        var failure = assertThrows(UncheckedIOException.class, () -> order.<String>publish(1,
+                () -> {
+                    throw new UncheckedIOException(new IOException("run file gone"));
+                },
+                steps::add,
+                () -> steps.add("skipped 1")));
+        assertEquals("run file gone", failure.getCause().getMessage());
+
+        second.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("skipped 1", "2"), steps);
+    }
+
+    @Test
+    void testPublish_preparedValueReachesTheStep() {
+        order.publish(1, () -> "prepared 1", steps::add, () -> steps.add("skipped 1"));
+        order.publish(2, () -> steps.add("2"));
+        assertEquals(List.of("prepared 1", "2"), steps);
+    }
+}
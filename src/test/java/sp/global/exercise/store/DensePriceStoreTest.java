@@ -0,0 +1,96 @@
+package sp.global.exercise.store;
+
+import org.junit.jupiter.api.Test;
+import sp.global.exercise.model.PriceRecord;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DensePriceStoreTest {
+
+    private final Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+
+    // ======================
+    // Test snapshots
+    // ======================
+    @Test
+    void testOldSnapshot_keepsItsValues() {
+        DensePriceStore store = new DensePriceStore(new InstrumentDictionary());
+
+        store.commit(Map.of("a", new PriceRecord("a", t0, 1)), PriceRecord::newest);
+        PriceSnapshot v1 = store.snapshot();
+
+        store.commit(Map.of(
+                "a", new PriceRecord("a", t0.plusSeconds(1), 2),
+                "b", new PriceRecord("b", t0, 3)), PriceRecord::newest);
+        PriceSnapshot v2 = store.snapshot();
+
+        assertEquals(1, v1.version());
+        assertEquals(1, v1.size());
+        assertEquals(1, v1.get("a").payload());
+        assertNull(v1.get("b"));
+
+        assertEquals(2, v2.version());
+        assertEquals(2, v2.size());
+        assertEquals(2, v2.get("a").payload());
+        assertNull(v2.get("c"));
+    }
+
+    @Test
+    void testCommit_resolverKeepsLiveRecord() {
+        DensePriceStore store = new DensePriceStore(new InstrumentDictionary());
+        store.commit(Map.of("a", new PriceRecord("a", t0, 1)), PriceRecord::newest);
+
+        PriceSnapshot snapshot = store.commit(Map.of("a", new PriceRecord("a", t0.minusSeconds(1), 2)), PriceRecord::newest);
+
+        assertEquals(2, snapshot.version());
+        assertEquals(1, snapshot.size());
+        assertEquals(1, snapshot.get("a").payload());
+    }
+
+    // ======================
+    // Test pages
+    // ======================
+    @Test
+    void testManyIds_spanPagesInCodeOrder() {
+        var dictionary = new InstrumentDictionary();
+        DensePriceStore store = new DensePriceStore(dictionary);
+
+        Map<String, PriceRecord> staging = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            staging.put("id" + i, new PriceRecord("id" + i, t0, i));
+        }
+        store.commit(staging, PriceRecord::newest);
+        store.commit(Map.of("id4999", new PriceRecord("id4999", t0.plusSeconds(1), -1)), PriceRecord::newest);
+
+        PriceSnapshot snapshot = store.snapshot();
+        assertEquals(5000, snapshot.size());
+        assertEquals(-1, snapshot.get("id4999").payload());
+
+        List<Integer> codes = new ArrayList<>();
+        snapshot.forEach((id, record) -> codes.add(dictionary.lookup(id)));
+        assertEquals(5000, codes.size());
+        for (int i = 1; i < codes.size(); i++) {
+            assertTrue(codes.get(i - 1) < codes.get(i));
+        }
+    }
+
+    @Test
+    void testRestore_replacesContent() {
+        DensePriceStore store = new DensePriceStore(new InstrumentDictionary());
+        store.commit(Map.of("a", new PriceRecord("a", t0, 1)), PriceRecord::newest);
+
+        store.restore(7, Map.of("b", new PriceRecord("b", t0, 2)));
+
+        PriceSnapshot snapshot = store.snapshot();
+        assertEquals(7, snapshot.version());
+        assertEquals(1, snapshot.size());
+        assertNull(snapshot.get("a"));
+        assertEquals(2, snapshot.get("b").payload());
+    }
+}
@@ -0,0 +1,72 @@
+package sp.global.exercise.store;
+
+import org.junit.jupiter.api.Test;
+import sp.global.exercise.model.PriceRecord;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapPriceStoreTest {
+
+    // ======================
+    // Test snapshots
+    // ======================
+    @Test
+    void testOldSnapshot_keepsItsValues() {
+        OffHeapPriceStore store = new OffHeapPriceStore(new InstrumentDictionary(), JsonMapper.shared(), 1024);
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+
+        store.commit(Map.of("a", new PriceRecord("a", t0, 1)), PriceRecord::newest);
+        PriceSnapshot v1 = store.snapshot();
+
+        store.commit(Map.of(
+                "a", new PriceRecord("a", t0.plusSeconds(1), 2),
+                "b", new PriceRecord("b", t0, 3)), PriceRecord::newest);
+        PriceSnapshot v2 = store.snapshot();
+
+        assertEquals(1, v1.version());
+        assertEquals(1, v1.size());
+        assertEquals(1, v1.get("a").payload());
+        assertNull(v1.get("b"));
+
+        assertEquals(2, v2.version());
+        assertEquals(2, v2.size());
+        assertEquals(2, v2.get("a").payload());
+        assertEquals(t0.plusSeconds(1), v2.get("a").asOf());
+    }
+
+    // ======================
+    // Test compaction
+    // ======================
+    @Test
+    void testRepeatedUpdates_compactArenas() {
+        // Tiny arenas, so superseded records trigger compaction quickly
+        OffHeapPriceStore store = new OffHeapPriceStore(new InstrumentDictionary(), JsonMapper.shared(), 256);
+        Instant t0 = Instant.parse("2024-01-01T09:30:00Z");
+
+        for (int round = 0; round < 200; round++) {
+            Map<String, PriceRecord> staging = new HashMap<>();
+            for (int i = 0; i < 5; i++) {
+                staging.put("id" + i, new PriceRecord("id" + i, t0.plusSeconds(round), Map.of("round", round)));
+            }
+            store.commit(staging, PriceRecord::newest);
+        }
+
+        PriceSnapshot snapshot = store.snapshot();
+        assertEquals(5, snapshot.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Map.of("round", 199), snapshot.get("id" + i).payload());
+        }
+
+        Map<String, PriceRecord> iterated = new HashMap<>();
+        snapshot.forEach(iterated::put);
+        assertEquals(5, iterated.size());
+
+        // 200 rounds of 5 records would need far more without compaction
+        assertTrue(store.offHeapBytes() < 200 * 5 * 30);
+    }
+}
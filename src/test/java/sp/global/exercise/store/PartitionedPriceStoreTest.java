@@ -0,0 +1,100 @@
+package sp.global.exercise.store;
+
+import org.junit.jupiter.api.Test;
+import sp.global.exercise.model.PriceRecord;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PartitionedPriceStoreTest {
+
+    private static final Instant T0 = Instant.parse("2024-01-01T09:30:00Z");
+
+    // ======================
+    // Test parallel commit
+    // ======================
+    @Test
+    void testLargeCommit_mergesAllPartitions() {
+        PartitionedPriceStore store = new PartitionedPriceStore(10, ForkJoinPool.commonPool());
+        assertEquals(16, store.partitions());
+
+        store.commit(batch(50_000, T0, 1), PriceRecord::newest);
+        // Second batch: half newer, half older than the live prices
+        Map<String, PriceRecord> second = new HashMap<>();
+        for (int i = 0; i < 50_000; i++) {
+            Instant asOf = i % 2 == 0 ? T0.plusSeconds(1) : T0.minusSeconds(1);
+            second.put("id" + i, new PriceRecord("id" + i, asOf, 2));
+        }
+        PriceSnapshot snapshot = store.commit(second, PriceRecord::newest);
+
+        assertEquals(2, snapshot.version());
+        assertEquals(50_000, snapshot.size());
+        assertEquals(2, snapshot.get("id0").payload());
+        assertEquals(1, snapshot.get("id1").payload());
+        assertNull(snapshot.get("id50000"));
+
+        int[] count = {0};
+        snapshot.forEach((id, record) -> count[0]++);
+        assertEquals(50_000, count[0]);
+    }
+
+    // ======================
+    // Test version fence
+    // ======================
+    @Test
+    void testConcurrentReaders_seeWholeBatches() throws InterruptedException {
+        PartitionedPriceStore store = new PartitionedPriceStore(16, ForkJoinPool.commonPool());
+        store.commit(batch(5_000, T0, 0), PriceRecord::newest);
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> torn = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                PriceSnapshot snapshot = store.snapshot();
+                // Every record of a snapshot comes from the batch of its version
+                Object first = snapshot.get("id0").payload();
+                Object last = snapshot.get("id4999").payload();
+                if (!first.equals(last) || !first.equals((int) snapshot.version() - 1)) {
+                    torn.set("version " + snapshot.version() + ": " + first + " / " + last);
+                }
+            }
+        });
+        reader.start();
+
+        for (int b = 1; b <= 50; b++) {
+            store.commit(batch(5_000, T0.plusSeconds(b), b), PriceRecord::newest);
+        }
+        done.set(true);
+        reader.join();
+
+        assertNull(torn.get());
+        assertEquals(51, store.version());
+    }
+
+    @Test
+    void testRestore_replacesContent() {
+        PartitionedPriceStore store = new PartitionedPriceStore(4, ForkJoinPool.commonPool());
+        store.commit(batch(10, T0, 1), PriceRecord::newest);
+
+        store.restore(42, batch(3, T0, 7));
+
+        assertEquals(42, store.version());
+        assertEquals(3, store.snapshot().size());
+        assertEquals(7, store.snapshot().get("id2").payload());
+        assertNull(store.snapshot().get("id3"));
+    }
+
+    private static Map<String, PriceRecord> batch(int size, Instant asOf, Object payload) {
+        Map<String, PriceRecord> batch = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            batch.put("id" + i, new PriceRecord("id" + i, asOf, payload));
+        }
+        return batch;
+    }
+}
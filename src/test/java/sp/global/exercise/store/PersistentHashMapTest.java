@@ -0,0 +1,94 @@
+package sp.global.exercise.store;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersistentHashMapTest {
+
+    // ======================
+    // Test against HashMap
+    // ======================
+    @Test
+    void testRandomUpdates_matchHashMap() {
+        Random random = new Random(42);
+        Map<String, Integer> expected = new HashMap<>();
+        PersistentHashMap<String, Integer> map = PersistentHashMap.empty();
+
+        for (int round = 0; round < 20; round++) {
+            var editor = map.asTransient();
+            for (int i = 0; i < 5_000; i++) {
+                String key = "id" + random.nextInt(20_000);
+                int value = random.nextInt();
+                editor.merge(key, value, Math::max);
+                expected.merge(key, value, Math::max);
+            }
+            map = editor.persistent();
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (var entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+
+        Map<String, Integer> iterated = new HashMap<>();
+        map.forEach(iterated::put);
+        assertEquals(expected, iterated);
+    }
+
+    // ======================
+    // Test structural sharing
+    // ======================
+    @Test
+    void testOldVersion_isNotChanged() {
+        PersistentHashMap<String, Integer> v1 = PersistentHashMap.<String, Integer>empty()
+                .put("a", 1)
+                .put("b", 2);
+
+        var editor = v1.asTransient();
+        editor.put("a", 10);
+        editor.put("c", 3);
+        PersistentHashMap<String, Integer> v2 = editor.persistent();
+
+        assertEquals(2, v1.size());
+        assertEquals(1, v1.get("a"));
+        assertNull(v1.get("c"));
+
+        assertEquals(3, v2.size());
+        assertEquals(10, v2.get("a"));
+        assertEquals(3, v2.get("c"));
+    }
+
+    @Test
+    void testTransient_unusableAfterPersistent() {
+        var editor = PersistentHashMap.<String, Integer>empty().asTransient();
+        editor.persistent();
+
+        assertThrows(IllegalStateException.class, () -> editor.put("a", 1));
+    }
+
+    // ======================
+    // Test hash collisions
+    // ======================
+    @Test
+    void testCollidingKeys() {
+        // "Aa" and "BB" share the same hashCode
+        PersistentHashMap<String, Integer> map = PersistentHashMap.<String, Integer>empty()
+                .put("Aa", 1)
+                .put("BB", 2)
+                .put("AaBB", 3)
+                .put("BBAa", 4)
+                .put("Aa", 5);
+
+        assertEquals(4, map.size());
+        assertEquals(5, map.get("Aa"));
+        assertEquals(2, map.get("BB"));
+        assertEquals(3, map.get("AaBB"));
+        assertEquals(4, map.get("BBAa"));
+        assertNull(map.get("AaAa"));
+    }
+}
@@ -0,0 +1,64 @@
+package sp.global.exercise.store;
+
+import org.junit.jupiter.api.Test;
+import sp.global.exercise.model.PriceRecord;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PriceHistoryTest {
+
+    private static final Instant T0 = Instant.parse("2024-01-01T09:30:00Z");
+
+    @Test
+    void asOf_returnsNewestPointAtOrBefore() {
+        var history = new PriceHistory(100, null, Clock.systemUTC());
+
+        // Out of order on purpose
+        history.append(new PriceRecord("id1", T0.plusSeconds(20), 3));
+        history.append(new PriceRecord("id1", T0, 1));
+        history.append(new PriceRecord("id1", T0.plusSeconds(10), 2));
+        // Same asOf keeps the first point
+        history.append(new PriceRecord("id1", T0, 99));
+
+        assertNull(history.asOf("id1", T0.minusNanos(1)));
+        assertEquals(new PriceRecord("id1", T0, 1), history.asOf("id1", T0));
+        assertEquals(new PriceRecord("id1", T0.plusSeconds(10), 2), history.asOf("id1", T0.plusSeconds(19)));
+        assertEquals(new PriceRecord("id1", T0.plusSeconds(20), 3), history.asOf("id1", Instant.MAX));
+        assertNull(history.asOf("id2", T0));
+        assertEquals(3, history.points());
+    }
+
+    @Test
+    void retention_byCountDropsOldestPoints() {
+        var history = new PriceHistory(3, null, Clock.systemUTC());
+
+        for (int i = 0; i < 1000; i++) {
+            history.append(new PriceRecord("id1", T0.plusSeconds(i), i));
+        }
+
+        assertEquals(3, history.points());
+        assertNull(history.asOf("id1", T0.plusSeconds(996)));
+        assertEquals(997, history.asOf("id1", T0.plusSeconds(997)).payload());
+        assertEquals(999, history.asOf("id1", T0.plusSeconds(5000)).payload());
+        // Arrays never grow past what the retention keeps
+        assertTrue(history.estimatedBytes() < 1000);
+    }
+
+    @Test
+    void retention_byAgeDropsExpiredPoints() {
+        var clock = Clock.fixed(T0.plus(Duration.ofHours(1)), ZoneOffset.UTC);
+        var history = new PriceHistory(100, Duration.ofMinutes(30), clock);
+
+        history.append(new PriceRecord("id1", T0, "expired"));
+        history.append(new PriceRecord("id1", T0.plus(Duration.ofMinutes(45)), "kept"));
+
+        assertEquals(1, history.points());
+        assertNull(history.asOf("id1", T0.plus(Duration.ofMinutes(40))));
+        assertEquals("kept", history.asOf("id1", T0.plus(Duration.ofMinutes(50))).payload());
+    }
+}